@@ -1,6 +1,9 @@
 package dev.ikm.orchestration.interfaces.changeset;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 
 /**
@@ -24,4 +27,12 @@ public interface ChangeSetLoadService {
      * when last processed.
      */
     ConcurrentMap<String, Integer> getProcessedChangesets();
+
+    /**
+     * Check change set files for damage without loading them, checking the files in parallel.
+     *
+     * @param changeSetFiles the change set files to check
+     * @return the files that are damaged, each with a description of the problem; empty if all are intact
+     */
+    Map<Path, String> verify(Collection<Path> changeSetFiles);
 }
\ No newline at end of file
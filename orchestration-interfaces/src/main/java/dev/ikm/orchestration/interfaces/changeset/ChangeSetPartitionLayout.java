@@ -0,0 +1,120 @@
+package dev.ikm.orchestration.interfaces.changeset;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * How a {@link ChangeSetWriterService} places change set files under the change set folder.
+ *
+ * Readers do not need to know which layout wrote a folder: {@link #sealedChangeSets(Path, Instant)} finds the
+ * change sets at the top of the folder and in every {@code yyyy/MM/dd} partition, so a folder that was written
+ * flat and later partitioned, or that received partitioned files from a remote sync, is read completely.
+ */
+public enum ChangeSetPartitionLayout {
+    /**
+     * Every change set is written directly to the change set folder.
+     */
+    FLAT,
+    /**
+     * Every change set is written to a {@code yyyy/MM/dd} partition of the change set folder, for the local date
+     * it was started.
+     */
+    DAILY;
+
+    /**
+     * The file name suffix of a sealed change set.
+     */
+    public static final String CHANGE_SET_SUFFIX = ".proto.zip";
+    /**
+     * The allowance for file systems that record modification times coarsely, subtracted from a scan watermark
+     * before it is compared with a partition's or a change set's modification time.
+     */
+    private static final Duration MODIFIED_SLACK = Duration.ofSeconds(2);
+    private static final Pattern YEAR = Pattern.compile("\\d{4}");
+    private static final Pattern MONTH_OR_DAY = Pattern.compile("\\d{2}");
+
+    /**
+     * Returns the folder a change set started on the given date is written to.
+     *
+     * @param changeSetFolder the change set folder
+     * @param date            the local date the change set was started
+     * @return the change set folder itself, or the date's partition
+     */
+    public Path partitionFolder(Path changeSetFolder, LocalDate date) {
+        return switch (this) {
+            case FLAT -> changeSetFolder;
+            case DAILY -> changeSetFolder.resolve(String.format("%04d", date.getYear()))
+                    .resolve(String.format("%02d", date.getMonthValue()))
+                    .resolve(String.format("%02d", date.getDayOfMonth()));
+        };
+    }
+
+    /**
+     * Finds the sealed change sets in a change set folder, in name order, which is the order they were written.
+     *
+     * When a watermark is given, only the change sets modified since the watermark are returned. Creating,
+     * sealing, renaming or deleting a change set updates the modification time of the folder it is in, so only the
+     * top of the folder and the partitions modified since the watermark are listed; every other partition holds
+     * the same change sets it held when the watermark was taken. Partition folders are still visited to read their
+     * modification times, but their files are not listed. A listed folder usually also holds change sets sealed
+     * before the watermark, since the writer renames files in it all the time, so each file's own modification
+     * time is compared as well.
+     *
+     * @param changeSetFolder the change set folder
+     * @param modifiedSince   the time the previous scan started, or {@code null} to return every change set
+     * @return the sealed change sets in the folder and its partitions that were modified since the watermark
+     * @throws IOException if a folder cannot be read
+     */
+    public static List<Path> sealedChangeSets(Path changeSetFolder, Instant modifiedSince) throws IOException {
+        FileTime threshold = modifiedSince == null ? null : FileTime.from(modifiedSince.minus(MODIFIED_SLACK));
+        List<Path> changeSets = new ArrayList<>();
+        if (isModifiedSince(changeSetFolder, threshold)) {
+            addChangeSets(changeSetFolder, threshold, changeSets);
+        }
+        for (Path year : subfolders(changeSetFolder, YEAR)) {
+            for (Path month : subfolders(year, MONTH_OR_DAY)) {
+                for (Path day : subfolders(month, MONTH_OR_DAY)) {
+                    if (isModifiedSince(day, threshold)) {
+                        addChangeSets(day, threshold, changeSets);
+                    }
+                }
+            }
+        }
+        changeSets.sort(Comparator.comparing(path -> path.getFileName().toString()));
+        return changeSets;
+    }
+
+    private static boolean isModifiedSince(Path path, FileTime threshold) throws IOException {
+        return threshold == null || Files.getLastModifiedTime(path).compareTo(threshold) >= 0;
+    }
+
+    private static void addChangeSets(Path folder, FileTime threshold, List<Path> changeSets) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder, "*" + CHANGE_SET_SUFFIX)) {
+            for (Path file : files) {
+                if (Files.isRegularFile(file) && isModifiedSince(file, threshold)) {
+                    changeSets.add(file);
+                }
+            }
+        }
+    }
+
+    private static List<Path> subfolders(Path folder, Pattern namePattern) throws IOException {
+        List<Path> subfolders = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(folder,
+                entry -> namePattern.matcher(entry.getFileName().toString()).matches()
+                        && Files.isDirectory(entry))) {
+            entries.forEach(subfolders::add);
+        }
+        return subfolders;
+    }
+}
@@ -0,0 +1,16 @@
+package dev.ikm.orchestration.interfaces.changeset;
+
+/**
+ * The I/O implementation a {@link ChangeSetWriterService} uses to write change set files.
+ * Both backends produce the same zip format.
+ */
+public enum ChangeSetWriterBackend {
+    /**
+     * A buffered {@code FileOutputStream}.
+     */
+    STREAM,
+    /**
+     * A {@code FileChannel} with a large direct buffer, gathering writes and an explicit force policy.
+     */
+    CHANNEL
+}
@@ -0,0 +1,54 @@
+package dev.ikm.orchestration.interfaces.changeset;
+
+import org.eclipse.collections.api.list.primitive.ImmutableLongList;
+
+import java.time.Duration;
+
+/**
+ * A point-in-time snapshot of the activity of a {@link ChangeSetWriterService}.
+ *
+ * @param entitiesWritten              the number of entities written since the service started
+ * @param entitiesPerSecond            the recent write rate
+ * @param rawBytesWritten              the bytes of serialized entity records written, before compression
+ * @param compressedBytesWritten       the bytes written to change set files, after compression
+ * @param transformLatencyBucketMicros the upper bound, in microseconds, of each transform latency bucket
+ * @param transformLatencyCounts       the number of entity transforms that fell in each latency bucket
+ * @param queueDepth                   the number of nids waiting to be written
+ * @param queueCapacity                the maximum number of nids that can wait to be written
+ * @param timePaused                   the total time the writer has spent paused
+ * @param currentFileSize              the bytes written so far to the change set file currently open
+ */
+public record ChangeSetWriterMetrics(long entitiesWritten,
+                                     double entitiesPerSecond,
+                                     long rawBytesWritten,
+                                     long compressedBytesWritten,
+                                     ImmutableLongList transformLatencyBucketMicros,
+                                     ImmutableLongList transformLatencyCounts,
+                                     int queueDepth,
+                                     int queueCapacity,
+                                     Duration timePaused,
+                                     long currentFileSize) {
+
+    /**
+     * Estimates a transform latency percentile from the histogram, as the upper bound of the bucket that
+     * contains it.
+     *
+     * @param percentile the percentile to estimate, between 0 and 100
+     * @return the estimated latency in microseconds, or 0 if no transforms have been recorded
+     */
+    public long transformLatencyPercentileMicros(double percentile) {
+        long total = transformLatencyCounts.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * percentile / 100.0);
+        long cumulative = 0;
+        for (int i = 0; i < transformLatencyCounts.size(); i++) {
+            cumulative += transformLatencyCounts.get(i);
+            if (cumulative >= threshold) {
+                return transformLatencyBucketMicros.get(i);
+            }
+        }
+        return transformLatencyBucketMicros.getLast();
+    }
+}
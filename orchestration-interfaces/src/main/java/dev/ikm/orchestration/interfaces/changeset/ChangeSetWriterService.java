@@ -6,10 +6,16 @@ import dev.ikm.tinkar.common.service.ServiceProperties;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Collection;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 
 /**
  * {@link ChangeSetWriterService}
@@ -57,12 +63,120 @@ public interface ChangeSetWriterService {
      */
     boolean getWriteStatus();
 
+    /**
+     * Seal the current change set and continue writing to a new one, without a window in which writes are
+     * disabled. Entities written before the call are in the sealed change set.
+     *
+     * @return the path of the sealed change set, or empty if writing is paused or nothing was written to it
+     * @throws IOException if the change set cannot be sealed
+     */
+    Optional<Path> checkpoint() throws IOException;
+
+    /**
+     * Start merging the sealed change sets written in the given time window into one change set, in the
+     * background. The merged change set replaces the ones it was built from, so change sets sealed before
+     * {@link #lastSyncStart()} are left out: they were already synchronized and are shared with others.
+     *
+     * @param from the start of the window, inclusive
+     * @param to   the end of the window, exclusive
+     * @return a future holding the merged change set, or empty if there was nothing to merge
+     */
+    Future<Optional<Path>> compact(Instant from, Instant to);
+
+    /**
+     * Returns the lock that synchronization of the change set folder holds while it lists, verifies and commits
+     * sealed change sets. Compaction holds the same lock while it runs, so it never replaces change sets that are
+     * being synchronized, and synchronization waits for a running compaction to finish.
+     *
+     * @return the sync lock
+     */
+    Lock syncLock();
+
+    /**
+     * Start exporting every entity in the datastore to a set of change set parts in the given folder, in the
+     * background. A top-level manifest listing the parts is written once they are all sealed.
+     *
+     * @param exportFolder the folder to write the parts and manifest to
+     * @return a future holding the path of the top-level manifest
+     */
+    Future<Path> export(Path exportFolder);
+
+    /**
+     * Start generating a change set of the entities changed in a time range, in the background. The range is
+     * split into slices that are aggregated in parallel and merged in time order. When the service tracks changed
+     * entities and no start is given, exactly the entities changed since the last generation are written instead.
+     *
+     * @param from        the start of the range, or {@code null} to start where the last generation ended
+     * @param to          the end of the range
+     * @param moduleUuids the modules to include, or an empty collection for every module
+     * @param pathUuids   the paths to include, or an empty collection for every path
+     * @return a future holding the generated change set, or empty if nothing changed in the range
+     */
+    Future<Optional<Path>> generate(Instant from, Instant to, Collection<UUID> moduleUuids,
+                                    Collection<UUID> pathUuids);
+
     /**
      * Write the entity with the provided nid to the change set.
      * @param nid
      */
     void write(int nid);
 
+    /**
+     * Start buffering the nids of a transaction, so that they are written as one group when it commits. While
+     * the transaction is open, published nids it has claimed are left to the group.
+     *
+     * @param transactionId the id of the transaction
+     */
+    void beginTransaction(UUID transactionId);
+
+    /**
+     * Add the entity with the provided nid to an open transaction.
+     *
+     * @param transactionId the id of the transaction
+     * @param nid           the nid of the entity
+     * @throws IllegalStateException if the transaction is not open
+     */
+    void write(UUID transactionId, int nid);
+
+    /**
+     * Write the buffered nids of a transaction to the change set as one group, after every nid published before
+     * the commit, and force it to disk once before returning.
+     *
+     * @param transactionId the id of the transaction
+     * @throws IOException if the group cannot be written or forced to disk
+     * @throws IllegalStateException if the transaction is not open
+     */
+    void commitTransaction(UUID transactionId) throws IOException;
+
+    /**
+     * Discard the buffered nids of a transaction without writing them.
+     *
+     * @param transactionId the id of the transaction
+     */
+    void abortTransaction(UUID transactionId);
+
+    /**
+     * Select the I/O backend used for change set files. The backend takes effect when the next
+     * change set file is opened.
+     *
+     * @param backend the backend to use
+     */
+    void setBackend(ChangeSetWriterBackend backend);
+
+    /**
+     * Return the I/O backend used when opening change set files.
+     *
+     * @return the current backend
+     */
+    ChangeSetWriterBackend getBackend();
+
+    /**
+     * Return a snapshot of the writer's throughput, latency and backlog.
+     *
+     * @return the current metrics
+     */
+    ChangeSetWriterMetrics getMetrics();
+
     /**
      * Creates the folder for storing change sets. If the data store root is available,
      * it creates the change set folder by appending "changesets" to the data store root path.
@@ -85,6 +199,32 @@ public interface ChangeSetWriterService {
         }
         throw new IllegalStateException("No ServiceKeys.DATA_STORE_ROOT provided. ");
     }
+
+    /**
+     * Returns the file recording when the last successful synchronization of the change set folder started. It is
+     * kept beside the change set folder, so it is not part of the repository.
+     *
+     * @return the path to the sync watermark file
+     */
+    static Path syncWatermarkFile() {
+        return changeSetFolder().resolveSibling("changeset-state").resolve("sync-watermark");
+    }
+
+    /**
+     * Returns when the last successful synchronization of the change set folder started. Change sets started
+     * after then have not been shared.
+     *
+     * @return the start of the last synchronization, or empty if the folder has never been synchronized
+     * @throws IOException if the sync watermark file cannot be read
+     */
+    static Optional<Instant> lastSyncStart() throws IOException {
+        Path syncWatermarkFile = syncWatermarkFile();
+        if (!Files.exists(syncWatermarkFile)) {
+            return Optional.empty();
+        }
+        return Optional.of(Instant.ofEpochMilli(Long.parseLong(
+                Files.readString(syncWatermarkFile, StandardCharsets.UTF_8).trim())));
+    }
 }
 
 
@@ -0,0 +1,70 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+
+/**
+ * A {@link ChangeSetSink} that keeps a second set of change sets in its own folder, typically an audit archive
+ * written with a different codec or level than the local change sets.
+ *
+ * Records are copied into the archive's change sets without being transformed again. The archive seals its
+ * change sets by its own {@link RolloverPolicy}, checked after each record and whenever the sink is idle, and
+ * seals the open one when it is closed.
+ */
+public class ArchiveChangeSetSink implements ChangeSetSink {
+    private final EntityService entityService;
+    private final Path archiveFolder;
+    private final ChangeSetWriterOptions options;
+    private final RolloverPolicy rolloverPolicy;
+    private ChangeSetWriter archiveWriter;
+
+    /**
+     * Creates an archive sink.
+     *
+     * @param entityService  the EntityService passed to the archive's writers
+     * @param archiveFolder  the folder the archive's change sets are written to
+     * @param options        the options used to write the archive's change sets
+     * @param rolloverPolicy when to seal an archive change set and start a new one
+     * @throws IOException if the archive folder cannot be created
+     */
+    public ArchiveChangeSetSink(EntityService entityService, Path archiveFolder, ChangeSetWriterOptions options,
+                                RolloverPolicy rolloverPolicy) throws IOException {
+        this.entityService = entityService;
+        this.archiveFolder = archiveFolder;
+        this.options = options.withJournalRoot(null);
+        this.rolloverPolicy = rolloverPolicy;
+        Files.createDirectories(archiveFolder);
+    }
+
+    @Override
+    public void write(Entity<?> entity, byte[] record) throws IOException {
+        if (archiveWriter == null) {
+            archiveWriter = new ChangeSetWriter(entityService,
+                    archiveFolder.resolve(ChangeSetWriterManager.changeSetFileName(LocalDateTime.now())).toFile(),
+                    options);
+        }
+        archiveWriter.appendCopied(entity, record, record.length);
+        idle();
+    }
+
+    @Override
+    public void idle() throws IOException {
+        if (archiveWriter != null && rolloverPolicy.shouldRollover(archiveWriter)) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (archiveWriter != null) {
+            ChangeSetWriter sealedWriter = archiveWriter;
+            archiveWriter = null;
+            sealedWriter.close();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.util.zip.Deflater;
+
+/**
+ * The compression applied to the entries of a change set file.
+ *
+ * Every codec produces standard DEFLATE zip entries, so change sets written with any codec remain readable by
+ * {@code LoadEntitiesFromProtobufFile} and other {@code ZipInputStream} based readers. The codec and level are
+ * recorded in the change set manifest under {@link #MANIFEST_CODEC} and {@link #MANIFEST_LEVEL}.
+ */
+public enum ChangeSetCodec {
+    /**
+     * No compression; entity records are copied into uncompressed deflate blocks. Cheapest on CPU.
+     */
+    NONE,
+    /**
+     * The fastest deflate level, for edit-heavy sessions where writer CPU matters more than file size.
+     */
+    FAST,
+    /**
+     * Deflate at the configured compression level, from 1 (fastest) to 9 (smallest).
+     */
+    DEFLATE;
+
+    /**
+     * The manifest attribute that records the codec used for the change set entries.
+     */
+    public static final String MANIFEST_CODEC = "Compression-Codec";
+    /**
+     * The manifest attribute that records the deflate level used for the change set entries.
+     */
+    public static final String MANIFEST_LEVEL = "Compression-Level";
+
+    /**
+     * Returns the deflate level to hand to the zip stream for this codec.
+     *
+     * @param configuredLevel the level configured for {@link #DEFLATE}
+     * @return the deflate level to use
+     * @throws IllegalArgumentException if the codec is {@link #DEFLATE} and the level is not between 1 and 9
+     */
+    public int deflateLevel(int configuredLevel) {
+        return switch (this) {
+            case NONE -> Deflater.NO_COMPRESSION;
+            case FAST -> Deflater.BEST_SPEED;
+            case DEFLATE -> {
+                if (configuredLevel < Deflater.BEST_SPEED || configuredLevel > Deflater.BEST_COMPRESSION) {
+                    throw new IllegalArgumentException("Deflate level must be between 1 and 9: " + configuredLevel);
+                }
+                yield configuredLevel;
+            }
+        };
+    }
+}
@@ -0,0 +1,270 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetPartitionLayout;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
+import dev.ikm.tinkar.common.service.TrackingCallable;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.transform.TinkarSchemaToEntityTransformer;
+import dev.ikm.tinkar.schema.TinkarMsg;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.NumberFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.locks.Lock;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Merges the sealed change sets whose names fall in a time window into a single change set, so that the change
+ * set folder does not fill up with the small files left behind by pauses, syncs and restarts.
+ *
+ * Every entity is written once: the records of an entity found in more than one change set, such as the same
+ * concept written again after each edit or by repeated exports, are merged into one record holding the union of
+ * their versions. The change sets are read twice, once to find the public ids that occur more than once and once to
+ * copy them; records of entities that occur once are copied as they are, and only the repeated ones are held in
+ * memory until the merged records are written at the end. The merged change set is named for the earliest change
+ * set it replaces, so it sorts in their place, unless change sets are content-addressed, and it gets a new manifest
+ * and index. It only appears under its final name once it is complete, and the change sets it replaces are deleted
+ * after that; if compaction stops in between, the leftover change sets only hold versions the merged one already
+ * has. Input change sets are read within an I/O budget, so compaction can run in the background.
+ *
+ * Compaction holds the {@link ChangeSetWriterService#syncLock()} while it runs, so it never replaces change sets a
+ * synchronization is listing or committing, and it leaves out change sets sealed before the last synchronization
+ * started, which have already been shared.
+ */
+public class ChangeSetCompactor extends TrackingCallable<Optional<Path>> {
+    private final TinkarSchemaToEntityTransformer entityTransformer =
+            TinkarSchemaToEntityTransformer.getInstance();
+    private final EntityService entityService;
+    private final Path changeSetFolder;
+    private final Instant windowStart;
+    private final Instant windowEnd;
+    private final ChangeSetWriterOptions options;
+    private final long ioBytesPerSecond;
+    private final Lock syncLock;
+    private long mergedCount;
+
+    /**
+     * Creates a compaction of the change sets in a folder.
+     *
+     * @param entityService    the EntityService used to decode the merged records
+     * @param changeSetFolder  the folder holding the change sets
+     * @param windowStart      the earliest change set time to merge, inclusive
+     * @param windowEnd        the latest change set time to merge, exclusive
+     * @param options          the options used to write the merged change set
+     * @param ioBytesPerSecond the rate at which input change sets are read; zero or less reads without limit
+     * @param syncLock         the lock synchronization of the change set folder holds
+     */
+    public ChangeSetCompactor(EntityService entityService, Path changeSetFolder, Instant windowStart,
+                              Instant windowEnd, ChangeSetWriterOptions options, long ioBytesPerSecond,
+                              Lock syncLock) {
+        super(false, true);
+        this.entityService = entityService;
+        this.changeSetFolder = changeSetFolder;
+        this.windowStart = windowStart;
+        this.windowEnd = windowEnd;
+        this.options = options.withJournalRoot(null);
+        this.ioBytesPerSecond = ioBytesPerSecond;
+        this.syncLock = syncLock;
+        updateTitle("Compacting change sets");
+        updateMessage("Executing " + this.getClass().getSimpleName());
+        updateProgress(-1, -1);
+    }
+
+    /**
+     * Merges the change sets in the window and deletes the ones that were merged, holding the sync lock throughout.
+     *
+     * @return the merged change set, or empty if fewer than two change sets were in the window
+     * @throws Exception if a change set cannot be read, written or deleted
+     */
+    @Override
+    protected Optional<Path> compute() throws Exception {
+        updateMessage("Waiting for synchronization to finish");
+        syncLock.lockInterruptibly();
+        try {
+            return compact();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private Optional<Path> compact() throws IOException {
+        List<Path> changeSetFiles = changeSetFilesInWindow();
+        if (changeSetFiles.size() < 2) {
+            updateTitle("No change sets to compact");
+            updateMessage("In " + durationString());
+            return Optional.empty();
+        }
+        LocalDateTime earliestTime = LocalDateTime.ofInstant(changeSetFiles.stream()
+                .map(path -> ChangeSetWriterManager.changeSetFileTime(path.getFileName().toString()).orElseThrow())
+                .min(Comparator.naturalOrder()).orElseThrow(), ZoneId.systemDefault());
+        File mergedFile = options.partitionFolder(changeSetFolder, earliestTime)
+                .resolve(ChangeSetWriterManager.changeSetFileName(earliestTime)).toFile();
+
+        Map<Message, Integer> occurrences = new HashMap<>();
+        for (int i = 0; i < changeSetFiles.size(); i++) {
+            updateProgress(i, changeSetFiles.size() * 2L);
+            updateMessage("Scanning " + changeSetFiles.get(i).getFileName());
+            readRecords(changeSetFiles.get(i), (record, pbTinkarMsg) -> {
+                Message publicId = VersionDelta.publicId(pbTinkarMsg);
+                if (publicId != null) {
+                    occurrences.merge(publicId, 1, Integer::sum);
+                }
+            });
+        }
+
+        ChangeSetWriter mergedWriter = new ChangeSetWriter(entityService, mergedFile, options);
+        Map<Message, TinkarMsg> repeatedRecords = new LinkedHashMap<>();
+        try {
+            for (int i = 0; i < changeSetFiles.size(); i++) {
+                updateProgress(changeSetFiles.size() + i, changeSetFiles.size() * 2L);
+                updateMessage("Merging " + changeSetFiles.get(i).getFileName());
+                readRecords(changeSetFiles.get(i), (record, pbTinkarMsg) -> {
+                    Message publicId = VersionDelta.publicId(pbTinkarMsg);
+                    if (publicId == null || occurrences.getOrDefault(publicId, 1) == 1) {
+                        appendRecord(mergedWriter, pbTinkarMsg, record);
+                        return;
+                    }
+                    if (repeatedRecords.containsKey(publicId)) {
+                        mergedCount++;
+                    }
+                    repeatedRecords.merge(publicId, pbTinkarMsg, VersionDelta::unionVersions);
+                });
+            }
+            updateMessage("Writing " + NumberFormat.getInstance().format(repeatedRecords.size())
+                    + " merged entities");
+            for (TinkarMsg pbTinkarMsg : repeatedRecords.values()) {
+                appendRecord(mergedWriter, pbTinkarMsg, delimited(pbTinkarMsg));
+            }
+        } catch (Exception e) {
+            mergedWriter.discard();
+            throw e;
+        }
+        mergedWriter.close();
+        // A content-addressed merge may resolve to one of its inputs, which must then be kept.
+        Path mergedPath = mergedWriter.changeSetFile().toPath();
+        for (Path changeSetFile : changeSetFiles) {
+            if (!changeSetFile.equals(mergedPath)) {
+                Files.deleteIfExists(changeSetFile);
+            }
+        }
+        updateTitle("Compacted " + changeSetFiles.size() + " change sets into " + mergedPath.getFileName());
+        updateMessage("Merged " + NumberFormat.getInstance().format(mergedCount) + " repeated records in "
+                + durationString());
+        return Optional.of(mergedPath);
+    }
+
+    /**
+     * Returns the sealed change sets named in the window, leaving out those sealed before the last synchronization
+     * started, since they have been shared.
+     */
+    private List<Path> changeSetFilesInWindow() throws IOException {
+        Optional<Instant> lastSyncStart = ChangeSetWriterService.lastSyncStart();
+        List<Path> changeSetFiles = new ArrayList<>();
+        for (Path path : ChangeSetPartitionLayout.sealedChangeSets(changeSetFolder, null)) {
+            boolean inWindow = ChangeSetWriterManager.changeSetFileTime(path.getFileName().toString())
+                    .filter(time -> !time.isBefore(windowStart) && time.isBefore(windowEnd))
+                    .isPresent();
+            if (inWindow && (lastSyncStart.isEmpty()
+                    || !Files.getLastModifiedTime(path).toInstant().isBefore(lastSyncStart.get()))) {
+                changeSetFiles.add(path);
+            }
+        }
+        return changeSetFiles;
+    }
+
+    /**
+     * Reads the records of every entry of a change set, whatever its layout, skipping the manifest, index and
+     * dictionary. Records of a {@link RecordFormat#PUBLIC_ID_DICTIONARY} change set are decoded to plain records
+     * first, since the dictionary entry follows the records; the merged writer encodes them again in its own format.
+     */
+    private void readRecords(Path changeSetFile, RecordConsumer recordConsumer) throws IOException {
+        PublicIdDictionary dictionary = null;
+        try (ZipFile zipFile = new ZipFile(changeSetFile.toFile())) {
+            if (RecordFormat.fromManifest(ChangeSetReader.readManifest(zipFile))
+                    == RecordFormat.PUBLIC_ID_DICTIONARY) {
+                dictionary = PublicIdDictionary.read(zipFile);
+            }
+        }
+        try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(
+                new ThrottledInputStream(Files.newInputStream(changeSetFile), ioBytesPerSecond)))) {
+            ZipEntry zipEntry;
+            while ((zipEntry = zis.getNextEntry()) != null) {
+                String entryName = zipEntry.getName();
+                if (!zipEntry.isDirectory() && !entryName.equals(JarFile.MANIFEST_NAME)
+                        && !entryName.equals(ChangeSetIndex.INDEX_ENTRY)
+                        && !entryName.equals(PublicIdDictionary.DICTIONARY_ENTRY)) {
+                    readEntryRecords(zis, dictionary, recordConsumer);
+                }
+            }
+        }
+    }
+
+    private void readEntryRecords(InputStream entryInput, PublicIdDictionary dictionary,
+                                  RecordConsumer recordConsumer) throws IOException {
+        int firstByte;
+        while ((firstByte = entryInput.read()) != -1) {
+            int size = CodedInputStream.readRawVarint32(firstByte, entryInput);
+            int prefixLength = CodedOutputStream.computeUInt32SizeNoTag(size);
+            byte[] record = new byte[prefixLength + size];
+            CodedOutputStream.newInstance(record, 0, prefixLength).writeUInt32NoTag(size);
+            if (entryInput.readNBytes(record, prefixLength, size) != size) {
+                throw new EOFException("Truncated change set record");
+            }
+            if (dictionary != null) {
+                record = dictionary.decodeRecord(record, record.length);
+                size = CodedInputStream.newInstance(record).readUInt32();
+                prefixLength = record.length - size;
+            }
+            recordConsumer.accept(record,
+                    TinkarMsg.parseFrom(CodedInputStream.newInstance(record, prefixLength, size)));
+        }
+    }
+
+    private void appendRecord(ChangeSetWriter mergedWriter, TinkarMsg pbTinkarMsg, byte[] record)
+            throws IOException {
+        List<Entity<?>> entities = new ArrayList<>(1);
+        entityTransformer.transform(pbTinkarMsg, entities::add, entities::add);
+        for (Entity<?> entity : entities) {
+            mergedWriter.appendCopied(entity, record, record.length);
+        }
+    }
+
+    private static byte[] delimited(TinkarMsg pbTinkarMsg) throws IOException {
+        int serializedSize = pbTinkarMsg.getSerializedSize();
+        byte[] record = new byte[CodedOutputStream.computeUInt32SizeNoTag(serializedSize) + serializedSize];
+        CodedOutputStream codedOutput = CodedOutputStream.newInstance(record);
+        codedOutput.writeUInt32NoTag(serializedSize);
+        pbTinkarMsg.writeTo(codedOutput);
+        codedOutput.checkNoSpaceLeft();
+        return record;
+    }
+
+    /**
+     * Receives each record read from a change set, both as the delimited bytes and as the parsed message.
+     */
+    private interface RecordConsumer {
+        void accept(byte[] record, TinkarMsg pbTinkarMsg) throws IOException;
+    }
+}
@@ -0,0 +1,176 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.tinkar.common.service.TrackingCallable;
+import dev.ikm.tinkar.entity.EntityService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.NumberFormat;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * Exports every entity in the datastore to a set of change set parts, to seed new installations.
+ *
+ * The datastore is walked with {@code PrimitiveData.get().forEachParallel}, and each entity is written to the part
+ * selected by its nid, so the parts are written concurrently and each holds roughly the same share of the entities.
+ * Entities are transformed on the walking threads; only the append to a part is serialized. Every record holds the
+ * entity's whole chronology, whatever delta mode the writer is configured with.
+ *
+ * Once every part is sealed, a top-level manifest named {@link #EXPORT_MANIFEST} lists the parts with their
+ * entity counts and sizes. It is written last, so an export without one is incomplete. Progress is determinate:
+ * the entities are counted before the export begins.
+ */
+public class ChangeSetExporter extends TrackingCallable<Path> {
+    /**
+     * The name of the top-level manifest written to the export folder.
+     */
+    public static final String EXPORT_MANIFEST = "export-manifest.mf";
+    /**
+     * The manifest attribute that records the number of parts in the export.
+     */
+    public static final String MANIFEST_PART_COUNT = "Part-Count";
+    private static final int PROGRESS_INTERVAL = 4096;
+    private final EntityService entityService;
+    private final Path exportFolder;
+    private final ChangeSetWriterOptions options;
+    private final int partCount;
+    private final AtomicLong exportedCount = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Creates an export of the whole datastore.
+     *
+     * @param entityService the EntityService the exported entities are read from
+     * @param exportFolder  the folder the parts and manifest are written to
+     * @param options       the options used to write each part
+     * @param partCount     the number of parts written concurrently
+     * @throws IllegalArgumentException if partCount is less than one
+     */
+    public ChangeSetExporter(EntityService entityService, Path exportFolder, ChangeSetWriterOptions options,
+                             int partCount) {
+        super(false, true);
+        if (partCount < 1) {
+            throw new IllegalArgumentException("Part count must be positive: " + partCount);
+        }
+        this.entityService = entityService;
+        this.exportFolder = exportFolder;
+        this.options = options.withJournalRoot(null).withDeltaMode(DeltaMode.OFF);
+        this.partCount = partCount;
+        updateTitle("Exporting change sets");
+        updateMessage("Executing " + this.getClass().getSimpleName());
+        updateProgress(-1, -1);
+    }
+
+    /**
+     * Writes every entity to the parts, seals them, and writes the top-level manifest.
+     *
+     * @return the path of the top-level manifest
+     * @throws Exception if an entity cannot be written or a part cannot be sealed
+     */
+    @Override
+    protected Path compute() throws Exception {
+        updateMessage("Counting entities");
+        LongAdder entityCount = new LongAdder();
+        PrimitiveData.get().forEachParallel((bytes, nid) -> entityCount.increment());
+        long totalCount = entityCount.sum();
+
+        Files.createDirectories(exportFolder);
+        ChangeSetWriter[] partWriters = new ChangeSetWriter[partCount];
+        try {
+            for (int i = 0; i < partCount; i++) {
+                partWriters[i] = new ChangeSetWriter(entityService,
+                        exportFolder.resolve(partFileName(i)).toFile(), options);
+            }
+            updateMessage("Writing " + partCount + " parts");
+            updateProgress(0, totalCount);
+            PrimitiveData.get().forEachParallel((bytes, nid) -> exportNid(partWriters, nid, totalCount));
+            if (failure.get() != null) {
+                throw new IOException("Change set export failed", failure.get());
+            }
+            updateMessage("Sealing " + partCount + " parts");
+            for (ChangeSetWriter partWriter : partWriters) {
+                partWriter.close();
+            }
+        } catch (Exception e) {
+            for (ChangeSetWriter partWriter : partWriters) {
+                if (partWriter != null) {
+                    partWriter.discard();
+                }
+            }
+            throw e;
+        }
+        Path manifestFile = writeExportManifest(partWriters);
+        updateProgress(totalCount, totalCount);
+        updateTitle("Exported " + NumberFormat.getInstance().format(exportedCount.get()) + " entities to "
+                + partCount + " parts");
+        updateMessage("In " + durationString());
+        return manifestFile;
+    }
+
+    private void exportNid(ChangeSetWriter[] partWriters, int nid, long totalCount) {
+        if (failure.get() != null) {
+            return;
+        }
+        ChangeSetWriter partWriter = partWriters[Math.floorMod(nid, partCount)];
+        try {
+            partWriter.encode(nid).ifPresent(encodedEntity -> {
+                synchronized (partWriter) {
+                    partWriter.append(encodedEntity);
+                }
+            });
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+            return;
+        }
+        long count = exportedCount.incrementAndGet();
+        if (count % PROGRESS_INTERVAL == 0) {
+            updateProgress(count, totalCount);
+        }
+    }
+
+    /**
+     * Writes the top-level manifest, listing each sealed part under its file name, and moves it into place in one
+     * atomic step. Parts that held no entities were deleted when they were sealed and are not listed.
+     */
+    private Path writeExportManifest(ChangeSetWriter[] partWriters) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes mainAttributes = manifest.getMainAttributes();
+        mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        mainAttributes.putValue("Export-Time", Instant.now().toString());
+        mainAttributes.putValue("Entity-Count", Long.toString(exportedCount.get()));
+        int sealedCount = 0;
+        for (ChangeSetWriter partWriter : partWriters) {
+            File partFile = partWriter.changeSetFile();
+            if (partWriter.entityCount() > 0 && partFile.exists()) {
+                Attributes partAttributes = new Attributes();
+                partAttributes.putValue("Entity-Count", Long.toString(partWriter.entityCount()));
+                partAttributes.putValue("Bytes", Long.toString(partFile.length()));
+                manifest.getEntries().put(partFile.getName(), partAttributes);
+                sealedCount++;
+            }
+        }
+        mainAttributes.putValue(MANIFEST_PART_COUNT, Integer.toString(sealedCount));
+        Path manifestFile = exportFolder.resolve(EXPORT_MANIFEST);
+        Path inProgressFile = exportFolder.resolve(EXPORT_MANIFEST + ChangeSetWriter.IN_PROGRESS_SUFFIX);
+        try (OutputStream manifestOutput = Files.newOutputStream(inProgressFile)) {
+            manifest.write(manifestOutput);
+        }
+        Files.move(inProgressFile, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return manifestFile;
+    }
+
+    private String partFileName(int part) {
+        int digits = Integer.toString(partCount).length();
+        return String.format("part-%0" + digits + "d-of-%d.proto.zip", part + 1, partCount);
+    }
+}
@@ -0,0 +1,104 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.alert.AlertStreams;
+import dev.ikm.tinkar.entity.Entity;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Passes each record written to the local change set on to the registered {@link ChangeSetSink}s.
+ *
+ * The record is copied out of the writer's pooled buffer once, and the copy is shared by every sink, so a nid is
+ * fetched and serialized once however many sinks there are.
+ */
+class ChangeSetFanOut {
+    private final List<SinkChannel> channels = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registers a sink, replacing any sink already registered under the same name.
+     *
+     * @param name          the name of the sink
+     * @param sink          the sink
+     * @param bufferRecords the number of records buffered for the sink
+     * @param blockWhenFull whether to wait for room rather than drop records when the sink's buffer is full
+     */
+    void add(String name, ChangeSetSink sink, int bufferRecords, boolean blockWhenFull) {
+        remove(name);
+        channels.add(new SinkChannel(name, sink, bufferRecords, blockWhenFull));
+    }
+
+    /**
+     * Unregisters a sink, closing it once its buffer is drained.
+     *
+     * @param name the name of the sink
+     * @return {@code true} if a sink was registered under the name
+     */
+    boolean remove(String name) {
+        for (SinkChannel channel : channels) {
+            if (channel.name().equals(name) && channels.remove(channel)) {
+                closeChannel(channel);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether any sink is registered.
+     *
+     * @return {@code true} if there are no sinks
+     */
+    boolean isEmpty() {
+        return channels.isEmpty();
+    }
+
+    /**
+     * Passes a record to every sink.
+     *
+     * @param entity the entity the record was serialized from
+     * @param buffer the writer's buffer holding the record
+     * @param length the length of the record
+     */
+    void publish(Entity<?> entity, byte[] buffer, int length) {
+        if (channels.isEmpty()) {
+            return;
+        }
+        byte[] record = Arrays.copyOf(buffer, length);
+        for (SinkChannel channel : channels) {
+            channel.offer(entity, record);
+        }
+    }
+
+    /**
+     * Returns the total number of records dropped by sinks that fell behind.
+     *
+     * @return the dropped record count
+     */
+    long droppedCount() {
+        return channels.stream().mapToLong(SinkChannel::droppedCount).sum();
+    }
+
+    /**
+     * Drains and closes every sink.
+     */
+    void close() {
+        for (SinkChannel channel : channels) {
+            channels.remove(channel);
+            closeChannel(channel);
+        }
+    }
+
+    private static void closeChannel(SinkChannel channel) {
+        try {
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            AlertStreams.dispatchToRoot(e);
+        } catch (IOException e) {
+            AlertStreams.dispatchToRoot(e);
+        }
+    }
+}
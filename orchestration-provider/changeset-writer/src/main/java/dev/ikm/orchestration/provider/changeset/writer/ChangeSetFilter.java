@@ -0,0 +1,243 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.id.PublicIds;
+import dev.ikm.tinkar.common.service.PrimitiveData;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.EntityVersion;
+import dev.ikm.tinkar.entity.SemanticEntity;
+import dev.ikm.tinkar.entity.StampEntity;
+import org.eclipse.collections.api.factory.primitive.IntSets;
+import org.eclipse.collections.api.set.primitive.ImmutableIntSet;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Decides which published nids are written to change sets, by the module, path and author of their stamps and
+ * the pattern of semantics, as configured by the {@code FILTER_*} {@link ChangeSetWriterKeys} or by the caller.
+ *
+ * Each nid is classified once, the first time it is seen, and the result is kept in {@link NidBitSet}s, so that
+ * the nids of a bulk import or classifier run cost a bit test each instead of an entity fetch and transform. The
+ * semantics of excluded patterns are classified up front from each pattern's semantic index.
+ *
+ * A stamp passes if its module, path and author each pass their include and exclude lists. A semantic is
+ * rejected if its pattern does not pass. Any other entity passes if at least one of its versions has a stamp that
+ * passes, and the writer then leaves the versions whose stamps do not pass out of its record, using
+ * {@link #passesStamp(int)}. Stamps and semantic patterns do not change, so those classifications are kept for
+ * good. An entity rejected for its stamps can later gain a version whose stamp passes, so that rejection is not
+ * kept; the entity is classified again each time it is published.
+ *
+ * Thread safe: the writer manager tests nids while holding its writer lock, and the transform threads test stamps
+ * while encoding. Nids already classified are tested without locking, so the transform threads do not wait on
+ * each other or on the writer; only classifying a nid seen for the first time is serialized.
+ */
+public class ChangeSetFilter {
+    private final EntityService entityService;
+    private final ImmutableIntSet includeModules;
+    private final ImmutableIntSet excludeModules;
+    private final ImmutableIntSet includePaths;
+    private final ImmutableIntSet excludePaths;
+    private final ImmutableIntSet includeAuthors;
+    private final ImmutableIntSet excludeAuthors;
+    private final ImmutableIntSet includePatterns;
+    private final ImmutableIntSet excludePatterns;
+    private final NidBitSet accepted = new NidBitSet();
+    private final NidBitSet rejected = new NidBitSet();
+
+    private ChangeSetFilter(EntityService entityService, ImmutableIntSet includeModules,
+                            ImmutableIntSet excludeModules, ImmutableIntSet includePaths,
+                            ImmutableIntSet excludePaths, ImmutableIntSet includeAuthors,
+                            ImmutableIntSet excludeAuthors, ImmutableIntSet includePatterns,
+                            ImmutableIntSet excludePatterns) {
+        this.entityService = entityService;
+        this.includeModules = includeModules;
+        this.excludeModules = excludeModules;
+        this.includePaths = includePaths;
+        this.excludePaths = excludePaths;
+        this.includeAuthors = includeAuthors;
+        this.excludeAuthors = excludeAuthors;
+        this.includePatterns = includePatterns;
+        this.excludePatterns = excludePatterns;
+        excludePatterns.forEach(patternNid ->
+                PrimitiveData.get().forEachSemanticNidOfPattern(patternNid, rejected::add));
+    }
+
+    /**
+     * Creates the filter configured by the {@code FILTER_*} keys.
+     *
+     * @param entityService the EntityService used to classify nids the first time they are seen
+     * @return the filter, or empty if no filter is configured
+     */
+    public static Optional<ChangeSetFilter> fromKeys(EntityService entityService) {
+        ChangeSetFilter filter = new ChangeSetFilter(entityService,
+                nids(ChangeSetWriterKeys.FILTER_INCLUDE_MODULES), nids(ChangeSetWriterKeys.FILTER_EXCLUDE_MODULES),
+                nids(ChangeSetWriterKeys.FILTER_INCLUDE_PATHS), nids(ChangeSetWriterKeys.FILTER_EXCLUDE_PATHS),
+                nids(ChangeSetWriterKeys.FILTER_INCLUDE_AUTHORS), nids(ChangeSetWriterKeys.FILTER_EXCLUDE_AUTHORS),
+                nids(ChangeSetWriterKeys.FILTER_INCLUDE_PATTERNS), nids(ChangeSetWriterKeys.FILTER_EXCLUDE_PATTERNS));
+        return filter.isEmpty() ? Optional.empty() : Optional.of(filter);
+    }
+
+    /**
+     * Creates a filter that passes only stamps on the given modules and paths, and entities with a version on
+     * one of them. An empty collection places no restriction on the modules or paths.
+     *
+     * @param entityService the EntityService used to classify nids the first time they are seen
+     * @param moduleUuids   the UUIDs of the modules to include
+     * @param pathUuids     the UUIDs of the paths to include
+     * @return the filter, or empty if both collections are empty
+     */
+    public static Optional<ChangeSetFilter> including(EntityService entityService, Collection<UUID> moduleUuids,
+                                                      Collection<UUID> pathUuids) {
+        ChangeSetFilter filter = new ChangeSetFilter(entityService, nids(moduleUuids), IntSets.immutable.empty(),
+                nids(pathUuids), IntSets.immutable.empty(), IntSets.immutable.empty(), IntSets.immutable.empty(),
+                IntSets.immutable.empty(), IntSets.immutable.empty());
+        return filter.isEmpty() ? Optional.empty() : Optional.of(filter);
+    }
+
+    /**
+     * Returns whether the entity with the given nid should be written to the change set.
+     *
+     * @param nid the published nid
+     * @return {@code true} if the entity passes the filter
+     */
+    public boolean test(int nid) {
+        if (accepted.contains(nid)) {
+            return true;
+        }
+        if (rejected.contains(nid)) {
+            return false;
+        }
+        return classify(nid);
+    }
+
+    private synchronized boolean classify(int nid) {
+        if (accepted.contains(nid)) {
+            return true;
+        }
+        if (rejected.contains(nid)) {
+            return false;
+        }
+        Optional<Entity<EntityVersion>> optionalEntity = entityService.getEntity(nid);
+        if (optionalEntity.isEmpty()) {
+            return false;
+        }
+        return switch (optionalEntity.get()) {
+            case StampEntity<?> stampEntity -> classifyStamp(stampEntity);
+            case SemanticEntity<?> semanticEntity
+                    when !passes(semanticEntity.patternNid(), includePatterns, excludePatterns) -> {
+                rejected.add(nid);
+                yield false;
+            }
+            case Entity<EntityVersion> entity -> classifyVersions(entity);
+        };
+    }
+
+    /**
+     * Keeps the nids of the batch that pass the filter at the start of the array, in order.
+     *
+     * @param nids  the array holding the batch
+     * @param count the number of nids in the batch
+     * @return the number of nids that passed
+     */
+    public int retain(int[] nids, int count) {
+        int retained = 0;
+        for (int i = 0; i < count; i++) {
+            if (test(nids[i])) {
+                nids[retained++] = nids[i];
+            }
+        }
+        return retained;
+    }
+
+    /**
+     * Returns whether a version with the given stamp should be written.
+     *
+     * @param stampNid the nid of the version's stamp
+     * @return {@code true} if the stamp passes the module, path and author criteria
+     */
+    public boolean passesStamp(int stampNid) {
+        if (accepted.contains(stampNid)) {
+            return true;
+        }
+        if (rejected.contains(stampNid)) {
+            return false;
+        }
+        return classifyStamp(stampNid);
+    }
+
+    private synchronized boolean classifyStamp(int stampNid) {
+        if (accepted.contains(stampNid)) {
+            return true;
+        }
+        if (rejected.contains(stampNid)) {
+            return false;
+        }
+        return entityService.getEntity(stampNid)
+                .filter(entity -> entity instanceof StampEntity<?>)
+                .map(entity -> classifyStamp((StampEntity<?>) entity))
+                .orElse(false);
+    }
+
+    /**
+     * Returns whether the filter has module, path or author criteria, so that some versions may be left out of
+     * the records of entities that pass.
+     *
+     * @return {@code true} if versions are filtered by their stamps
+     */
+    public boolean prunesVersions() {
+        return !stampCriteriaEmpty();
+    }
+
+    private boolean classifyStamp(StampEntity<?> stampEntity) {
+        if (passes(stampEntity.moduleNid(), includeModules, excludeModules)
+                && passes(stampEntity.pathNid(), includePaths, excludePaths)
+                && passes(stampEntity.authorNid(), includeAuthors, excludeAuthors)) {
+            accepted.add(stampEntity.nid());
+            return true;
+        }
+        rejected.add(stampEntity.nid());
+        return false;
+    }
+
+    private boolean classifyVersions(Entity<EntityVersion> entity) {
+        if (stampCriteriaEmpty()) {
+            accepted.add(entity.nid());
+            return true;
+        }
+        for (EntityVersion version : entity.versions()) {
+            int stampNid = version.stampNid();
+            if (passesStamp(stampNid)) {
+                accepted.add(entity.nid());
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean passes(int nid, ImmutableIntSet include, ImmutableIntSet exclude) {
+        return (include.isEmpty() || include.contains(nid)) && !exclude.contains(nid);
+    }
+
+    private boolean stampCriteriaEmpty() {
+        return includeModules.isEmpty() && excludeModules.isEmpty() && includePaths.isEmpty()
+                && excludePaths.isEmpty() && includeAuthors.isEmpty() && excludeAuthors.isEmpty();
+    }
+
+    private boolean isEmpty() {
+        return stampCriteriaEmpty() && includePatterns.isEmpty() && excludePatterns.isEmpty();
+    }
+
+    private static ImmutableIntSet nids(ChangeSetWriterKeys key) {
+        return IntSets.immutable.ofAll(Arrays.stream(key.get().split(","))
+                .map(String::trim)
+                .filter(uuid -> !uuid.isEmpty())
+                .mapToInt(uuid -> PrimitiveData.nid(PublicIds.of(UUID.fromString(uuid)))));
+    }
+
+    private static ImmutableIntSet nids(Collection<UUID> uuids) {
+        return IntSets.immutable.ofAll(uuids.stream().mapToInt(uuid -> PrimitiveData.nid(PublicIds.of(uuid))));
+    }
+}
@@ -0,0 +1,258 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.service.TinkExecutor;
+import dev.ikm.tinkar.common.service.TrackingCallable;
+import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.aggregator.TemporalEntityAggregator;
+import org.eclipse.collections.api.factory.primitive.IntLists;
+import org.eclipse.collections.api.factory.primitive.IntSets;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.set.primitive.MutableIntSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.NumberFormat;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates a change set holding the entities changed in a time range.
+ *
+ * The range is split into equal slices that are aggregated in parallel, each by its own
+ * {@link TemporalEntityAggregator}. The slices are then merged in time order, writing each entity once, at its
+ * first appearance, so the change set holds the same entities in the same order as a single aggregation of the
+ * whole range. An optional {@link ChangeSetFilter} restricts the output to chosen modules and paths.
+ *
+ * When no start is given, the range starts where the last successful generation ended, as recorded in a watermark
+ * file, or one day before its end if nothing has been generated yet, as the menu action always did. The watermark
+ * moves to the end of the range once the change set is sealed.
+ *
+ * When a {@link DirtyNidSet} is given, a generation with no start writes exactly the entities in it instead of
+ * aggregating a time range, stamps first, then concepts, patterns and semantics. The set is drained when the
+ * generation starts, so entities changed while it runs are left for the next one, and the drained nids are dropped
+ * from it once the change set is sealed; if the generation fails, they are put back. Nids the filter rejects are
+ * dropped; a later change that makes one pass publishes it again. Until a generation has ended after the set
+ * started tracking, generations fall back to the time range, since the set does not know what changed before it
+ * existed.
+ */
+public class ChangeSetGenerator extends TrackingCallable<Optional<Path>> {
+    private static final int WRITE_BATCH_SIZE = 1024;
+    private final EntityService entityService;
+    private final Path changeSetFolder;
+    private final Path watermarkFile;
+    private final Instant from;
+    private final Instant to;
+    private final ChangeSetFilter filter;
+    private final ChangeSetWriterOptions options;
+    private final int sliceCount;
+    private final DirtyNidSet dirtyNids;
+    private final Path dirtyNidsFile;
+
+    /**
+     * Creates a generation of the entities changed in a time range.
+     *
+     * @param entityService   the EntityService the entities are read from
+     * @param changeSetFolder the folder the change set is written to
+     * @param watermarkFile   the file recording where the last generation ended
+     * @param from            the start of the range, or {@code null} to start where the last generation ended
+     * @param to              the end of the range
+     * @param filter          the filter entities must pass, or {@code null} to write every entity in the range
+     * @param options         the options used to write the change set
+     * @param sliceCount      the number of slices aggregated in parallel
+     * @throws IllegalArgumentException if sliceCount is less than one
+     */
+    public ChangeSetGenerator(EntityService entityService, Path changeSetFolder, Path watermarkFile, Instant from,
+                              Instant to, ChangeSetFilter filter, ChangeSetWriterOptions options, int sliceCount) {
+        this(entityService, changeSetFolder, watermarkFile, from, to, filter, options, sliceCount, null, null);
+    }
+
+    /**
+     * Creates a generation that, when no start is given, writes the entities in a set of changed nids.
+     *
+     * @param dirtyNids     the nids changed since the last generation, or {@code null} to aggregate a time range
+     * @param dirtyNidsFile the file the set is saved to
+     * @see #ChangeSetGenerator(EntityService, Path, Path, Instant, Instant, ChangeSetFilter, ChangeSetWriterOptions,
+     * int)
+     */
+    ChangeSetGenerator(EntityService entityService, Path changeSetFolder, Path watermarkFile, Instant from,
+                       Instant to, ChangeSetFilter filter, ChangeSetWriterOptions options, int sliceCount,
+                       DirtyNidSet dirtyNids, Path dirtyNidsFile) {
+        super(false, true);
+        if (sliceCount < 1) {
+            throw new IllegalArgumentException("Slice count must be positive: " + sliceCount);
+        }
+        this.entityService = entityService;
+        this.changeSetFolder = changeSetFolder;
+        this.watermarkFile = watermarkFile;
+        this.from = from;
+        this.to = to;
+        this.filter = filter;
+        // Batches are written in order, so they must not be held back in the coalescing window.
+        this.options = options.withJournalRoot(null).withDeltaMode(DeltaMode.OFF).withCoalesceWindowMillis(0);
+        this.sliceCount = sliceCount;
+        this.dirtyNids = from == null ? dirtyNids : null;
+        this.dirtyNidsFile = dirtyNidsFile;
+        updateTitle("Generating change sets");
+        updateMessage("Executing " + this.getClass().getSimpleName());
+        updateProgress(-1, -1);
+    }
+
+    /**
+     * Aggregates the slices, merges them into one change set, and advances the watermark.
+     *
+     * @return the generated change set, or empty if no entities changed in the range
+     * @throws Exception if the slices cannot be aggregated or the change set cannot be written
+     */
+    @Override
+    protected Optional<Path> compute() throws Exception {
+        if (dirtyNids == null) {
+            return generateRange();
+        }
+        // The set holds every change since the last generation only if it was tracking before that generation.
+        OptionalLong watermark = readWatermark();
+        boolean tracked = watermark.isPresent() && dirtyNids.trackingSinceMillis() <= watermark.getAsLong();
+        int[] drainedNids = dirtyNids.drain();
+        Optional<Path> generatedFile;
+        try {
+            generatedFile = tracked ? generateDirty(drainedNids) : generateRange();
+        } catch (Exception e) {
+            dirtyNids.restoreDrain();
+            throw e;
+        }
+        dirtyNids.completeDrain();
+        dirtyNids.save(dirtyNidsFile);
+        return generatedFile;
+    }
+
+    /**
+     * Writes the drained nids, ordered by entity type, and advances the watermark to the end of the range, so that
+     * a later generation of a time range continues from here.
+     */
+    private Optional<Path> generateDirty(int[] drainedNids) throws IOException {
+        updateMessage("Sorting " + NumberFormat.getInstance().format(drainedNids.length) + " changed entities");
+        MutableIntList[] typeNids = new MutableIntList[ChangeSetRecordType.values().length];
+        for (int i = 0; i < typeNids.length; i++) {
+            typeNids[i] = IntLists.mutable.empty();
+        }
+        for (int nid : drainedNids) {
+            if (filter != null && !filter.test(nid)) {
+                continue;
+            }
+            entityService.getEntity(nid).ifPresent(entity ->
+                    typeNids[ChangeSetRecordType.of(entity).ordinal()].add(nid));
+        }
+        // Record types are declared stamps first, so entities follow the stamps and concepts they refer to.
+        MutableIntList orderedNids = IntLists.mutable.empty();
+        for (MutableIntList nids : typeNids) {
+            orderedNids.addAll(nids);
+        }
+
+        Optional<Path> generatedFile = Optional.empty();
+        if (orderedNids.notEmpty()) {
+            generatedFile = Optional.of(writeChangeSet(orderedNids.toArray()));
+        }
+        writeWatermark(to.toEpochMilli());
+        updateTitle("Generated " + NumberFormat.getInstance().format(orderedNids.size()) + " changed entities");
+        updateMessage("In " + durationString());
+        return generatedFile;
+    }
+
+    private Optional<Path> generateRange() throws Exception {
+        long endMillis = to.toEpochMilli();
+        long startMillis = from != null ? from.toEpochMilli() :
+                readWatermark().orElse(to.minus(1, ChronoUnit.DAYS).toEpochMilli());
+        if (endMillis <= startMillis) {
+            updateTitle("No time range to generate");
+            updateMessage("In " + durationString());
+            return Optional.empty();
+        }
+
+        List<MutableIntList> sliceNids = aggregateSlices(startMillis, endMillis);
+
+        MutableIntSet writtenNids = IntSets.mutable.empty();
+        MutableIntList mergedNids = IntLists.mutable.empty();
+        for (MutableIntList nids : sliceNids) {
+            nids.forEach(nid -> {
+                if (writtenNids.add(nid) && (filter == null || filter.test(nid))) {
+                    mergedNids.add(nid);
+                }
+            });
+        }
+
+        Optional<Path> generatedFile = Optional.empty();
+        if (mergedNids.notEmpty()) {
+            generatedFile = Optional.of(writeChangeSet(mergedNids.toArray()));
+        }
+        writeWatermark(endMillis);
+        updateTitle("Generated " + NumberFormat.getInstance().format(mergedNids.size()) + " entities from "
+                + sliceCount + " slices");
+        updateMessage("In " + durationString());
+        return generatedFile;
+    }
+
+    private List<MutableIntList> aggregateSlices(long startMillis, long endMillis) {
+        long sliceMillis = Math.max(1, Math.ceilDiv(endMillis - startMillis, sliceCount));
+        List<CompletableFuture<MutableIntList>> slices = new ArrayList<>(sliceCount);
+        AtomicInteger completedSlices = new AtomicInteger();
+        updateMessage("Aggregating " + sliceCount + " slices");
+        for (long sliceStart = startMillis; sliceStart < endMillis; sliceStart += sliceMillis) {
+            long sliceEnd = Math.min(endMillis, sliceStart + sliceMillis);
+            TemporalEntityAggregator aggregator = new TemporalEntityAggregator(sliceStart, sliceEnd);
+            slices.add(CompletableFuture.supplyAsync(() -> {
+                MutableIntList nids = IntLists.mutable.empty();
+                aggregator.aggregate(nids::add);
+                updateProgress(completedSlices.incrementAndGet(), sliceCount);
+                return nids;
+            }, TinkExecutor.threadPool()));
+        }
+        return slices.stream().map(CompletableFuture::join).toList();
+    }
+
+    private Path writeChangeSet(int[] nids) throws IOException {
+        LocalDateTime now = LocalDateTime.now();
+        File changeSetFile = options.partitionFolder(changeSetFolder, now)
+                .resolve(ChangeSetWriterManager.changeSetFileName(now)).toFile();
+        ChangeSetWriter writer = new ChangeSetWriter(entityService, changeSetFile, options);
+        writer.setVersionFilter(filter);
+        updateMessage("Writing " + NumberFormat.getInstance().format(nids.length) + " entities");
+        try {
+            int[] batch = new int[WRITE_BATCH_SIZE];
+            for (int offset = 0; offset < nids.length; offset += WRITE_BATCH_SIZE) {
+                int count = Math.min(WRITE_BATCH_SIZE, nids.length - offset);
+                System.arraycopy(nids, offset, batch, 0, count);
+                writer.writeAll(batch, count);
+                updateProgress(offset + count, nids.length);
+            }
+        } catch (RuntimeException e) {
+            writer.discard();
+            throw e;
+        }
+        writer.close();
+        return writer.changeSetFile().toPath();
+    }
+
+    private OptionalLong readWatermark() throws IOException {
+        if (!Files.exists(watermarkFile)) {
+            return OptionalLong.empty();
+        }
+        return OptionalLong.of(Long.parseLong(Files.readString(watermarkFile, StandardCharsets.UTF_8).trim()));
+    }
+
+    private void writeWatermark(long endMillis) throws IOException {
+        Files.createDirectories(watermarkFile.getParent());
+        Path tempFile = watermarkFile.resolveSibling(watermarkFile.getFileName() + ".tmp");
+        Files.writeString(tempFile, Long.toString(endMillis), StandardCharsets.UTF_8);
+        Files.move(tempFile, watermarkFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
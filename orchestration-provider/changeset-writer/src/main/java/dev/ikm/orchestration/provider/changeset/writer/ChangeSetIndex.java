@@ -0,0 +1,236 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.id.PublicId;
+import dev.ikm.tinkar.common.id.PublicIds;
+import dev.ikm.tinkar.schema.TinkarMsg;
+import org.eclipse.collections.api.factory.primitive.IntIntMaps;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * The offset index of a change set, which locates a record by public id or nid so that tooling and loaders can
+ * read it, or learn that the change set does not hold it, without parsing the whole change set.
+ *
+ * The index is written to the {@value #INDEX_ENTRY} entry and named in the manifest under
+ * {@link #MANIFEST_INDEX}. For every entry that holds records it gives the record count and uncompressed size,
+ * so readers can skip whole entries. In the {@link ChangeSetLayout#BLOCKED} layout every block is its own entry,
+ * which makes each block a restart point where inflation can begin; a record is then reached by inflating at most
+ * one block. For every record the index gives its entry, its uncompressed offset within the entry, its type, the
+ * nid it had in the writing datastore and its public id.
+ */
+public class ChangeSetIndex {
+    /**
+     * The name of the entry holding the index.
+     */
+    public static final String INDEX_ENTRY = "entities.idx";
+    /**
+     * The manifest attribute that names the index entry, present only in change sets that have an index.
+     */
+    public static final String MANIFEST_INDEX = "Index-Entry";
+    static final int MAGIC = 0x43534958;
+    /**
+     * The index format written. Version 1 stored the UUID count of a public id in one byte, which cannot hold
+     * public ids with more than 255 UUIDs; version 2 stores it as an int. Both are read.
+     */
+    static final int VERSION = 2;
+    private static final int BYTE_UUID_COUNT_VERSION = 1;
+
+    private final List<IndexedEntry> entries;
+    private final int[] recordEntries;
+    private final long[] recordOffsets;
+    private final byte[] recordTypes;
+    private final int[] recordNids;
+    private final PublicId[] recordPublicIds;
+    private final Map<UUID, Integer> recordsByUuid = new HashMap<>();
+    private final MutableIntIntMap recordsByNid = IntIntMaps.mutable.empty();
+
+    private ChangeSetIndex(DataInputStream dataInput) throws IOException {
+        if (dataInput.readInt() != MAGIC) {
+            throw new ZipException("Not a change set index");
+        }
+        int version = dataInput.readInt();
+        if (version != VERSION && version != BYTE_UUID_COUNT_VERSION) {
+            throw new ZipException("Unsupported change set index version: " + version);
+        }
+        int entryCount = dataInput.readInt();
+        List<IndexedEntry> entryList = new ArrayList<>(entryCount);
+        for (int i = 0; i < entryCount; i++) {
+            entryList.add(new IndexedEntry(dataInput.readUTF(), dataInput.readInt(), dataInput.readLong()));
+        }
+        this.entries = Collections.unmodifiableList(entryList);
+        int recordCount = dataInput.readInt();
+        this.recordEntries = new int[recordCount];
+        this.recordOffsets = new long[recordCount];
+        this.recordTypes = new byte[recordCount];
+        this.recordNids = new int[recordCount];
+        this.recordPublicIds = new PublicId[recordCount];
+        for (int i = 0; i < recordCount; i++) {
+            recordEntries[i] = dataInput.readInt();
+            recordOffsets[i] = dataInput.readLong();
+            recordTypes[i] = dataInput.readByte();
+            recordNids[i] = dataInput.readInt();
+            int uuidCount = version == BYTE_UUID_COUNT_VERSION ? dataInput.readUnsignedByte() : dataInput.readInt();
+            if (uuidCount > 0) {
+                UUID[] uuids = new UUID[uuidCount];
+                for (int j = 0; j < uuidCount; j++) {
+                    uuids[j] = new UUID(dataInput.readLong(), dataInput.readLong());
+                    recordsByUuid.put(uuids[j], i);
+                }
+                recordPublicIds[i] = PublicIds.of(uuids);
+            }
+            recordsByNid.put(recordNids[i], i);
+        }
+    }
+
+    /**
+     * Reads the index of a change set.
+     *
+     * @param zipFile the open change set
+     * @return the index, or empty if the change set was written without one
+     * @throws IOException if the index cannot be read
+     */
+    public static Optional<ChangeSetIndex> read(ZipFile zipFile) throws IOException {
+        ZipEntry indexEntry = zipFile.getEntry(INDEX_ENTRY);
+        if (indexEntry == null) {
+            return Optional.empty();
+        }
+        try (DataInputStream dataInput =
+                     new DataInputStream(new BufferedInputStream(zipFile.getInputStream(indexEntry)))) {
+            return Optional.of(new ChangeSetIndex(dataInput));
+        }
+    }
+
+    /**
+     * Returns the entries that hold records, in the order they were first written to.
+     *
+     * @return the indexed entries
+     */
+    public List<IndexedEntry> entries() {
+        return entries;
+    }
+
+    /**
+     * Returns the number of records in the change set.
+     *
+     * @return the record count
+     */
+    public int recordCount() {
+        return recordEntries.length;
+    }
+
+    /**
+     * Returns a record by its position in the order records were written.
+     *
+     * @param index the position of the record
+     * @return the record
+     * @throws IndexOutOfBoundsException if there is no record at the position
+     */
+    public IndexedRecord record(int index) {
+        return new IndexedRecord(entries.get(recordEntries[index]).name(), recordOffsets[index],
+                ChangeSetRecordType.fromCode(recordTypes[index]), recordNids[index], recordPublicIds[index]);
+    }
+
+    /**
+     * Finds the last record written for an entity with any of the UUIDs of the given public id.
+     *
+     * @param publicId the public id of the entity
+     * @return the record, or empty if the change set does not hold the entity
+     */
+    public Optional<IndexedRecord> find(PublicId publicId) {
+        int found = -1;
+        for (UUID uuid : publicId.asUuidArray()) {
+            found = Math.max(found, recordsByUuid.getOrDefault(uuid, -1));
+        }
+        return found < 0 ? Optional.empty() : Optional.of(record(found));
+    }
+
+    /**
+     * Finds the last record written for the entity with the given nid. Nids are only meaningful in the datastore
+     * that wrote the change set.
+     *
+     * @param nid the nid of the entity
+     * @return the record, or empty if the change set does not hold the entity
+     */
+    public Optional<IndexedRecord> find(int nid) {
+        int found = recordsByNid.getIfAbsent(nid, -1);
+        return found < 0 ? Optional.empty() : Optional.of(record(found));
+    }
+
+    /**
+     * Reads a single record, inflating its entry only as far as the record.
+     *
+     * @param zipFile the open change set the index was read from
+     * @param record  the record to read
+     * @return the record's message
+     * @throws IOException if the record cannot be read
+     */
+    public static TinkarMsg readRecord(ZipFile zipFile, IndexedRecord record) throws IOException {
+        PublicIdDictionary dictionary = null;
+        if (RecordFormat.fromManifest(ChangeSetReader.readManifest(zipFile)) == RecordFormat.PUBLIC_ID_DICTIONARY) {
+            dictionary = PublicIdDictionary.read(zipFile);
+        }
+        return readRecord(zipFile, record, dictionary);
+    }
+
+    /**
+     * Reads a single record with a dictionary already read from the change set, so that reading many records
+     * reads the dictionary once.
+     *
+     * @param zipFile    the open change set the index was read from
+     * @param record     the record to read
+     * @param dictionary the change set's dictionary, or {@code null} if its records are plain
+     * @return the record's message
+     * @throws IOException if the record cannot be read
+     */
+    public static TinkarMsg readRecord(ZipFile zipFile, IndexedRecord record, PublicIdDictionary dictionary)
+            throws IOException {
+        ZipEntry entry = zipFile.getEntry(record.entryName());
+        if (entry == null) {
+            throw new ZipException("Missing change set entry: " + record.entryName());
+        }
+        try (InputStream entryInput = zipFile.getInputStream(entry)) {
+            entryInput.skipNBytes(record.offset());
+            if (dictionary != null) {
+                return dictionary.parseDelimitedFrom(entryInput);
+            }
+            return TinkarMsg.parseDelimitedFrom(entryInput);
+        }
+    }
+
+    /**
+     * A zip entry that holds records.
+     *
+     * @param name              the entry name
+     * @param recordCount       the number of records in the entry
+     * @param uncompressedBytes the size of the entry's records before compression
+     */
+    public record IndexedEntry(String name, int recordCount, long uncompressedBytes) {
+    }
+
+    /**
+     * The location of one record.
+     *
+     * @param entryName the zip entry that holds the record
+     * @param offset    the uncompressed offset of the record's length prefix within the entry
+     * @param type      the type of entity in the record
+     * @param nid       the nid of the entity in the datastore that wrote the change set
+     * @param publicId  the public id of the entity, or {@code null} if it was not known when written
+     */
+    public record IndexedRecord(String entryName, long offset, ChangeSetRecordType type, int nid,
+                                PublicId publicId) {
+    }
+}
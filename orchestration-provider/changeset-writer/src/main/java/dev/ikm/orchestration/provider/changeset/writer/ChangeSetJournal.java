@@ -0,0 +1,358 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only, segmented journal of the records written to one change set file.
+ *
+ * A change set zip has no central directory or manifest until it is closed, so a crash leaves it unreadable.
+ * While a {@link ChangeSetWriter} is open it also appends every record to its journal, and forces the journal
+ * to disk on a configurable cadence. Closing the change set normally deletes the journal. Any journal found at
+ * startup therefore belongs to a change set that was never sealed, and {@link #recover} rebuilds that change
+ * set from it.
+ *
+ * Each journal is a folder holding a {@value #TARGET_FILE_NAME} file, with the path of the change set it
+ * protects, and numbered segment files. Each record in a segment is a four byte payload length, a one byte
+ * {@link ChangeSetRecordType} code, the four byte nid, the payload (the delimited TinkarMsg as written to the
+ * zip) and a CRC32C of everything before it.
+ *
+ * Records written as a transaction group are bracketed by empty {@link #GROUP_BEGIN} and {@link #GROUP_COMMIT}
+ * marker records, and the journal is forced to disk at each commit. Recovery only replays a group once its commit
+ * marker is found, so a transaction is recovered whole or not at all.
+ */
+public class ChangeSetJournal implements AutoCloseable {
+    static final String TARGET_FILE_NAME = "target.path";
+    private static final String SEGMENT_SUFFIX = ".jnl";
+    private static final int HEADER_SIZE = 9;
+    private static final int MAX_PAYLOAD_SIZE = 1 << 30;
+    static final byte GROUP_BEGIN = 0x7E;
+    static final byte GROUP_COMMIT = 0x7F;
+    private static final byte[] NO_PAYLOAD = new byte[0];
+
+    private final Path journalFolder;
+    private final long syncIntervalMillis;
+    private final long segmentBytes;
+    private final byte[] header = new byte[HEADER_SIZE];
+    private final byte[] trailer = new byte[4];
+    private final CRC32C crc = new CRC32C();
+    private int segmentNumber;
+    private FileOutputStream segmentFile;
+    private BufferedOutputStream segmentOutput;
+    private long segmentSize;
+    private long lastSyncMillis = System.currentTimeMillis();
+    private boolean unsynced;
+
+    /**
+     * Creates a new journal for a change set file in its own folder under the journal root.
+     *
+     * @param journalRoot        the folder that holds all change set journals
+     * @param changeSetFile      the change set file the journal protects
+     * @param syncIntervalMillis how often appended records are forced to disk; zero forces after every record
+     * @param segmentBytes       the size at which a new segment file is started
+     * @throws IOException if the journal folder or first segment cannot be created
+     */
+    public ChangeSetJournal(Path journalRoot, Path changeSetFile, long syncIntervalMillis, long segmentBytes) throws IOException {
+        this.journalFolder = journalRoot.resolve(UUID.randomUUID().toString());
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(journalFolder);
+        Files.writeString(journalFolder.resolve(TARGET_FILE_NAME), changeSetFile.toAbsolutePath().toString(),
+                StandardCharsets.UTF_8);
+        openSegment();
+    }
+
+    /**
+     * Appends a record to the journal, forcing it to disk if the sync interval has elapsed.
+     *
+     * @param type   the type of entity in the record
+     * @param nid    the nid of the entity
+     * @param buffer the array holding the delimited TinkarMsg
+     * @param length the number of bytes of the array to append
+     * @throws IOException if the record cannot be written
+     */
+    public void append(ChangeSetRecordType type, int nid, byte[] buffer, int length) throws IOException {
+        appendRecord(type.code(), nid, buffer, length);
+        syncIfDue();
+    }
+
+    /**
+     * Marks the start of a transaction group. Records appended until {@link #commitGroup(int)} are recovered
+     * only if the group is committed.
+     *
+     * @throws IOException if the marker cannot be written
+     */
+    public void beginGroup() throws IOException {
+        appendRecord(GROUP_BEGIN, 0, NO_PAYLOAD, 0);
+    }
+
+    /**
+     * Marks the end of the transaction group started by {@link #beginGroup()}, and forces the group to disk.
+     *
+     * @param recordCount the number of records in the group
+     * @throws IOException if the marker cannot be written or the journal cannot be forced
+     */
+    public void commitGroup(int recordCount) throws IOException {
+        appendRecord(GROUP_COMMIT, recordCount, NO_PAYLOAD, 0);
+        sync();
+    }
+
+    private void appendRecord(byte code, int nid, byte[] buffer, int length) throws IOException {
+        if (segmentSize > 0 && segmentSize + length + HEADER_SIZE + trailer.length > segmentBytes) {
+            closeSegment();
+            openSegment();
+        }
+        writeInt(header, 0, length);
+        header[4] = code;
+        writeInt(header, 5, nid);
+        crc.reset();
+        crc.update(header, 0, HEADER_SIZE);
+        crc.update(buffer, 0, length);
+        writeInt(trailer, 0, (int) crc.getValue());
+        segmentOutput.write(header);
+        segmentOutput.write(buffer, 0, length);
+        segmentOutput.write(trailer);
+        segmentSize += HEADER_SIZE + length + trailer.length;
+        unsynced = true;
+    }
+
+    /**
+     * Forces appended records to disk if the sync interval has elapsed since the last sync.
+     *
+     * @throws IOException if the journal cannot be forced
+     */
+    public void syncIfDue() throws IOException {
+        if (unsynced && System.currentTimeMillis() - lastSyncMillis >= syncIntervalMillis) {
+            sync();
+        }
+    }
+
+    /**
+     * Forces all appended records to disk.
+     *
+     * @throws IOException if the journal cannot be forced
+     */
+    public void sync() throws IOException {
+        segmentOutput.flush();
+        segmentFile.getChannel().force(false);
+        lastSyncMillis = System.currentTimeMillis();
+        unsynced = false;
+    }
+
+    /**
+     * Closes the current segment, leaving the journal on disk.
+     *
+     * @throws IOException if the segment cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        if (segmentOutput != null) {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Closes and removes the journal. Called once the change set it protects has been sealed.
+     *
+     * @throws IOException if the journal cannot be removed
+     */
+    public void delete() throws IOException {
+        close();
+        deleteFolder(journalFolder);
+    }
+
+    /**
+     * Rebuilds the change set protected by every journal under the journal root, then removes the journals.
+     * Records are replayed in order up to the end of the journal or the first torn or corrupt record.
+     *
+     * @param journalRoot   the folder that holds all change set journals
+     * @param writerFactory creates the writer for a recovered change set file
+     * @return the number of change set files recovered
+     * @throws IOException if a journal cannot be read or a change set cannot be written
+     */
+    public static int recover(Path journalRoot, WriterFactory writerFactory) throws IOException {
+        if (!Files.isDirectory(journalRoot)) {
+            return 0;
+        }
+        int recoveredCount = 0;
+        List<Path> journalFolders;
+        try (Stream<Path> folders = Files.list(journalRoot)) {
+            journalFolders = folders.filter(Files::isDirectory).toList();
+        }
+        for (Path journalFolder : journalFolders) {
+            Path targetFile = journalFolder.resolve(TARGET_FILE_NAME);
+            if (Files.exists(targetFile)) {
+                Path changeSetFile = Path.of(Files.readString(targetFile, StandardCharsets.UTF_8).trim());
+                Files.createDirectories(changeSetFile.getParent());
+                try (ChangeSetWriter changeSetWriter = writerFactory.create(changeSetFile)) {
+                    replay(journalFolder, changeSetWriter::appendRecovered);
+                }
+                recoveredCount++;
+            }
+            deleteFolder(journalFolder);
+        }
+        return recoveredCount;
+    }
+
+    /**
+     * Reads every intact record of a journal, in the order written. The records of a transaction group are held
+     * back until its commit marker is read, and are dropped if the journal ends first.
+     *
+     * @param journalFolder  the folder of the journal to read
+     * @param recordConsumer receives each record
+     * @return the number of records read
+     * @throws IOException if a segment cannot be read, or the consumer fails
+     */
+    static long replay(Path journalFolder, RecordConsumer recordConsumer) throws IOException {
+        List<Path> segments;
+        try (Stream<Path> files = Files.list(journalFolder)) {
+            segments = files.filter(path -> path.getFileName().toString().endsWith(SEGMENT_SUFFIX))
+                    .sorted(Comparator.comparing(path -> path.getFileName().toString()))
+                    .toList();
+        }
+        long recordCount = 0;
+        byte[] recordHeader = new byte[HEADER_SIZE];
+        byte[] payload = new byte[8192];
+        CRC32C recordCrc = new CRC32C();
+        List<GroupRecord> openGroup = null;
+        for (Path segment : segments) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+                while (true) {
+                    try {
+                        input.readFully(recordHeader);
+                    } catch (EOFException endOfSegment) {
+                        break;
+                    }
+                    int length = readInt(recordHeader, 0);
+                    if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+                        return recordCount;
+                    }
+                    if (payload.length < length) {
+                        payload = new byte[length];
+                    }
+                    int storedCrc;
+                    try {
+                        input.readFully(payload, 0, length);
+                        storedCrc = input.readInt();
+                    } catch (EOFException tornRecord) {
+                        return recordCount;
+                    }
+                    recordCrc.reset();
+                    recordCrc.update(recordHeader, 0, HEADER_SIZE);
+                    recordCrc.update(payload, 0, length);
+                    if ((int) recordCrc.getValue() != storedCrc) {
+                        return recordCount;
+                    }
+                    byte code = recordHeader[4];
+                    int nid = readInt(recordHeader, 5);
+                    if (code == GROUP_BEGIN) {
+                        openGroup = new ArrayList<>();
+                    } else if (code == GROUP_COMMIT) {
+                        if (openGroup != null) {
+                            for (GroupRecord groupRecord : openGroup) {
+                                recordConsumer.accept(groupRecord.type(), groupRecord.nid(), groupRecord.payload(),
+                                        groupRecord.payload().length);
+                            }
+                            recordCount += openGroup.size();
+                            openGroup = null;
+                        }
+                    } else if (openGroup != null) {
+                        openGroup.add(new GroupRecord(ChangeSetRecordType.fromCode(code), nid,
+                                Arrays.copyOf(payload, length)));
+                    } else {
+                        recordConsumer.accept(ChangeSetRecordType.fromCode(code), nid, payload, length);
+                        recordCount++;
+                    }
+                }
+            }
+        }
+        return recordCount;
+    }
+
+    private void openSegment() throws IOException {
+        segmentNumber++;
+        Path segment = journalFolder.resolve(String.format("segment-%06d%s", segmentNumber, SEGMENT_SUFFIX));
+        segmentFile = new FileOutputStream(segment.toFile());
+        segmentOutput = new BufferedOutputStream(segmentFile, 1 << 16);
+        segmentSize = 0;
+    }
+
+    private void closeSegment() throws IOException {
+        sync();
+        segmentOutput.close();
+        segmentOutput = null;
+        segmentFile = null;
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+
+    /**
+     * A record of a transaction group, held until the group's commit marker is read.
+     */
+    private record GroupRecord(ChangeSetRecordType type, int nid, byte[] payload) {
+    }
+
+    /**
+     * Receives the records read from a journal.
+     */
+    @FunctionalInterface
+    interface RecordConsumer {
+        /**
+         * Accepts one record. The buffer is reused for the next record once this method returns.
+         *
+         * @param type   the type of entity in the record
+         * @param nid    the nid of the entity
+         * @param buffer the array holding the delimited TinkarMsg
+         * @param length the number of bytes of the record in the array
+         * @throws IOException if the record cannot be processed
+         */
+        void accept(ChangeSetRecordType type, int nid, byte[] buffer, int length) throws IOException;
+    }
+
+    /**
+     * Creates the writer used to rebuild a recovered change set.
+     */
+    @FunctionalInterface
+    public interface WriterFactory {
+        /**
+         * Creates a writer for the change set file, which must not itself be journaled.
+         *
+         * @param changeSetFile the change set file to rebuild
+         * @return a new writer
+         * @throws IOException if the writer cannot be created
+         */
+        ChangeSetWriter create(Path changeSetFile) throws IOException;
+    }
+}
@@ -0,0 +1,77 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.util.Locale;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * How the entity records of a change set file are arranged into zip entries.
+ *
+ * The layout is recorded in the change set manifest under {@link #MANIFEST_LAYOUT}. Change sets written before
+ * the attribute existed have no such attribute and are read as {@link #SINGLE}.
+ */
+public enum ChangeSetLayout {
+    /**
+     * Every record is written, in arrival order, to a single {@value #SINGLE_ENTRY} entry.
+     */
+    SINGLE,
+    /**
+     * Records are written to one entry per entity type ({@code stamps.proto}, {@code concepts.proto},
+     * {@code patterns.proto} and {@code semantics.proto}), so that a loader can inflate and apply the entries on
+     * several threads, stamps and concepts first. Types with no records have no entry.
+     */
+    BY_TYPE,
+    /**
+     * Records are written, in arrival order, to a sequence of {@code blocks/NNNNNN.proto} entries of about
+     * {@link ChangeSetWriterKeys#BLOCK_BYTES} each. Each block inflates independently, so with the
+     * {@link ChangeSetIndex} a reader can reach any record by inflating a single block.
+     */
+    BLOCKED;
+
+    /**
+     * The manifest attribute that records the layout of the change set entries.
+     */
+    public static final String MANIFEST_LAYOUT = "Entry-Layout";
+    /**
+     * The name of the entry that holds every record in the {@link #SINGLE} layout.
+     */
+    public static final String SINGLE_ENTRY = "entities.proto";
+    /**
+     * The prefix of the block entry names in the {@link #BLOCKED} layout.
+     */
+    public static final String BLOCK_PREFIX = "blocks/";
+
+    /**
+     * Returns the name of the entry that holds records of the given type in the {@link #BY_TYPE} layout.
+     *
+     * @param type the record type
+     * @return the entry name
+     */
+    public static String entryName(ChangeSetRecordType type) {
+        return type.name().toLowerCase(Locale.ROOT) + "s.proto";
+    }
+
+    /**
+     * Returns the name of the entry that holds the given block in the {@link #BLOCKED} layout.
+     *
+     * @param blockNumber the number of the block, starting at zero
+     * @return the entry name
+     */
+    public static String blockEntryName(int blockNumber) {
+        return String.format(Locale.ROOT, BLOCK_PREFIX + "%06d.proto", blockNumber);
+    }
+
+    /**
+     * Returns the layout recorded in a change set manifest.
+     *
+     * @param manifest the change set manifest, or {@code null} if the change set has none
+     * @return the recorded layout, or {@link #SINGLE} if none is recorded
+     */
+    public static ChangeSetLayout fromManifest(Manifest manifest) {
+        if (manifest == null) {
+            return SINGLE;
+        }
+        String layout = manifest.getMainAttributes().getValue(new Attributes.Name(MANIFEST_LAYOUT));
+        return layout == null ? SINGLE : valueOf(layout.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,83 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetLoadService;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetPartitionLayout;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
+import dev.ikm.tinkar.common.service.PluggableService;
+import dev.ikm.tinkar.entity.EntityService;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Loads the change set files in the change set folder with a {@link ChangeSetReader}.
+ *
+ * Files are loaded in name order, which is the order they were written. A file is read again only if its size
+ * has changed since it was last processed; a content-addressed file is read once, since its name already
+ * identifies its content. Change sets still being written carry the
+ * {@link ChangeSetWriter#IN_PROGRESS_SUFFIX} and are not picked up until they are sealed.
+ *
+ * After the first load, only the top of the change set folder and the {@code yyyy/MM/dd} partitions modified
+ * since the previous load started are listed, so a folder partitioned with
+ * {@link ChangeSetPartitionLayout#DAILY} is not rescanned in full on every sync.
+ */
+public class ChangeSetLoadManager implements ChangeSetLoadService {
+    private final ConcurrentMap<String, Integer> processedChangesets = new ConcurrentHashMap<>();
+    private Instant scanWatermark;
+
+    /**
+     * Reads every change set file that has not been processed at its current size.
+     *
+     * @return the number of files loaded
+     * @throws IOException if the change set folder or one of its files cannot be read
+     */
+    @Override
+    public synchronized int readChangesetFiles() throws IOException {
+        EntityService entityService = PluggableService.first(EntityService.class);
+        Instant scanStart = Instant.now();
+        List<Path> changeSetFiles = ChangeSetPartitionLayout.sealedChangeSets(
+                ChangeSetWriterService.changeSetFolder(), scanWatermark);
+        int loadedCount = 0;
+        for (Path changeSetFile : changeSetFiles) {
+            String fileName = changeSetFile.getFileName().toString();
+            int size = (int) Math.min(Files.size(changeSetFile), Integer.MAX_VALUE);
+            Integer processedSize = processedChangesets.get(fileName);
+            if (processedSize != null && (processedSize == size || ContentHash.isContentAddressed(fileName))) {
+                continue;
+            }
+            new ChangeSetReader(entityService, changeSetFile.toFile()).read();
+            processedChangesets.put(fileName, size);
+            loadedCount++;
+        }
+        scanWatermark = scanStart;
+        return loadedCount;
+    }
+
+    /**
+     * Returns the change set files processed so far, with their sizes when last processed.
+     *
+     * @return map of the filename of a change set, and the size of the change set when last processed
+     */
+    @Override
+    public ConcurrentMap<String, Integer> getProcessedChangesets() {
+        return processedChangesets;
+    }
+
+    /**
+     * Verifies change set files with a {@link ChangeSetVerifier}.
+     *
+     * @param changeSetFiles the change set files to check
+     * @return the files that are damaged, each with a description of the problem
+     */
+    @Override
+    public Map<Path, String> verify(Collection<Path> changeSetFiles) {
+        return ChangeSetVerifier.verifyAll(changeSetFiles);
+    }
+}
@@ -0,0 +1,169 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.service.TinkExecutor;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityCountSummary;
+import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.transform.TinkarSchemaToEntityTransformer;
+import dev.ikm.tinkar.schema.TinkarMsg;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Loads the entities of a change set file into the entity service.
+ *
+ * The {@link ChangeSetLayout} recorded in the manifest decides how the file is read. {@link ChangeSetLayout#SINGLE}
+ * change sets, including those written before the layout was recorded, are read sequentially from their one
+ * entry, and {@link ChangeSetLayout#BLOCKED} change sets from their blocks in order. {@link ChangeSetLayout#BY_TYPE}
+ * change sets are read in phases: stamps, then concepts and patterns in parallel, then semantics, so that entities
+ * are loaded after the stamps and concepts they reference.
+ *
+ * Records of a {@link DeltaMode#WRITER} or {@link DeltaMode#PERSISTENT} change set may hold only some of an
+ * entity's versions. Putting them into the entity service merges them with the versions already loaded, so such
+ * change sets are loaded the same way, provided the change sets they follow are loaded as well.
+ *
+ * Records of a {@link RecordFormat#PUBLIC_ID_DICTIONARY} change set are decoded with the file's
+ * {@link PublicIdDictionary}, which is read once before any entry.
+ */
+public class ChangeSetReader {
+    private final TinkarSchemaToEntityTransformer entityTransformer =
+            TinkarSchemaToEntityTransformer.getInstance();
+    private final EntityService entityService;
+    private final File changeSetFile;
+    private final LongAdder[] typeCounts = new LongAdder[ChangeSetRecordType.values().length];
+    private PublicIdDictionary publicIdDictionary;
+
+    /**
+     * Creates a reader for a sealed change set file.
+     *
+     * @param entityService the EntityService that receives the loaded entities
+     * @param changeSetFile the change set file to read
+     */
+    public ChangeSetReader(EntityService entityService, File changeSetFile) {
+        this.entityService = entityService;
+        this.changeSetFile = changeSetFile;
+        for (int i = 0; i < typeCounts.length; i++) {
+            typeCounts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Reads every entity in the change set and puts it into the entity service.
+     *
+     * @return the number of entities of each type that were loaded
+     * @throws IOException if the file cannot be read or is not a valid change set
+     */
+    public EntityCountSummary read() throws IOException {
+        try (ZipFile zipFile = new ZipFile(changeSetFile)) {
+            Manifest manifest = readManifest(zipFile);
+            publicIdDictionary = RecordFormat.fromManifest(manifest) == RecordFormat.PUBLIC_ID_DICTIONARY
+                    ? PublicIdDictionary.read(zipFile) : null;
+            switch (ChangeSetLayout.fromManifest(manifest)) {
+                case SINGLE -> readEntries(zipFile, ChangeSetLayout.SINGLE_ENTRY);
+                case BY_TYPE -> {
+                    readEntries(zipFile, ChangeSetLayout.entryName(ChangeSetRecordType.STAMP));
+                    readEntries(zipFile, ChangeSetLayout.entryName(ChangeSetRecordType.CONCEPT),
+                            ChangeSetLayout.entryName(ChangeSetRecordType.PATTERN));
+                    readEntries(zipFile, ChangeSetLayout.entryName(ChangeSetRecordType.SEMANTIC));
+                }
+                case BLOCKED -> {
+                    List<String> blockNames = zipFile.stream()
+                            .map(ZipEntry::getName)
+                            .filter(name -> name.startsWith(ChangeSetLayout.BLOCK_PREFIX))
+                            .toList();
+                    for (String blockName : blockNames) {
+                        readEntry(zipFile, blockName);
+                    }
+                }
+            }
+        }
+        return new EntityCountSummary(count(ChangeSetRecordType.CONCEPT), count(ChangeSetRecordType.SEMANTIC),
+                count(ChangeSetRecordType.PATTERN), count(ChangeSetRecordType.STAMP));
+    }
+
+    /**
+     * Returns the manifest of a change set, or {@code null} if it has none.
+     *
+     * @param zipFile the open change set
+     * @return the manifest, or {@code null}
+     * @throws IOException if the manifest cannot be read
+     */
+    static Manifest readManifest(ZipFile zipFile) throws IOException {
+        ZipEntry manifestEntry = zipFile.getEntry(JarFile.MANIFEST_NAME);
+        if (manifestEntry == null) {
+            return null;
+        }
+        try (InputStream manifestInput = zipFile.getInputStream(manifestEntry)) {
+            return new Manifest(manifestInput);
+        }
+    }
+
+    /**
+     * Reads the named entries concurrently, returning once all of them have been loaded. The last entry is read
+     * on the calling thread. Entries that are not present are skipped.
+     */
+    private void readEntries(ZipFile zipFile, String... entryNames) throws IOException {
+        List<CompletableFuture<Void>> entryReads = new ArrayList<>(entryNames.length);
+        for (int i = 0; i < entryNames.length - 1; i++) {
+            String entryName = entryNames[i];
+            entryReads.add(CompletableFuture.runAsync(() -> {
+                try {
+                    readEntry(zipFile, entryName);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, TinkExecutor.threadPool()));
+        }
+        readEntry(zipFile, entryNames[entryNames.length - 1]);
+        try {
+            CompletableFuture.allOf(entryReads.toArray(CompletableFuture[]::new)).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException uncheckedIOException) {
+                throw uncheckedIOException.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void readEntry(ZipFile zipFile, String entryName) throws IOException {
+        ZipEntry entry = zipFile.getEntry(entryName);
+        if (entry == null) {
+            return;
+        }
+        try (InputStream entryInput = new BufferedInputStream(zipFile.getInputStream(entry))) {
+            TinkarMsg pbTinkarMsg;
+            while ((pbTinkarMsg = nextMessage(entryInput)) != null) {
+                entityTransformer.transform(pbTinkarMsg, this::putEntity, this::putEntity);
+            }
+        }
+    }
+
+    private TinkarMsg nextMessage(InputStream entryInput) throws IOException {
+        if (publicIdDictionary != null) {
+            return publicIdDictionary.parseDelimitedFrom(entryInput);
+        }
+        return TinkarMsg.parseDelimitedFrom(entryInput);
+    }
+
+    private void putEntity(Entity<?> entity) {
+        entityService.putEntity(entity);
+        typeCounts[ChangeSetRecordType.of(entity).ordinal()].increment();
+    }
+
+    private long count(ChangeSetRecordType type) {
+        return typeCounts[type.ordinal()].sum();
+    }
+}
@@ -0,0 +1,59 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.entity.ConceptEntity;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.PatternEntity;
+import dev.ikm.tinkar.entity.SemanticEntity;
+import dev.ikm.tinkar.entity.StampEntity;
+
+/**
+ * The kind of entity held by a change set record.
+ */
+public enum ChangeSetRecordType {
+    STAMP,
+    CONCEPT,
+    PATTERN,
+    SEMANTIC;
+
+    private static final ChangeSetRecordType[] VALUES = values();
+
+    /**
+     * Returns the record type for an entity.
+     *
+     * @param entity the entity
+     * @return the record type
+     * @throws IllegalStateException if the entity is not a stamp, concept, pattern or semantic
+     */
+    public static ChangeSetRecordType of(Entity<?> entity) {
+        return switch (entity) {
+            case StampEntity<?> stampEntity -> STAMP;
+            case ConceptEntity<?> conceptEntity -> CONCEPT;
+            case PatternEntity<?> patternEntity -> PATTERN;
+            case SemanticEntity<?> semanticEntity -> SEMANTIC;
+            default -> throw new IllegalStateException("Unexpected value: " + entity);
+        };
+    }
+
+    /**
+     * Returns the record type written with the given code.
+     *
+     * @param code the code returned by {@link #code()}
+     * @return the record type
+     * @throws IllegalArgumentException if the code is not a valid record type code
+     */
+    public static ChangeSetRecordType fromCode(int code) {
+        if (code < 0 || code >= VALUES.length) {
+            throw new IllegalArgumentException("Unknown change set record type code: " + code);
+        }
+        return VALUES[code];
+    }
+
+    /**
+     * Returns the single byte code that identifies this record type on disk.
+     *
+     * @return the record type code
+     */
+    public byte code() {
+        return (byte) ordinal();
+    }
+}
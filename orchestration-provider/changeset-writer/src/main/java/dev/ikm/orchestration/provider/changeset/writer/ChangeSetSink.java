@@ -0,0 +1,40 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.entity.Entity;
+
+import java.io.IOException;
+
+/**
+ * A destination, besides the local change set folder, for the records written by the
+ * {@link ChangeSetWriterManager}, such as an audit archive or a replication socket.
+ *
+ * Sinks receive the records the manager's writer has already fetched and serialized, so adding a sink does not
+ * add an entity fetch or transform per nid. Each sink is called from its own thread, fed through its own buffer,
+ * so a slow sink does not hold up the others. See {@link ChangeSetWriterManager#addSink}.
+ */
+public interface ChangeSetSink extends AutoCloseable {
+    /**
+     * Writes one record.
+     *
+     * @param entity the entity the record was serialized from
+     * @param record the varint length prefix followed by the serialized TinkarMsg; the sink must not modify it
+     * @throws IOException if the record cannot be written
+     */
+    void write(Entity<?> entity, byte[] record) throws IOException;
+
+    /**
+     * Called when the sink's buffer is empty, so that the sink can flush or seal what it has written.
+     *
+     * @throws IOException if the sink cannot flush
+     */
+    default void idle() throws IOException {
+    }
+
+    /**
+     * Writes out anything the sink still holds and releases its resources.
+     *
+     * @throws IOException if the sink cannot be closed
+     */
+    @Override
+    void close() throws IOException;
+}
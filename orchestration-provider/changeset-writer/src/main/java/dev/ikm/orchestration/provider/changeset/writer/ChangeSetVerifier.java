@@ -0,0 +1,374 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.service.TinkExecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks sealed change set files for damage without loading them, so that a corrupt file can be rejected before it
+ * is shared rather than found halfway through an import.
+ *
+ * Every entry is inflated and checked against the CRC32C recorded for it in the manifest by {@link EntryChecksums},
+ * or against the zip's own CRC32 for entries and change sets written without one. The record entries are also
+ * checked against the manifest's record digest, when present, and their length-prefixed records must end exactly
+ * at the end of each entry.
+ *
+ * Files are read through a memory mapping and their zip directory is parsed in place, so verifying a file costs
+ * little more than inflating it. Files that need zip64 extensions, or are too large to map in one buffer, are read
+ * through a {@link ZipFile} instead. {@link #verifyAll(Collection)} checks many files in parallel.
+ */
+public class ChangeSetVerifier {
+    private static final int END_OF_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int DIRECTORY_ENTRY_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int END_OF_DIRECTORY_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final long ZIP64_MARKER = 0xFFFFFFFFL;
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private ChangeSetVerifier() {
+    }
+
+    /**
+     * Verifies several change set files in parallel on the thread pool.
+     *
+     * @param changeSetFiles the files to verify
+     * @return the files that failed verification, each with a description of the problem, in the order given
+     */
+    public static Map<Path, String> verifyAll(Collection<Path> changeSetFiles) {
+        List<CompletableFuture<Optional<String>>> verifications = new ArrayList<>(changeSetFiles.size());
+        for (Path changeSetFile : changeSetFiles) {
+            verifications.add(CompletableFuture.supplyAsync(() -> verify(changeSetFile), TinkExecutor.threadPool()));
+        }
+        Map<Path, String> problems = new LinkedHashMap<>();
+        int i = 0;
+        for (Path changeSetFile : changeSetFiles) {
+            verifications.get(i++).join().ifPresent(problem -> problems.put(changeSetFile, problem));
+        }
+        return problems;
+    }
+
+    /**
+     * Verifies one change set file.
+     *
+     * @param changeSetFile the file to verify
+     * @return a description of the problem, or empty if the file is intact
+     */
+    public static Optional<String> verify(Path changeSetFile) {
+        try (FileChannel channel = FileChannel.open(changeSetFile, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return verifyWithZipFile(changeSetFile);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            Optional<List<MappedEntry>> entries = readDirectory(mapped);
+            if (entries.isEmpty()) {
+                return verifyWithZipFile(changeSetFile);
+            }
+            return verifyMapped(mapped, entries.get());
+        } catch (IOException | RuntimeException | DataFormatException e) {
+            return Optional.of(e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+    }
+
+    private static Optional<String> verifyMapped(ByteBuffer mapped, List<MappedEntry> entries)
+            throws IOException, DataFormatException {
+        Manifest manifest = null;
+        for (MappedEntry entry : entries) {
+            if (entry.name().equals(JarFile.MANIFEST_NAME)) {
+                ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+                inflate(mapped, entry, chunk -> manifestBytes.write(chunk.array(), chunk.position(), chunk.remaining()));
+                manifest = new Manifest(new ByteArrayInputStream(manifestBytes.toByteArray()));
+            }
+        }
+        EntryVerification verification = new EntryVerification(manifest);
+        for (MappedEntry entry : entries) {
+            EntryCheck entryCheck = verification.startEntry(entry.name(), entry.crc32());
+            inflate(mapped, entry, entryCheck::update);
+            Optional<String> problem = entryCheck.finish(entry.uncompressedSize());
+            if (problem.isPresent()) {
+                return problem;
+            }
+        }
+        return verification.finish();
+    }
+
+    private static Optional<String> verifyWithZipFile(Path changeSetFile) throws IOException {
+        try (ZipFile zipFile = new ZipFile(changeSetFile.toFile())) {
+            EntryVerification verification = new EntryVerification(ChangeSetReader.readManifest(zipFile));
+            Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+            byte[] chunk = new byte[CHUNK_SIZE];
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry zipEntry = zipEntries.nextElement();
+                EntryCheck entryCheck = verification.startEntry(zipEntry.getName(), zipEntry.getCrc());
+                try (InputStream entryInput = zipFile.getInputStream(zipEntry)) {
+                    int read;
+                    while ((read = entryInput.read(chunk)) != -1) {
+                        entryCheck.update(ByteBuffer.wrap(chunk, 0, read));
+                    }
+                }
+                Optional<String> problem = entryCheck.finish(zipEntry.getSize());
+                if (problem.isPresent()) {
+                    return problem;
+                }
+            }
+            return verification.finish();
+        }
+    }
+
+    /**
+     * Reads the central directory of a mapped zip file.
+     *
+     * @return the entries in directory order, or empty if the file uses zip64 extensions
+     * @throws IOException if the directory is missing or damaged
+     */
+    private static Optional<List<MappedEntry>> readDirectory(ByteBuffer mapped) throws IOException {
+        int endOfDirectory = -1;
+        int searchLimit = Math.max(0, mapped.limit() - END_OF_DIRECTORY_SIZE - MAX_COMMENT_SIZE);
+        for (int position = mapped.limit() - END_OF_DIRECTORY_SIZE; position >= searchLimit; position--) {
+            if (mapped.getInt(position) == END_OF_DIRECTORY_SIGNATURE) {
+                endOfDirectory = position;
+                break;
+            }
+        }
+        if (endOfDirectory < 0) {
+            throw new IOException("No zip end of central directory record");
+        }
+        int entryCount = Short.toUnsignedInt(mapped.getShort(endOfDirectory + 10));
+        long directoryOffset = Integer.toUnsignedLong(mapped.getInt(endOfDirectory + 16));
+        if (entryCount == 0xFFFF || directoryOffset == ZIP64_MARKER) {
+            return Optional.empty();
+        }
+        List<MappedEntry> entries = new ArrayList<>(entryCount);
+        int position = (int) directoryOffset;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + 46 > endOfDirectory || mapped.getInt(position) != DIRECTORY_ENTRY_SIGNATURE) {
+                throw new IOException("Damaged zip central directory at entry " + i);
+            }
+            int method = Short.toUnsignedInt(mapped.getShort(position + 10));
+            long crc32 = Integer.toUnsignedLong(mapped.getInt(position + 16));
+            long compressedSize = Integer.toUnsignedLong(mapped.getInt(position + 20));
+            long uncompressedSize = Integer.toUnsignedLong(mapped.getInt(position + 24));
+            int nameLength = Short.toUnsignedInt(mapped.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(mapped.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(mapped.getShort(position + 32));
+            long localHeaderOffset = Integer.toUnsignedLong(mapped.getInt(position + 42));
+            if (compressedSize == ZIP64_MARKER || uncompressedSize == ZIP64_MARKER
+                    || localHeaderOffset == ZIP64_MARKER) {
+                return Optional.empty();
+            }
+            byte[] name = new byte[nameLength];
+            mapped.get(position + 46, name);
+            entries.add(new MappedEntry(new String(name, StandardCharsets.UTF_8), method, crc32,
+                    compressedSize, uncompressedSize, dataOffset(mapped, localHeaderOffset)));
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+        return Optional.of(entries);
+    }
+
+    private static int dataOffset(ByteBuffer mapped, long localHeaderOffset) throws IOException {
+        int position = (int) localHeaderOffset;
+        if (position + 30 > mapped.limit() || mapped.getInt(position) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Damaged zip local header at offset " + localHeaderOffset);
+        }
+        int nameLength = Short.toUnsignedInt(mapped.getShort(position + 26));
+        int extraLength = Short.toUnsignedInt(mapped.getShort(position + 28));
+        return position + 30 + nameLength + extraLength;
+    }
+
+    /**
+     * Passes the uncompressed bytes of a mapped entry to the consumer, a chunk at a time.
+     */
+    private static void inflate(ByteBuffer mapped, MappedEntry entry, ChunkConsumer consumer)
+            throws IOException, DataFormatException {
+        if (entry.dataOffset() + entry.compressedSize() > mapped.limit()) {
+            throw new IOException("Truncated zip entry " + entry.name());
+        }
+        ByteBuffer compressed = mapped.slice(entry.dataOffset(), (int) entry.compressedSize());
+        byte[] chunk = new byte[CHUNK_SIZE];
+        if (entry.method() == ZipEntry.STORED) {
+            while (compressed.hasRemaining()) {
+                int length = Math.min(chunk.length, compressed.remaining());
+                compressed.get(chunk, 0, length);
+                consumer.accept(ByteBuffer.wrap(chunk, 0, length));
+            }
+            return;
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            while (!inflater.finished()) {
+                int length = inflater.inflate(chunk);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated zip entry " + entry.name());
+                }
+                consumer.accept(ByteBuffer.wrap(chunk, 0, length));
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * A zip entry located in a mapped change set file.
+     */
+    private record MappedEntry(String name, int method, long crc32, long compressedSize, long uncompressedSize,
+                               int dataOffset) {
+    }
+
+    @FunctionalInterface
+    private interface ChunkConsumer {
+        void accept(ByteBuffer chunk) throws IOException;
+    }
+
+    /**
+     * The checks that span the entries of one change set: the record digest and the entry checksums recorded in
+     * its manifest.
+     */
+    private static final class EntryVerification {
+        private final Manifest manifest;
+        private final String expectedDigest;
+        private final MessageDigest recordDigest;
+
+        EntryVerification(Manifest manifest) {
+            this.manifest = manifest;
+            this.expectedDigest = manifest == null ? null :
+                    manifest.getMainAttributes().getValue(EntryChecksums.MANIFEST_RECORD_DIGEST);
+            try {
+                this.recordDigest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        EntryCheck startEntry(String name, long zipCrc32) {
+            boolean recordEntry = !name.equals(JarFile.MANIFEST_NAME) && !name.equals(ChangeSetIndex.INDEX_ENTRY)
+                    && !name.equals(PublicIdDictionary.DICTIONARY_ENTRY) && !name.endsWith("/");
+            Attributes entryAttributes = manifest == null ? null : manifest.getAttributes(name);
+            String crc32c = entryAttributes == null ? null :
+                    entryAttributes.getValue(EntryChecksums.MANIFEST_ENTRY_CRC32C);
+            return crc32c != null ?
+                    new EntryCheck(name, new CRC32C(), Long.parseLong(crc32c, 16), "CRC32C",
+                            recordEntry ? recordDigest : null) :
+                    new EntryCheck(name, new CRC32(), zipCrc32, "CRC32", recordEntry ? recordDigest : null);
+        }
+
+        Optional<String> finish() {
+            if (expectedDigest == null) {
+                return Optional.empty();
+            }
+            String actualDigest = "sha-256:" + HexFormat.of().formatHex(recordDigest.digest());
+            return actualDigest.equals(expectedDigest) ? Optional.empty() :
+                    Optional.of("Record digest mismatch: expected " + expectedDigest + " but was " + actualDigest);
+        }
+    }
+
+    /**
+     * Checks one entry as its uncompressed bytes stream past: its checksum, its size and, for record entries, that
+     * its length-prefixed records end exactly at the end of the entry.
+     */
+    private static final class EntryCheck {
+        private final String name;
+        private final Checksum checksum;
+        private final long expectedChecksum;
+        private final String checksumName;
+        private final MessageDigest recordDigest;
+        private long size;
+        private long recordRemaining;
+        private int prefixValue;
+        private int prefixShift;
+        private boolean inPrefix;
+
+        EntryCheck(String name, Checksum checksum, long expectedChecksum, String checksumName,
+                   MessageDigest recordDigest) {
+            this.name = name;
+            this.checksum = checksum;
+            this.expectedChecksum = expectedChecksum;
+            this.checksumName = checksumName;
+            this.recordDigest = recordDigest;
+        }
+
+        void update(ByteBuffer chunk) throws IOException {
+            size += chunk.remaining();
+            if (recordDigest != null) {
+                frameRecords(chunk.duplicate());
+                recordDigest.update(chunk.duplicate());
+            }
+            checksum.update(chunk);
+        }
+
+        private void frameRecords(ByteBuffer chunk) throws IOException {
+            while (chunk.hasRemaining()) {
+                if (recordRemaining > 0) {
+                    int skip = (int) Math.min(recordRemaining, chunk.remaining());
+                    chunk.position(chunk.position() + skip);
+                    recordRemaining -= skip;
+                    continue;
+                }
+                byte b = chunk.get();
+                if (!inPrefix) {
+                    inPrefix = true;
+                    prefixValue = 0;
+                    prefixShift = 0;
+                }
+                prefixValue |= (b & 0x7F) << prefixShift;
+                prefixShift += 7;
+                if ((b & 0x80) == 0) {
+                    inPrefix = false;
+                    if (prefixValue < 0) {
+                        throw new IOException("Invalid record length in " + name);
+                    }
+                    recordRemaining = prefixValue;
+                } else if (prefixShift > 28) {
+                    throw new IOException("Invalid record length in " + name);
+                }
+            }
+        }
+
+        Optional<String> finish(long expectedSize) {
+            if (size != expectedSize) {
+                return Optional.of(name + " is " + size + " bytes, but the zip directory records " + expectedSize);
+            }
+            if (checksum.getValue() != expectedChecksum) {
+                return Optional.of(checksumName + " mismatch in " + name + ": expected "
+                        + String.format("%08x", expectedChecksum) + " but was "
+                        + String.format("%08x", checksum.getValue()));
+            }
+            if (recordDigest != null && (recordRemaining > 0 || inPrefix)) {
+                return Optional.of("Truncated record at the end of " + name);
+            }
+            return Optional.empty();
+        }
+    }
+}
@@ -1,7 +1,8 @@
 package dev.ikm.orchestration.provider.changeset.writer;
 
+import com.google.protobuf.CodedOutputStream;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterBackend;
 import dev.ikm.tinkar.common.id.PublicId;
-import dev.ikm.tinkar.common.service.PrimitiveData;
 import dev.ikm.tinkar.common.util.broadcast.Subscriber;
 import dev.ikm.tinkar.common.util.time.DateTimeUtil;
 import dev.ikm.tinkar.entity.*;
@@ -10,24 +11,43 @@ import dev.ikm.tinkar.entity.aggregator.EntityAggregator;
 import dev.ikm.tinkar.entity.transform.EntityToTinkarSchemaTransformer;
 import dev.ikm.tinkar.schema.TinkarMsg;
 import dev.ikm.tinkar.terms.TinkarTerm;
+import org.eclipse.collections.api.factory.primitive.IntLists;
+import org.eclipse.collections.api.factory.primitive.IntSets;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.set.primitive.MutableIntSet;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.LongAdder;
-import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 /**
  * The ChangeSetWriter class is responsible for writing Tinkar change sets to a file.
  */
 public class ChangeSetWriter implements Subscriber<Integer>, AutoCloseable {
 
+    private static final RecordBufferPool BUFFER_POOL = new RecordBufferPool(1024, 1 << 20);
+    /**
+     * The suffix of a change set file while it is being written. The file is renamed to its final name when
+     * it is sealed, so every file named {@code *.proto.zip} is complete.
+     */
+    public static final String IN_PROGRESS_SUFFIX = ".partial";
+
     private final EntityToTinkarSchemaTransformer entityTransformer =
             EntityToTinkarSchemaTransformer.getInstance();
 
@@ -37,17 +57,48 @@ public class ChangeSetWriter implements Subscriber<Integer>, AutoCloseable {
     protected LongAdder stampsAggregatedCount = new LongAdder();
 
     private final EntityService entityService;
-    private final File changeSetFile;
-    private final ZipOutputStream zos;
-    private final Set<PublicId> moduleList = new HashSet<>();
-    private final Set<PublicId> authorList = new HashSet<>();
+    private File changeSetFile;
+    private final File inProgressFile;
+    private final SyncFlushZipOutputStream zos;
+    private final FileChannel fileChannel;
+    private final EntryChecksums entryChecksums;
+    private final ManifestAccumulator manifestAccumulator = new ManifestAccumulator();
     private final EntityAggregator entityAggregator = new DefaultEntityAggregator();
+    private final long coalesceWindowMillis;
+    private final ChangeSetCodec codec;
+    private final int transformThreads;
+    private final int compressionLevel;
+    private final MutableIntSet pendingNids = IntSets.mutable.empty();
+    private long windowStartMillis;
+    private final long openedAtMillis = System.currentTimeMillis();
+    private long uncompressedBytes;
+    private final ChangeSetJournal journal;
+    private final ChangeSetWriterTelemetry telemetry;
+    private final CountingOutputStream compressedOutput;
+    private final ChangeSetLayout layout;
+    private final SpoolFile[] typeSpools;
+    private final long blockBytes;
+    private final IndexAccumulator indexAccumulator;
+    private final ContentHash contentHash;
+    private final DeltaMode deltaMode;
+    private final DeltaWatermarks deltaWatermarks;
+    private String currentEntryName;
+    private long currentEntryOffset;
+    private int blockNumber;
+    private long transactionCount;
+    private ChangeSetFanOut fanOut;
+    private ChangeSetFilter versionFilter;
+    private final RecordFormat recordFormat;
+    private final PublicIdDictionary publicIdDictionary;
 
     /**
      * A class for writing change sets to a file.
      *
      * The change set writer accepts an instance of EntityService and a File object representing the change set file.
-     * It creates a ZipOutputStream and a single ZIP entry named "entities.proto".
+     * It creates a ZipOutputStream with a single ZIP entry named "entities.proto", or the entries of the layout
+     * configured by {@link ChangeSetWriterKeys#ENTRY_LAYOUT}, compressed with the codec
+     * configured by {@link ChangeSetWriterKeys#COMPRESSION_CODEC} and written through the backend configured by
+     * {@link ChangeSetWriterKeys#WRITER_BACKEND}.
      *
      * @param entityService   the EntityService instance to use for writing the change set
      * @param changeSetFile   the File object representing the change set file to write to
@@ -55,49 +106,630 @@ public class ChangeSetWriter implements Subscriber<Integer>, AutoCloseable {
      * @throws IOException if an I/O error occurs while creating the change set file or the output stream
      */
     public ChangeSetWriter(EntityService entityService, File changeSetFile) throws IOException {
+        this(entityService, changeSetFile, ChangeSetWriterOptions.fromKeys());
+    }
+
+    /**
+     * A class for writing change sets to a file, using the provided options.
+     *
+     * @param entityService   the EntityService instance to use for writing the change set
+     * @param changeSetFile   the File object representing the change set file to write to
+     * @param options         the options controlling how the change set is written
+     *
+     * @throws IOException if an I/O error occurs while creating the change set file or the output stream
+     */
+    public ChangeSetWriter(EntityService entityService, File changeSetFile, ChangeSetWriterOptions options) throws IOException {
+        this(entityService, changeSetFile, options, new ChangeSetWriterTelemetry());
+    }
+
+    /**
+     * A class for writing change sets to a file, using the provided options and reporting its activity to the
+     * provided telemetry.
+     *
+     * @param entityService   the EntityService instance to use for writing the change set
+     * @param changeSetFile   the File object representing the change set file to write to
+     * @param options         the options controlling how the change set is written
+     * @param telemetry       the telemetry that accumulates this writer's counters
+     *
+     * @throws IOException if an I/O error occurs while creating the change set file or the output stream
+     */
+    public ChangeSetWriter(EntityService entityService, File changeSetFile, ChangeSetWriterOptions options,
+                           ChangeSetWriterTelemetry telemetry) throws IOException {
+        this(entityService, changeSetFile, options, telemetry, null);
+    }
+
+    /**
+     * A class for writing change sets to a file, using the provided options and telemetry, and the provided
+     * watermarks when the options call for {@link DeltaMode#PERSISTENT} records.
+     *
+     * @param entityService   the EntityService instance to use for writing the change set
+     * @param changeSetFile   the File object representing the change set file to write to
+     * @param options         the options controlling how the change set is written
+     * @param telemetry       the telemetry that accumulates this writer's counters
+     * @param sharedWatermarks the watermarks shared by successive writers, or {@code null} to track them per writer
+     *
+     * @throws IOException if an I/O error occurs while creating the change set file or the output stream
+     */
+    ChangeSetWriter(EntityService entityService, File changeSetFile, ChangeSetWriterOptions options,
+                    ChangeSetWriterTelemetry telemetry, DeltaWatermarks sharedWatermarks) throws IOException {
         this.entityService = entityService;
+        this.telemetry = telemetry;
         this.changeSetFile = changeSetFile;
-        FileOutputStream fos = new FileOutputStream(changeSetFile);
-        BufferedOutputStream bos = new BufferedOutputStream(fos);
-        this.zos = new ZipOutputStream(bos);
-        // Create a single entry
-        ZipEntry zipEntry = new ZipEntry("entities.proto");
-        zos.putNextEntry(zipEntry);
+        this.inProgressFile = new File(changeSetFile.getPath() + IN_PROGRESS_SUFFIX);
+        this.coalesceWindowMillis = options.coalesceWindowMillis();
+        this.codec = options.codec();
+        this.transformThreads = options.transformThreads();
+        this.compressionLevel = codec.deflateLevel(options.compressionLevel());
+        // Both backends write through the channel, which transaction groups force to disk.
+        this.fileChannel = FileChannel.open(inProgressFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        OutputStream fileOutput = switch (options.backend()) {
+            case STREAM -> new BufferedOutputStream(Channels.newOutputStream(fileChannel));
+            case CHANNEL -> new ChannelOutputStream(fileChannel, options.channelBufferBytes(), options.forcePolicy());
+        };
+        this.compressedOutput = new CountingOutputStream(fileOutput, telemetry);
+        this.zos = new SyncFlushZipOutputStream(compressedOutput);
+        this.zos.setLevel(compressionLevel);
+        this.entryChecksums = new EntryChecksums(zos);
+        this.journal = options.journalRoot() == null ? null :
+                new ChangeSetJournal(options.journalRoot(), changeSetFile.toPath(),
+                        options.journalSyncMillis(), options.journalSegmentBytes());
+        this.layout = options.layout();
+        this.blockBytes = options.blockBytes();
+        this.indexAccumulator = options.writeIndex() ? new IndexAccumulator() : null;
+        this.contentHash = options.contentAddressed() ? new ContentHash() : null;
+        this.deltaMode = options.deltaMode();
+        this.recordFormat = options.recordFormat();
+        this.publicIdDictionary = recordFormat == RecordFormat.PUBLIC_ID_DICTIONARY ? new PublicIdDictionary() : null;
+        this.deltaWatermarks = switch (deltaMode) {
+            case OFF -> null;
+            case WRITER -> new DeltaWatermarks();
+            case PERSISTENT -> sharedWatermarks == null ? new DeltaWatermarks() : sharedWatermarks;
+        };
+        if (layout == ChangeSetLayout.BY_TYPE) {
+            // Entries are written one at a time, so each type is spooled until the change set is sealed.
+            this.typeSpools = new SpoolFile[ChangeSetRecordType.values().length];
+        } else {
+            this.typeSpools = null;
+            // Create a single entry, or the first block
+            this.currentEntryName = layout == ChangeSetLayout.SINGLE ?
+                    ChangeSetLayout.SINGLE_ENTRY : ChangeSetLayout.blockEntryName(blockNumber);
+            ZipEntry zipEntry = new ZipEntry(currentEntryName);
+            zos.putNextEntry(zipEntry);
+            entryChecksums.startEntry(currentEntryName);
+        }
     }
 
     /**
      * Process the next native identifier received by the subscriber,
      * by writing a change set corresponding to the identified component to disk.
      *
+     * When a coalescing window is configured, the nid is added to the set of pending nids instead, and each
+     * pending nid is written once when the window closes.
+     *
      * @param nid the integer value to process
      */
     @Override
     public void onNext(Integer nid) {
-        this.entityService.getEntity(nid).ifPresent(entity -> {
-            switch (entity) {
-                case StampEntity stampEntity -> {
-                    moduleList.add(stampEntity.module().publicId());
-                    authorList.add(stampEntity.author().publicId());
-                    stampsAggregatedCount.increment();
+        if (coalesceWindowMillis > 0) {
+            addPending(nid);
+            flushIfDue();
+        } else {
+            encode(nid).ifPresent(this::append);
+        }
+    }
+
+    /**
+     * Writes a batch of nids to the change set, in the order given.
+     *
+     * When more than one transform thread is configured, the nids are fetched, transformed and serialized
+     * concurrently on the transform pool, while this thread appends the serialized records to the zip stream
+     * in batch order as each one becomes available. When a coalescing window is configured, the nids are added
+     * to the set of pending nids instead. A nid that cannot be written does not stop the rest of the batch.
+     *
+     * @param nids  the array holding the nids to write
+     * @param count the number of nids at the start of the array to write
+     * @throws EncodeFailure if some of the nids could not be written, after the others were
+     */
+    public void writeAll(int[] nids, int count) {
+        if (coalesceWindowMillis > 0) {
+            for (int i = 0; i < count; i++) {
+                addPending(nids[i]);
+            }
+            flushIfDue();
+        } else {
+            encodeAndAppend(nids, count);
+        }
+    }
+
+    /**
+     * Passes every record this writer appends for a published nid on to the fan-out's sinks as well. Records
+     * that are recovered or copied from other change sets are not passed on.
+     *
+     * @param fanOut the fan-out, or {@code null} to write to this change set only
+     */
+    void setFanOut(ChangeSetFanOut fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    /**
+     * Leaves out of every record the versions whose stamps the filter rejects, so that an entity accepted for
+     * some of its versions does not carry versions from excluded modules, paths or authors, or refer to stamps
+     * the change set does not hold.
+     *
+     * @param versionFilter the filter, or {@code null} to write every version
+     */
+    void setVersionFilter(ChangeSetFilter versionFilter) {
+        this.versionFilter = versionFilter;
+    }
+
+    /**
+     * Writes the nids of one transaction as a group, in the order given, then forces the group to disk once.
+     * Nids waiting in the coalescing window are written first, as part of the group, so they keep their place
+     * ahead of it, and the group itself bypasses the window. The caller keeps the group within one change set.
+     *
+     * When the writer is journaled, the group is bracketed by markers in the journal and the journal is forced
+     * when it ends, so the transaction is durable once this method returns, and a crash recovers it whole or not
+     * at all. Otherwise the zip entry is sync flushed and the change set file is forced, which makes the group
+     * durable in the {@link ChangeSetLayout#SINGLE} and {@link ChangeSetLayout#BLOCKED} layouts; the
+     * {@link ChangeSetLayout#BY_TYPE} layout spools records until the change set is sealed, so it needs the
+     * journal for durability. If an entity of the group cannot be written, the others are still committed as the
+     * group, and the {@link EncodeFailure} that is thrown afterward holds the nids that were left out. Must only be
+     * called by the thread that owns this writer.
+     *
+     * @param nids  the array holding the nids of the transaction
+     * @param count the number of nids at the start of the array to write
+     */
+    public void writeGroup(int[] nids, int count) {
+        int[] groupNids = nids;
+        if (!pendingNids.isEmpty()) {
+            int[] pending = pendingNids.toArray();
+            pendingNids.clear();
+            groupNids = Arrays.copyOf(pending, pending.length + count);
+            System.arraycopy(nids, 0, groupNids, pending.length, count);
+            count = groupNids.length;
+        }
+        long entityCountBefore = entityCount();
+        try {
+            if (journal != null) {
+                journal.beginGroup();
+            }
+            encodeAndAppend(groupNids, count);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            try {
+                if (journal != null) {
+                    journal.commitGroup((int) (entityCount() - entityCountBefore));
+                } else {
+                    zos.syncFlush();
+                    fileChannel.force(false);
                 }
-                case ConceptEntity conceptEntity -> conceptsAggregatedCount.increment();
-                case SemanticEntity semanticEntity -> semanticsAggregatedCount.increment();
-                case PatternEntity patternEntity -> patternsAggregatedCount.increment();
-                default -> throw new IllegalStateException("Unexpected value: " + entity);
+                transactionCount++;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
-            TinkarMsg pbTinkarMsg = entityTransformer.transform(entity);
+        }
+    }
+
+    private void addPending(int nid) {
+        if (pendingNids.isEmpty()) {
+            windowStartMillis = System.currentTimeMillis();
+        }
+        pendingNids.add(nid);
+    }
+
+    /**
+     * Writes the pending nids if the coalescing window that started with the first of them has closed, and
+     * forces the journal to disk if its sync interval has elapsed.
+     * Writers that receive no further nids rely on their owner calling this periodically.
+     */
+    public void flushIfDue() {
+        if (!pendingNids.isEmpty() && System.currentTimeMillis() - windowStartMillis >= coalesceWindowMillis) {
+            flushPending();
+        }
+        if (journal != null) {
             try {
-                pbTinkarMsg.writeDelimitedTo(zos);
+                journal.syncIfDue();
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Writes every pending nid, fetching each entity as it currently stands so that the latest change wins.
+     *
+     * @throws EncodeFailure if some of the nids could not be written; the others are written
+     */
+    public void flushPending() {
+        if (pendingNids.isEmpty()) {
+            return;
+        }
+        int[] nids = pendingNids.toArray();
+        pendingNids.clear();
+        encodeAndAppend(nids, nids.length);
+    }
+
+    /**
+     * Encodes and appends the nids in order. A nid that cannot be encoded does not stop the others: every other
+     * nid is still appended, and the failures are thrown together afterward so the caller can write them again.
+     *
+     * @throws EncodeFailure if any nid could not be encoded
+     */
+    private void encodeAndAppend(int[] nids, int count) {
+        MutableIntList failedNids = null;
+        RuntimeException failure = null;
+        if (transformThreads < 2 || count < 2) {
+            for (int i = 0; i < count; i++) {
+                try {
+                    encode(nids[i]).ifPresent(this::append);
+                } catch (RuntimeException e) {
+                    failedNids = failedNids == null ? IntLists.mutable.empty() : failedNids;
+                    failedNids.add(nids[i]);
+                    failure = addFailure(failure, e);
+                }
+            }
+        } else {
+            ExecutorService transformExecutor = TransformPool.executor(transformThreads);
+            List<CompletableFuture<Optional<EncodedEntity>>> encodedEntities = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int nid = nids[i];
+                encodedEntities.add(CompletableFuture.supplyAsync(() -> encode(nid), transformExecutor));
+            }
+            for (int i = 0; i < count; i++) {
+                try {
+                    encodedEntities.get(i).join().ifPresent(this::append);
+                } catch (CompletionException e) {
+                    failedNids = failedNids == null ? IntLists.mutable.empty() : failedNids;
+                    failedNids.add(nids[i]);
+                    failure = addFailure(failure, e.getCause());
+                }
+            }
+        }
+        if (failedNids != null) {
+            throw new EncodeFailure(failedNids.toArray(), failure);
+        }
+    }
+
+    private static RuntimeException addFailure(RuntimeException failure, Throwable cause) {
+        if (cause instanceof Error error) {
+            throw error;
+        }
+        if (failure == null) {
+            return (RuntimeException) cause;
+        }
+        failure.addSuppressed(cause);
+        return failure;
+    }
+
+    /**
+     * Fetches the identified entity, transforms it to a TinkarMsg and serializes the varint length prefix and
+     * message into a buffer taken from the record buffer pool. Safe to call from any thread.
+     *
+     * @param nid the native identifier of the entity to encode
+     * @return the encoded entity, or empty if no entity exists for the nid
+     */
+    Optional<EncodedEntity> encode(int nid) {
+        long startNanos = System.nanoTime();
+        Optional<Entity<EntityVersion>> optionalEntity = this.entityService.getEntity(nid);
+        if (optionalEntity.isEmpty()) {
+            return Optional.empty();
+        }
+        Entity<EntityVersion> entity = optionalEntity.get();
+        if (entity instanceof StampEntity<?> stampEntity) {
+            ManifestAccumulator.prefetch(stampEntity);
+        }
+        TinkarMsg pbTinkarMsg = entityTransformer.transform(entity);
+        long latestVersionTime = DeltaWatermarks.NONE;
+        ChangeSetFilter pruningFilter = versionFilter != null && versionFilter.prunesVersions() ? versionFilter : null;
+        if ((deltaWatermarks != null || pruningFilter != null) && !(entity instanceof StampEntity<?>)) {
+            long watermark = deltaWatermarks != null ? deltaWatermarks.get(nid) : DeltaWatermarks.NONE;
+            boolean[] keep = new boolean[entity.versions().size()];
+            int keepCount = 0;
+            for (int i = 0; i < keep.length; i++) {
+                EntityVersion version = entity.versions().get(i);
+                long time = version.stamp().time();
+                if (time != Long.MAX_VALUE) {
+                    latestVersionTime = Math.max(latestVersionTime, time);
+                }
+                // Uncommitted versions are written until they are committed.
+                keep[i] = (watermark == DeltaWatermarks.NONE || time > watermark || time == Long.MAX_VALUE)
+                        && (pruningFilter == null || pruningFilter.passesStamp(version.stampNid()));
+                if (keep[i]) {
+                    keepCount++;
+                }
+            }
+            if (keepCount == 0) {
+                return Optional.empty();
+            }
+            if (keepCount < keep.length) {
+                pbTinkarMsg = VersionDelta.retainVersions(pbTinkarMsg, keep);
+            }
+        }
+        int serializedSize = pbTinkarMsg.getSerializedSize();
+        int length = CodedOutputStream.computeUInt32SizeNoTag(serializedSize) + serializedSize;
+        byte[] buffer = BUFFER_POOL.acquire(length);
+        try {
+            CodedOutputStream codedOutput = CodedOutputStream.newInstance(buffer, 0, length);
+            codedOutput.writeUInt32NoTag(serializedSize);
+            pbTinkarMsg.writeTo(codedOutput);
+            codedOutput.checkNoSpaceLeft();
+        } catch (IOException e) {
+            BUFFER_POOL.release(buffer);
+            throw new UncheckedIOException(e);
+        }
+        telemetry.recordTransform(System.nanoTime() - startNanos);
+        return Optional.of(new EncodedEntity(entity, buffer, length, latestVersionTime));
+    }
+
+    /**
+     * Appends an encoded entity to the change set and updates the counts recorded in the manifest, then
+     * returns the entity's buffer to the pool. Must only be called by the thread that owns this writer.
+     *
+     * @param encodedEntity the entity to append
+     */
+    void append(EncodedEntity encodedEntity) {
+        try {
+            if (encodedEntity.entity() instanceof StampEntity<?> stampEntity) {
+                manifestAccumulator.addStamp(stampEntity);
+            }
+            writeRecord(ChangeSetRecordType.of(encodedEntity.entity()), encodedEntity.entity().nid(),
+                    encodedEntity.entity().publicId(), encodedEntity.buffer(), encodedEntity.length());
+            if (deltaWatermarks != null && encodedEntity.latestVersionTime() != DeltaWatermarks.NONE) {
+                deltaWatermarks.advance(encodedEntity.entity().nid(), encodedEntity.latestVersionTime());
+            }
+            if (fanOut != null) {
+                fanOut.publish(encodedEntity.entity(), encodedEntity.buffer(), encodedEntity.length());
             }
-        });
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            BUFFER_POOL.release(encodedEntity.buffer());
+        }
+    }
+
+    /**
+     * Appends a record replayed from a crash recovery journal. Stamps still present in the datastore are added
+     * to the manifest, and entities still present are indexed by public id.
+     *
+     * @param type   the type of entity in the record
+     * @param nid    the nid of the entity
+     * @param buffer the array holding the delimited TinkarMsg
+     * @param length the number of bytes of the record in the array
+     * @throws IOException if the record cannot be written
+     */
+    void appendRecovered(ChangeSetRecordType type, int nid, byte[] buffer, int length) throws IOException {
+        Optional<Entity<EntityVersion>> optionalEntity = entityService.getEntity(nid);
+        if (optionalEntity.isPresent() && optionalEntity.get() instanceof StampEntity<?> stampEntity) {
+            manifestAccumulator.addStamp(stampEntity);
+        }
+        writeRecord(type, nid, optionalEntity.map(Entity::publicId).orElse(null), buffer, length);
+    }
+
+    /**
+     * Appends a record copied from another change set, such as by compaction, together with the entity it
+     * decodes to.
+     *
+     * @param entity the entity held in the record
+     * @param buffer the array holding the delimited TinkarMsg
+     * @param length the number of bytes of the record in the array
+     * @throws IOException if the record cannot be written
+     */
+    void appendCopied(Entity<?> entity, byte[] buffer, int length) throws IOException {
+        if (entity instanceof StampEntity<?> stampEntity) {
+            manifestAccumulator.addStamp(stampEntity);
+        }
+        writeRecord(ChangeSetRecordType.of(entity), entity.nid(), entity.publicId(), buffer, length);
+    }
+
+    /**
+     * Writes one delimited record to the zip stream and the journal, and counts and indexes it.
+     *
+     * @param type     the type of entity in the record
+     * @param nid      the nid of the entity
+     * @param publicId the public id of the entity, or {@code null} if it is not known
+     * @param buffer   the array holding the delimited TinkarMsg
+     * @param length   the number of bytes of the record in the array
+     * @throws IOException if the record cannot be written
+     */
+    private void writeRecord(ChangeSetRecordType type, int nid, PublicId publicId, byte[] buffer, int length)
+            throws IOException {
+        switch (type) {
+            case STAMP -> stampsAggregatedCount.increment();
+            case CONCEPT -> conceptsAggregatedCount.increment();
+            case PATTERN -> patternsAggregatedCount.increment();
+            case SEMANTIC -> semanticsAggregatedCount.increment();
+        }
+        // The journal, content hash and sinks keep the plain record; only the entry holds the encoded one.
+        byte[] entryBuffer = buffer;
+        int entryLength = length;
+        if (publicIdDictionary != null) {
+            entryBuffer = publicIdDictionary.encodeRecord(buffer, length);
+            entryLength = entryBuffer.length;
+        }
+        String entryName;
+        long entryOffset;
+        if (typeSpools == null) {
+            if (layout == ChangeSetLayout.BLOCKED && currentEntryOffset > 0
+                    && currentEntryOffset + entryLength > blockBytes) {
+                startNextBlock();
+            }
+            entryName = currentEntryName;
+            entryOffset = currentEntryOffset;
+            entryChecksums.write(entryBuffer, 0, entryLength);
+            currentEntryOffset += entryLength;
+        } else {
+            SpoolFile spool = typeSpool(type);
+            entryName = ChangeSetLayout.entryName(type);
+            entryOffset = spool.size();
+            spool.write(entryBuffer, 0, entryLength);
+        }
+        if (indexAccumulator != null) {
+            indexAccumulator.addRecord(entryName, entryOffset, entryLength, type, nid, publicId);
+        }
+        if (contentHash != null) {
+            contentHash.add(buffer, length);
+        }
+        uncompressedBytes += entryLength;
+        telemetry.recordEntity(entryLength);
+        if (journal != null) {
+            journal.append(type, nid, buffer, length);
+        }
+    }
+
+    private void startNextBlock() throws IOException {
+        entryChecksums.endEntry();
+        zos.closeEntry();
+        blockNumber++;
+        currentEntryName = ChangeSetLayout.blockEntryName(blockNumber);
+        currentEntryOffset = 0;
+        zos.putNextEntry(new ZipEntry(currentEntryName));
+        entryChecksums.startEntry(currentEntryName);
+    }
+
+    private SpoolFile typeSpool(ChangeSetRecordType type) throws IOException {
+        SpoolFile spool = typeSpools[type.ordinal()];
+        if (spool == null) {
+            spool = new SpoolFile("change-set-" + type.name().toLowerCase(Locale.ROOT) + "-");
+            typeSpools[type.ordinal()] = spool;
+        }
+        return spool;
+    }
+
+    /**
+     * Copies each spooled type into its own entry, stamps first, so that loaders can apply stamps and concepts
+     * before the entities that reference them.
+     *
+     * @throws IOException if a spool cannot be read or an entry cannot be written
+     */
+    private void writeTypeEntries() throws IOException {
+        for (ChangeSetRecordType type : ChangeSetRecordType.values()) {
+            SpoolFile spool = typeSpools[type.ordinal()];
+            if (spool != null) {
+                String entryName = ChangeSetLayout.entryName(type);
+                zos.putNextEntry(new ZipEntry(entryName));
+                entryChecksums.startEntry(entryName);
+                spool.transferTo(entryChecksums);
+                entryChecksums.endEntry();
+                zos.closeEntry();
+            }
+        }
+    }
+
+    private void closeTypeSpools() throws IOException {
+        if (typeSpools != null) {
+            for (SpoolFile spool : typeSpools) {
+                if (spool != null) {
+                    spool.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * An entity together with its serialized, length-prefixed TinkarMsg.
+     *
+     * @param entity            the entity that was encoded
+     * @param buffer            the pooled buffer holding the varint length prefix followed by the serialized message
+     * @param length            the number of bytes of the buffer in use
+     * @param latestVersionTime the newest committed stamp time among the entity's versions, or
+     *                          {@link DeltaWatermarks#NONE} if no delta watermark is kept for the entity
+     */
+    record EncodedEntity(Entity<EntityVersion> entity, byte[] buffer, int length, long latestVersionTime) {
+    }
+
+    /**
+     * Thrown when entities of a batch could not be encoded, after every other entity of the batch was written.
+     * Carries the nids that were not written, so the caller can keep them for a later attempt.
+     */
+    static final class EncodeFailure extends RuntimeException {
+        private final int[] nids;
+
+        private EncodeFailure(int[] nids, RuntimeException cause) {
+            super("Could not write " + nids.length + " entities to the change set", cause);
+            this.nids = nids;
+        }
+
+        /**
+         * Returns the nids that were not written.
+         *
+         * @return the nids, in batch order
+         */
+        int[] nids() {
+            return nids;
+        }
+    }
+
+    /**
+     * Holds the thread pools shared by all writers for the transform stage, one for each configured size,
+     * each created on first use.
+     */
+    private static final class TransformPool {
+        private static final Map<Integer, ExecutorService> EXECUTORS = new HashMap<>();
+
+        private static synchronized ExecutorService executor(int threads) {
+            return EXECUTORS.computeIfAbsent(threads, size -> Executors.newFixedThreadPool(size,
+                    Thread.ofPlatform().name("change-set-transform-" + size + "-", 0).daemon(true).factory()));
+        }
+    }
+
+    /**
+     * Returns the number of bytes of delimited entity records written so far, before compression.
+     *
+     * @return the uncompressed size of the written entities
+     */
+    public long uncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    /**
+     * Returns the number of bytes written to the change set file so far, after compression. With the
+     * {@link ChangeSetLayout#BY_TYPE} layout, records are only compressed into the file when it is sealed.
+     *
+     * @return the current size of the change set file
+     */
+    public long compressedBytes() {
+        return compressedOutput.count();
+    }
+
+    /**
+     * Returns the number of entities written so far, not counting nids waiting in the coalescing window.
+     *
+     * @return the written entity count
+     */
+    public long entityCount() {
+        return conceptsAggregatedCount.sum() + semanticsAggregatedCount.sum()
+                + patternsAggregatedCount.sum() + stampsAggregatedCount.sum();
+    }
+
+    /**
+     * Returns the time this writer was opened, in epoch milliseconds.
+     *
+     * @return the time the writer was opened
+     */
+    public long openedAtMillis() {
+        return openedAtMillis;
+    }
+
+    /**
+     * Returns the file this writer seals the change set to. Until the writer is closed, the change set is
+     * written to the same path with {@link #IN_PROGRESS_SUFFIX} appended. Content-addressed change sets are
+     * renamed when they are sealed, so after closing this returns the sealed file.
+     *
+     * @return the change set file
+     */
+    public File changeSetFile() {
+        return changeSetFile;
     }
 
     /**
      * Closes the ChangeSetWriter.
      *
      * This method closes the ChangeSetWriter by performing the necessary cleanup steps.
+     * Any nids still waiting in the coalescing window are written first; if some of them cannot be written, the
+     * change set is discarded instead of being sealed without them. The completed file is then moved to
+     * its final name in one atomic step, and the crash recovery journal is removed once the change set is sealed.
      * If the entityCountSummary's total count is equal to 0, it will delete files that have no entries in them.
      * Otherwise, it will write the manifest file and perform the cleanup.
      *
@@ -105,27 +737,86 @@ public class ChangeSetWriter implements Subscriber<Integer>, AutoCloseable {
      */
     @Override
     public void close() throws IOException {
+        try {
+            flushPending();
+        } catch (EncodeFailure e) {
+            discard();
+            throw e;
+        }
         EntityCountSummary entityCountSummary = new EntityCountSummary(conceptsAggregatedCount.longValue(),
                 semanticsAggregatedCount.longValue(), patternsAggregatedCount.longValue(), stampsAggregatedCount.longValue());
 
         if (entityCountSummary.getTotalCount() == 0) {
             // delete files that have no entries in them...
-            zos.closeEntry();
-            zos.finish();
-            zos.close();
-            changeSetFile.delete();
+            discard();
         } else {
-            zos.closeEntry();
+            String contentHashHex = contentHash == null ? null : contentHash.hex();
+            if (typeSpools == null) {
+                entryChecksums.endEntry();
+                zos.closeEntry();
+            } else {
+                writeTypeEntries();
+                closeTypeSpools();
+            }
+            if (publicIdDictionary != null) {
+                zos.putNextEntry(new ZipEntry(PublicIdDictionary.DICTIONARY_ENTRY));
+                publicIdDictionary.writeTo(zos);
+                zos.closeEntry();
+            }
+            if (indexAccumulator != null) {
+                zos.putNextEntry(new ZipEntry(ChangeSetIndex.INDEX_ENTRY));
+                indexAccumulator.writeTo(zos);
+                zos.closeEntry();
+            }
             // Write Manifest File
             ZipEntry manifestEntry = new ZipEntry("META-INF/MANIFEST.MF");
             zos.putNextEntry(manifestEntry);
-            zos.write(generateManifestContent(entityCountSummary).getBytes(StandardCharsets.UTF_8));
+            zos.write(generateManifestContent(entityCountSummary, contentHashHex).getBytes(StandardCharsets.UTF_8));
             zos.closeEntry();
             zos.flush();
 
             // Cleanup
             zos.finish();
             zos.close();
+            if (contentHashHex != null) {
+                changeSetFile = new File(changeSetFile.getParentFile(), ChangeSetWriterManager.contentAddressedFileName(
+                        manifestAccumulator.earliestStampTime().orElse(0), contentHashHex));
+            }
+            if (contentHashHex != null && changeSetFile.exists()) {
+                // The same content is already sealed under this name.
+                Files.delete(inProgressFile.toPath());
+            } else {
+                Files.move(inProgressFile.toPath(), changeSetFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            deleteJournal();
+        }
+    }
+
+    /**
+     * Closes the writer without sealing the change set, deleting what was written to it along with its crash
+     * recovery journal.
+     *
+     * @throws IOException if the change set or journal cannot be removed
+     */
+    public void discard() throws IOException {
+        try {
+            closeTypeSpools();
+            zos.close();
+        } finally {
+            Files.deleteIfExists(inProgressFile.toPath());
+            deleteJournal();
+        }
+    }
+
+    /**
+     * Removes the crash recovery journal once the change set no longer needs it.
+     *
+     * @throws IOException if the journal cannot be removed
+     */
+    private void deleteJournal() throws IOException {
+        if (journal != null) {
+            journal.delete();
         }
     }
 
@@ -134,9 +825,10 @@ public class ChangeSetWriter implements Subscriber<Integer>, AutoCloseable {
      * Generate the content of a manifest file based on the given entity count summary.
      *
      * @param summary the entity count summary object containing the counts of different types of entities
+     * @param contentHashHex the content hash of the change set, or {@code null} if it is not content-addressed
      * @return the content of the manifest file as a string
      */
-    private String generateManifestContent(EntityCountSummary summary){
+    private String generateManifestContent(EntityCountSummary summary, String contentHashHex){
         StringBuilder manifestContent = new StringBuilder()
                 // TODO: Dynamically populate this user
                 .append("Packager-Name: ").append(TinkarTerm.KOMET_USER.description()).append("\n")
@@ -146,37 +838,28 @@ public class ChangeSetWriter implements Subscriber<Integer>, AutoCloseable {
                 .append("Semantic-Count: ").append(NumberFormat.getInstance().format(summary.semanticsCount())).append("\n")
                 .append("Pattern-Count: ").append(NumberFormat.getInstance().format(summary.patternsCount())).append("\n")
                 .append("Stamp-Count: ").append(NumberFormat.getInstance().format(summary.stampsCount())).append("\n")
-                .append(idsToManifestEntry(moduleList))
-                .append(idsToManifestEntry(authorList))
+                .append(ChangeSetCodec.MANIFEST_CODEC).append(": ").append(codec.name()).append("\n")
+                .append(ChangeSetCodec.MANIFEST_LEVEL).append(": ").append(compressionLevel).append("\n")
+                .append(ChangeSetLayout.MANIFEST_LAYOUT).append(": ").append(layout.name()).append("\n")
+                .append(DeltaMode.MANIFEST_DELTA_MODE).append(": ").append(deltaMode.name()).append("\n")
+                .append(RecordFormat.MANIFEST_RECORD_FORMAT).append(": ").append(recordFormat.name()).append("\n");
+        if (transactionCount > 0) {
+            manifestContent.append("Transaction-Count: ").append(NumberFormat.getInstance().format(transactionCount))
+                    .append("\n");
+        }
+        if (contentHashHex != null) {
+            manifestContent.append(ContentHash.MANIFEST_CONTENT_HASH).append(": sha-256:").append(contentHashHex)
+                    .append("\n");
+        }
+        if (indexAccumulator != null) {
+            manifestContent.append(ChangeSetIndex.MANIFEST_INDEX).append(": ").append(ChangeSetIndex.INDEX_ENTRY)
+                    .append("\n");
+        }
+        entryChecksums.appendDigestTo(manifestContent);
+        manifestAccumulator.appendTo(manifestContent)
                 .append("\n"); // Final new line necessary per Manifest spec
+        entryChecksums.appendEntrySectionsTo(manifestContent);
 
         return manifestContent.toString();
     }
-
-    /**
-     * Converts a collection of PublicIds to a manifest entry string.
-     *
-     * @param publicIds the collection of PublicIds to convert
-     * @return the manifest entry string
-     */
-    private String idsToManifestEntry(Collection<PublicId> publicIds) {
-        StringBuilder manifestEntry = new StringBuilder();
-        publicIds.forEach((publicId) -> {
-            // Convert PublicId to Manifest Entry Name
-            String idString = publicId.asUuidList().stream()
-                    .map(UUID::toString)
-                    .collect(Collectors.joining(","));
-            // Get Description
-            Optional<Entity<EntityVersion>> entity = EntityService.get().getEntity(PrimitiveData.nid(publicId));
-            String manifestDescription = "Description Undefined";
-            if (entity.isPresent()) {
-                manifestDescription = entity.get().description();
-            }
-            // Create Manifest Entry
-            manifestEntry.append("\n")
-                    .append("Name: ").append(idString).append("\n")
-                    .append("Description: ").append(manifestDescription).append("\n");
-        });
-        return manifestEntry.toString();
-    }
 }
@@ -0,0 +1,265 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.util.Locale;
+
+/**
+ * Configuration keys for the change set writer.
+ *
+ * Each key is read from a system property named {@code ikm.changeset.<key>}, where the key is the lower case
+ * enum name with underscores replaced by dots (for example {@code -Dikm.changeset.write.queue.capacity=131072}).
+ * When the property is not set, the default value declared with the key is used.
+ */
+public enum ChangeSetWriterKeys {
+    /**
+     * When {@code true}, nids are placed on a bounded queue and written by a dedicated writer thread,
+     * rather than on the thread that publishes them.
+     */
+    ASYNC_WRITE("true"),
+    /**
+     * The maximum number of nids buffered for the writer thread before publishing threads block.
+     */
+    WRITE_QUEUE_CAPACITY("65536"),
+    /**
+     * The maximum number of nids the writer thread takes from the queue at one time.
+     */
+    WRITE_BATCH_SIZE("1024"),
+    /**
+     * How long, in milliseconds, a changed nid may wait before it is written. Repeated changes to the same
+     * nid within the window are written once, using the entity as it stands when the window closes.
+     * Zero disables coalescing.
+     */
+    COALESCE_WINDOW_MILLIS("0"),
+    /**
+     * Seal the current change set and start a new one once this many bytes of entity records have been
+     * written, before compression. Zero disables the limit.
+     */
+    ROLLOVER_MAX_UNCOMPRESSED_BYTES("268435456"),
+    /**
+     * Seal the current change set and start a new one once this many entities have been written.
+     * Zero disables the limit.
+     */
+    ROLLOVER_MAX_ENTITIES("0"),
+    /**
+     * Seal the current change set and start a new one once it has been open for this many minutes and
+     * contains at least one entity. Zero disables the limit.
+     */
+    ROLLOVER_MAX_AGE_MINUTES("0"),
+    /**
+     * The {@link ChangeSetCodec} used to compress change set entries: NONE, FAST or DEFLATE.
+     */
+    COMPRESSION_CODEC("DEFLATE"),
+    /**
+     * The deflate level, from 1 to 9, used when the codec is DEFLATE.
+     */
+    COMPRESSION_LEVEL("6"),
+    /**
+     * The number of threads that fetch, transform and serialize entities ahead of the sequential zip write.
+     * Zero uses one thread per available processor; one transforms on the writer thread.
+     */
+    TRANSFORM_THREADS("0"),
+    /**
+     * When {@code true}, every record is also appended to a crash recovery journal, from which unsealed change
+     * sets are rebuilt at the next startup.
+     */
+    JOURNAL_ENABLED("true"),
+    /**
+     * How often, in milliseconds, journaled records are forced to disk. Zero forces after every record.
+     */
+    JOURNAL_SYNC_MILLIS("1000"),
+    /**
+     * The size, in bytes, at which the journal starts a new segment file.
+     */
+    JOURNAL_SEGMENT_BYTES("67108864"),
+    /**
+     * The initial I/O backend for change set files, STREAM or CHANNEL. It can be changed at runtime through
+     * {@code ChangeSetWriterService.setBackend}.
+     */
+    WRITER_BACKEND("STREAM"),
+    /**
+     * The size, in bytes, of the direct buffer used by the CHANNEL backend.
+     */
+    CHANNEL_BUFFER_BYTES("1048576"),
+    /**
+     * When the CHANNEL backend forces data to disk: NONE, ON_CLOSE or ON_FLUSH.
+     */
+    CHANNEL_FORCE_POLICY("ON_CLOSE"),
+    /**
+     * The {@link ChangeSetLayout} of new change set files: SINGLE writes one entities.proto entry, BY_TYPE writes
+     * one entry per entity type so that loaders can apply the entries in parallel, and BLOCKED writes a sequence
+     * of independently inflatable block entries.
+     */
+    ENTRY_LAYOUT("SINGLE"),
+    /**
+     * The uncompressed size, in bytes, at which the BLOCKED layout starts a new block entry.
+     */
+    BLOCK_BYTES("1048576"),
+    /**
+     * When {@code true}, each change set includes an offset index that locates records by public id or nid.
+     */
+    INDEX_ENABLED("true"),
+    /**
+     * The rate, in bytes per second, at which compaction reads the change sets it merges. Zero reads without
+     * limit.
+     */
+    COMPACTION_IO_BYTES_PER_SECOND("16777216"),
+    /**
+     * When {@code true}, sealed change sets are named by a hash of their records rather than a random UUID, and
+     * a change set whose content is already sealed under that name is discarded instead of written again.
+     */
+    CONTENT_ADDRESSED_NAMES("false"),
+    /**
+     * A comma separated list of module UUIDs. When not empty, only stamps on these modules, and entities with a
+     * version on one of them, are written to change sets.
+     */
+    FILTER_INCLUDE_MODULES(""),
+    /**
+     * A comma separated list of module UUIDs. Stamps on these modules are not written to change sets, nor are
+     * entities whose every version is on one of them.
+     */
+    FILTER_EXCLUDE_MODULES(""),
+    /**
+     * A comma separated list of path UUIDs. When not empty, only stamps on these paths, and entities with a
+     * version on one of them, are written to change sets.
+     */
+    FILTER_INCLUDE_PATHS(""),
+    /**
+     * A comma separated list of path UUIDs. Stamps on these paths are not written to change sets, nor are
+     * entities whose every version is on one of them.
+     */
+    FILTER_EXCLUDE_PATHS(""),
+    /**
+     * A comma separated list of author UUIDs. When not empty, only stamps on these authors, and entities with a
+     * version on one of them, are written to change sets.
+     */
+    FILTER_INCLUDE_AUTHORS(""),
+    /**
+     * A comma separated list of author UUIDs. Stamps on these authors are not written to change sets, nor are
+     * entities whose every version is on one of them.
+     */
+    FILTER_EXCLUDE_AUTHORS(""),
+    /**
+     * A comma separated list of pattern UUIDs. When not empty, only semantics of these patterns are written to
+     * change sets.
+     */
+    FILTER_INCLUDE_PATTERNS(""),
+    /**
+     * A comma separated list of pattern UUIDs whose semantics are not written to change sets.
+     */
+    FILTER_EXCLUDE_PATTERNS(""),
+    /**
+     * The {@link DeltaMode} of change set records: OFF writes every entity's whole chronology, WRITER writes only
+     * versions not yet written to the same change set, and PERSISTENT writes only versions not yet written to any
+     * change set.
+     */
+    DELTA_MODE("OFF"),
+    /**
+     * The number of part files a full export writes concurrently. Zero writes one part per available processor.
+     */
+    EXPORT_PARTS("0"),
+    /**
+     * The number of time slices a change set generation aggregates in parallel. Zero uses one slice per available
+     * processor.
+     */
+    GENERATE_SLICES("0"),
+    /**
+     * The folder of an audit archive that receives a copy of every change set record, or empty for no archive.
+     */
+    ARCHIVE_FOLDER(""),
+    /**
+     * The {@link ChangeSetCodec} of the audit archive's change sets.
+     */
+    ARCHIVE_COMPRESSION_CODEC("DEFLATE"),
+    /**
+     * The deflate level, from 1 to 9, of the audit archive's change sets when their codec is DEFLATE.
+     */
+    ARCHIVE_COMPRESSION_LEVEL("9"),
+    /**
+     * The {@code host:port} of a replication peer that is streamed every change set record, or empty for none.
+     */
+    REPLICATION_ADDRESS(""),
+    /**
+     * The number of records buffered for each sink, such as the audit archive or the replication peer. When the
+     * archive's buffer is full the writer waits for it; the replication peer drops records instead.
+     */
+    SINK_BUFFER_RECORDS("65536"),
+    /**
+     * The {@link RecordFormat} of new change set files: PLAIN writes serialized TinkarMsgs, and PUBLIC_ID_DICTIONARY
+     * replaces their PublicIds with indexes into a per-file dictionary, which loaders older than the format cannot
+     * read.
+     */
+    RECORD_FORMAT("PLAIN"),
+    /**
+     * The {@link dev.ikm.orchestration.interfaces.changeset.ChangeSetPartitionLayout} of new change set files:
+     * FLAT writes them directly to the change set folder, and DAILY to a {@code yyyy/MM/dd} partition of it.
+     */
+    PARTITION_LAYOUT("FLAT"),
+    /**
+     * When {@code true}, the nids of changed entities are kept in a persistent set, and generating change sets
+     * since the last generation writes exactly those entities instead of aggregating a time range.
+     */
+    DIRTY_NIDS_ENABLED("true"),
+    /**
+     * How often, in milliseconds, the writer thread saves the set of changed nids while it is idle, so that a crash
+     * loses at most this much of it.
+     */
+    DIRTY_NIDS_SAVE_MILLIS("5000"),
+    /**
+     * When {@code true}, the writer thread follows the stamps of the entities it drains: an entity with an
+     * uncommitted version is held back until its stamp is committed, and is then written with the rest of that
+     * stamp's transaction as one group, forced to disk once. Costs one extra entity fetch per written nid.
+     */
+    TRANSACTION_GROUPS("true");
+
+    private final String defaultValue;
+
+    ChangeSetWriterKeys(String defaultValue) {
+        this.defaultValue = defaultValue;
+    }
+
+    /**
+     * Returns the name of the system property that configures this key.
+     *
+     * @return the system property name
+     */
+    public String propertyName() {
+        return "ikm.changeset." + name().toLowerCase(Locale.ROOT).replace('_', '.');
+    }
+
+    /**
+     * Returns the configured value of this key, or its default if the system property is not set.
+     *
+     * @return the configured value
+     */
+    public String get() {
+        return System.getProperty(propertyName(), defaultValue).trim();
+    }
+
+    /**
+     * Returns the configured value of this key as a boolean.
+     *
+     * @return the configured value
+     */
+    public boolean getBoolean() {
+        return Boolean.parseBoolean(get());
+    }
+
+    /**
+     * Returns the configured value of this key as an int.
+     *
+     * @return the configured value
+     * @throws NumberFormatException if the configured value is not an int
+     */
+    public int getInt() {
+        return Integer.parseInt(get());
+    }
+
+    /**
+     * Returns the configured value of this key as a long.
+     *
+     * @return the configured value
+     * @throws NumberFormatException if the configured value is not a long
+     */
+    public long getLong() {
+        return Long.parseLong(get());
+    }
+}
@@ -0,0 +1,29 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+/**
+ * The JMX view of the change set writer's metrics, registered as
+ * {@value ChangeSetWriterStats#OBJECT_NAME}.
+ */
+public interface ChangeSetWriterMXBean {
+    long getEntitiesWritten();
+
+    double getEntitiesPerSecond();
+
+    long getRawBytesWritten();
+
+    long getCompressedBytesWritten();
+
+    long getTransformLatencyP50Micros();
+
+    long getTransformLatencyP99Micros();
+
+    int getQueueDepth();
+
+    int getQueueCapacity();
+
+    long getTimePausedMillis();
+
+    long getCurrentFileSize();
+
+    boolean isWriting();
+}
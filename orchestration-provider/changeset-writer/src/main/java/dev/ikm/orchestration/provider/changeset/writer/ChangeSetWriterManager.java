@@ -1,35 +1,101 @@
 package dev.ikm.orchestration.provider.changeset.writer;
 
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterBackend;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterMetrics;
 import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
+import dev.ikm.tinkar.common.alert.AlertStreams;
 import dev.ikm.tinkar.common.service.PluggableService;
 import dev.ikm.tinkar.common.service.ServiceKeys;
 import dev.ikm.tinkar.common.service.ServiceProperties;
+import dev.ikm.tinkar.common.service.TinkExecutor;
 import dev.ikm.tinkar.common.util.broadcast.Subscriber;
+import dev.ikm.tinkar.entity.Entity;
 import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.EntityVersion;
+import dev.ikm.tinkar.entity.StampEntity;
+import org.eclipse.collections.api.factory.primitive.IntIntMaps;
+import org.eclipse.collections.api.factory.primitive.IntLists;
+import org.eclipse.collections.api.factory.primitive.IntSets;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.map.primitive.MutableIntIntMap;
+import org.eclipse.collections.api.set.primitive.MutableIntSet;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-
-//TODO give the change set writer its own thread.
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * A class that manages the writing of change sets.
  * Implements the Subscriber<Integer> and ChangeSetWriterService interfaces.
+ *
+ * When {@link ChangeSetWriterKeys#ASYNC_WRITE} is enabled (the default), {@link #onNext(Integer)} and
+ * {@link #write(int)} only place the nid on a bounded {@link NidQueue}. A dedicated writer thread drains
+ * the queue in batches, so publishing threads do not pay for entity transformation and compression.
+ *
+ * The nids of a transaction are written together, as one group that is forced to disk once. Callers can bracket
+ * a transaction with {@link #beginTransaction(UUID)} and {@link #commitTransaction(UUID)}, and when
+ * {@link ChangeSetWriterKeys#TRANSACTION_GROUPS} is enabled the writer thread does the same for the entities it
+ * drains, holding back those with uncommitted versions until their stamp is committed. Either way a group is
+ * written in its place in the queue, after every nid published before the commit.
  */
 public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWriterService {
     public static final DateTimeFormatter SHORT_MIN_FOR_FILE_FORMATTER = DateTimeFormatter.ofPattern("yy-MM-dd HH꞉mm");
+    private static final long DRAIN_POLL_MILLIS = 100;
     final EntityService entityService;
+    Path dataStoreRoot;
     Path changeSetFolder;
+    ChangeSetWriterOptions writerOptions;
     AtomicBoolean enabled = new AtomicBoolean(false);
-    ChangeSetWriter changeSetWriter;
+    // Volatile so that metrics can read the current file size without taking the writer lock.
+    volatile ChangeSetWriter changeSetWriter;
+    final Object writerLock = new Object();
+    final ReentrantLock syncLock = new ReentrantLock();
+    final NidQueue nidQueue = ChangeSetWriterKeys.ASYNC_WRITE.getBoolean() ?
+            new NidQueue(ChangeSetWriterKeys.WRITE_QUEUE_CAPACITY.getInt()) : null;
+    volatile boolean running = true;
+    Thread writerThread;
+    final RolloverPolicy rolloverPolicy = RolloverPolicy.fromKeys();
+    final ChangeSetWriterTelemetry telemetry = new ChangeSetWriterTelemetry();
+    ChangeSetFilter changeSetFilter;
+    // Replaced as a whole under the writer lock, and read without it by getMetrics.
+    volatile PausedTime pausedTime = new PausedTime(0, 0);
+    DeltaWatermarks deltaWatermarks;
+    Path deltaWatermarksFile;
+    final Object transactionLock = new Object();
+    final Map<UUID, TransactionGroup> openTransactions = new HashMap<>();
+    final MutableIntIntMap claimedNids = IntIntMaps.mutable.empty();
+    volatile int openTransactionCount;
+    final boolean stampTransactions = ChangeSetWriterKeys.TRANSACTION_GROUPS.getBoolean();
+    final ChangeSetFanOut fanOut = new ChangeSetFanOut();
+    DirtyNidSet dirtyNids;
+    Path dirtyNidsFile;
+    final long dirtyNidsSaveMillis = ChangeSetWriterKeys.DIRTY_NIDS_SAVE_MILLIS.getLong();
+    long dirtyNidsSavedAtMillis = System.currentTimeMillis();
 
     /**
      * The ChangeSetWriterManager class manages the ChangeSetWriter and its configuration.
@@ -38,10 +104,30 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
         this.entityService = PluggableService.first(EntityService.class);
         Optional<File> optionalDataStoreRoot = ServiceProperties.get(ServiceKeys.DATA_STORE_ROOT);
         optionalDataStoreRoot.ifPresentOrElse(dataStoreRoot -> {
+            ChangeSetWriterManager.this.dataStoreRoot = dataStoreRoot.toPath().toAbsolutePath();
             ChangeSetWriterManager.this.changeSetFolder = Paths.get(dataStoreRoot.getAbsolutePath(), "changesets");
             try {
                 Files.createDirectories(changeSetFolder);
-                this.changeSetWriter = new ChangeSetWriter(entityService, getChangeSetFile());
+                Path journalRoot = this.dataStoreRoot.resolve("changeset-journal");
+                ChangeSetWriterOptions options = ChangeSetWriterOptions.fromKeys();
+                // Rebuild change sets left unsealed by a crash before any new writes begin.
+                ChangeSetJournal.recover(journalRoot,
+                        recoveredFile -> new ChangeSetWriter(entityService, recoveredFile.toFile(), options));
+                // Change sets left unsealed without a journal are sealed with the records that reached the disk.
+                LeftoverChangeSets.sealAll(entityService, changeSetFolder, options);
+                this.writerOptions = ChangeSetWriterKeys.JOURNAL_ENABLED.getBoolean() ?
+                        options.withJournalRoot(journalRoot) : options;
+                this.changeSetFilter = ChangeSetFilter.fromKeys(entityService).orElse(null);
+                addConfiguredSinks(options);
+                if (options.deltaMode() == DeltaMode.PERSISTENT) {
+                    this.deltaWatermarksFile = this.dataStoreRoot.resolve("changeset-state").resolve("delta-watermarks");
+                    this.deltaWatermarks = DeltaWatermarks.load(deltaWatermarksFile);
+                }
+                if (ChangeSetWriterKeys.DIRTY_NIDS_ENABLED.getBoolean()) {
+                    this.dirtyNidsFile = this.dataStoreRoot.resolve("changeset-state").resolve("dirty-nids");
+                    this.dirtyNids = DirtyNidSet.load(dirtyNidsFile);
+                }
+                this.changeSetWriter = newChangeSetWriter();
                 this.enabled.set(true);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to create write folder", e);
@@ -50,29 +136,145 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
             throw new IllegalStateException("No ServiceKeys.DATA_STORE_ROOT provided. ");
         });
 
+        if (nidQueue != null) {
+            this.writerThread = Thread.ofPlatform().name("change-set-writer").daemon(true).start(this::drainQueue);
+        }
+
         this.entityService.addSubscriberWithWeakReference(this);
 
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new ChangeSetWriterStats(this),
+                    new ObjectName(ChangeSetWriterStats.OBJECT_NAME));
+        } catch (JMException e) {
+            AlertStreams.dispatchToRoot(e);
+        }
+
         //TODO develop way to register shutdown process with the datastore... Then remove the shutdown hook...
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            if (changeSetWriter != null) {
-                try {
-                    changeSetWriter.close();
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                }
+            try {
+                shutdown();
+            } catch (Exception e) {
+                throw new RuntimeException(e);
             }
         }));
-        //TODO create a rollover strategy when a change set exceeds a size.
     }
 
 
     /**
-     * Returns the file for the change set.
+     * Opens a writer for a new change set file, using the manager's writer options.
+     *
+     * @return the new writer
+     * @throws IOException if the change set file cannot be created
+     */
+    private ChangeSetWriter newChangeSetWriter() throws IOException {
+        ChangeSetWriter newWriter =
+                new ChangeSetWriter(entityService, getChangeSetFile(), writerOptions, telemetry, deltaWatermarks);
+        newWriter.setFanOut(fanOut);
+        newWriter.setVersionFilter(changeSetFilter);
+        return newWriter;
+    }
+
+    /**
+     * Registers the audit archive and replication sinks configured by {@link ChangeSetWriterKeys}.
+     *
+     * @param options the options of the local change sets, from which the archive's options are derived
+     * @throws IOException if the archive folder cannot be created
+     */
+    private void addConfiguredSinks(ChangeSetWriterOptions options) throws IOException {
+        int bufferRecords = ChangeSetWriterKeys.SINK_BUFFER_RECORDS.getInt();
+        String archiveFolder = ChangeSetWriterKeys.ARCHIVE_FOLDER.get();
+        if (!archiveFolder.isEmpty()) {
+            ChangeSetWriterOptions archiveOptions = options.withCompression(
+                    ChangeSetCodec.valueOf(ChangeSetWriterKeys.ARCHIVE_COMPRESSION_CODEC.get().toUpperCase(Locale.ROOT)),
+                    ChangeSetWriterKeys.ARCHIVE_COMPRESSION_LEVEL.getInt());
+            addSink("archive", new ArchiveChangeSetSink(entityService, Path.of(archiveFolder), archiveOptions,
+                    rolloverPolicy), bufferRecords, true);
+        }
+        String replicationAddress = ChangeSetWriterKeys.REPLICATION_ADDRESS.get();
+        if (!replicationAddress.isEmpty()) {
+            addSink("replication", SocketChangeSetSink.parse(replicationAddress), bufferRecords, false);
+        }
+    }
+
+    /**
+     * Registers a sink that receives every record written to the local change sets, sharing the fetch and
+     * serialization of each nid with the local writer. The sink is fed from its own buffer on its own thread, and
+     * replaces any sink registered under the same name.
+     *
+     * @param name          the name of the sink
+     * @param sink          the sink
+     * @param bufferRecords the number of records buffered for the sink
+     * @param blockWhenFull whether the writer waits for room when the sink's buffer is full, rather than dropping
+     *                      the sink's records
+     */
+    public void addSink(String name, ChangeSetSink sink, int bufferRecords, boolean blockWhenFull) {
+        fanOut.add(name, sink, bufferRecords, blockWhenFull);
+    }
+
+    /**
+     * Unregisters a sink, closing it once its buffered records are written.
+     *
+     * @param name the name of the sink
+     * @return {@code true} if a sink was registered under the name
+     */
+    public boolean removeSink(String name) {
+        return fanOut.remove(name);
+    }
+
+    /**
+     * Returns the file for the change set, in the partition for the current date when change sets are partitioned.
      *
      * @return the file for the change set
+     * @throws IOException if the partition cannot be created
+     */
+    private final File getChangeSetFile() throws IOException {
+        LocalDateTime now = LocalDateTime.now();
+        return writerOptions.partitionFolder(changeSetFolder, now).resolve(changeSetFileName(now)).toFile();
+    }
+
+    /**
+     * Returns a new, unique change set file name that starts with the given time.
+     *
+     * @param time the time the change set's name sorts by
+     * @return the change set file name
+     */
+    static String changeSetFileName(LocalDateTime time) {
+        return time.format(SHORT_MIN_FOR_FILE_FORMATTER) + "~" + UUID.randomUUID() + ".proto.zip";
+    }
+
+    /**
+     * Returns the name of a content-addressed change set file. The name starts with the time of the earliest
+     * stamp in the change set, in UTC, so that change sets with the same content get the same name on any
+     * machine, and still sort roughly by time.
+     *
+     * @param earliestStampTime the earliest stamp time in the change set, in epoch milliseconds
+     * @param contentHash       the content hash of the change set
+     * @return the change set file name
      */
-    private final File getChangeSetFile() {
-        return changeSetFolder.resolve(LocalDateTime.now().format(SHORT_MIN_FOR_FILE_FORMATTER) + "~" + UUID.randomUUID() + ".proto.zip").toFile();
+    static String contentAddressedFileName(long earliestStampTime, String contentHash) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(earliestStampTime), ZoneOffset.UTC);
+        return time.format(SHORT_MIN_FOR_FILE_FORMATTER) + "~" + contentHash + ".proto.zip";
+    }
+
+    /**
+     * Returns the time at the start of a change set file name, to the minute. Content-addressed names start with a
+     * UTC time and other names with a local time, so each is read in the zone it was written in.
+     *
+     * @param fileName the change set file name
+     * @return the time, or empty if the name does not start with one
+     */
+    static Optional<Instant> changeSetFileTime(String fileName) {
+        int separator = fileName.indexOf('~');
+        if (separator < 0) {
+            return Optional.empty();
+        }
+        try {
+            LocalDateTime time = LocalDateTime.parse(fileName.substring(0, separator), SHORT_MIN_FOR_FILE_FORMATTER);
+            ZoneId zone = ContentHash.isContentAddressed(fileName) ? ZoneOffset.UTC : ZoneId.systemDefault();
+            return Optional.of(time.atZone(zone).toInstant());
+        } catch (DateTimeParseException e) {
+            return Optional.empty();
+        }
     }
 
     /**
@@ -83,13 +285,19 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
      */
     @Override
     public void onNext(Integer nid) {
-        if (enabled.get()) {
-            this.changeSetWriter.onNext(nid);
+        if (!enabled.get()) {
+            return;
+        }
+        if (dirtyNids != null) {
+            dirtyNids.add(nid);
         }
+        enqueue(nid);
     }
 
     /**
      * Pauses the ChangeSetWriter by disabling further writes and closing the writer.
+     * Nids that were queued before the pause are written to the current change set before it is closed, along
+     * with the transactions still open, as their entities stand.
      * Throws an IOException if an error occurs during the close operation.
      * The underlying file writer(s) are closed and further writes to disk are blocked until resume is called.
      * Ensure that if pause() is called, resume is called from the same thread.
@@ -99,8 +307,110 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
     @Override
     public void pause() throws IOException {
         enabled.set(false);
+        awaitDrained();
         // Close the writer.
-        this.changeSetWriter.close();
+        synchronized (writerLock) {
+            if (pausedTime.pausedAtNanos() == 0) {
+                pausedTime = new PausedTime(pausedTime.totalNanos(), System.nanoTime());
+            }
+            writeOpenTransactions();
+            if (this.changeSetWriter != null) {
+                flushPending();
+                this.changeSetWriter.close();
+                this.changeSetWriter = null;
+            }
+            saveDeltaWatermarks();
+        }
+    }
+
+    /**
+     * Seals the current change set and continues writing to a new one, without disabling writes.
+     *
+     * Nids queued before the call are written to the sealed change set. Nids published while the checkpoint is
+     * in progress stay on the queue, or wait for the writer lock, and are written to the new change set.
+     *
+     * @return the sealed change set file, or empty if the writer is paused or the change set held no entities
+     * @throws IOException if the change set cannot be sealed or the new one cannot be opened
+     */
+    @Override
+    public Optional<Path> checkpoint() throws IOException {
+        if (nidQueue != null && writerThread != null && writerThread.isAlive()) {
+            try {
+                nidQueue.awaitCompleted(nidQueue.mark());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for queued change set writes");
+            }
+        }
+        synchronized (writerLock) {
+            if (this.changeSetWriter == null) {
+                return Optional.empty();
+            }
+            ChangeSetWriter sealedWriter = sealAndReplace();
+            return sealedWriter.entityCount() == 0 ?
+                    Optional.empty() : Optional.of(sealedWriter.changeSetFile().toPath());
+        }
+    }
+
+    /**
+     * Starts a {@link ChangeSetCompactor} on the I/O thread pool for the sealed change sets in the window, within
+     * the I/O budget configured by {@link ChangeSetWriterKeys#COMPACTION_IO_BYTES_PER_SECOND}.
+     *
+     * @param from the start of the window, inclusive
+     * @param to   the end of the window, exclusive
+     * @return a future holding the merged change set, or empty if there was nothing to merge
+     */
+    @Override
+    public Future<Optional<Path>> compact(Instant from, Instant to) {
+        return TinkExecutor.ioThreadPool().submit(new ChangeSetCompactor(entityService, changeSetFolder, from, to,
+                writerOptions, ChangeSetWriterKeys.COMPACTION_IO_BYTES_PER_SECOND.getLong(), syncLock));
+    }
+
+    /**
+     * Returns the lock that synchronization and compaction of the change set folder hold while they run.
+     *
+     * @return the sync lock
+     */
+    @Override
+    public Lock syncLock() {
+        return syncLock;
+    }
+
+    /**
+     * Starts a {@link ChangeSetExporter} on the I/O thread pool, writing the number of parts configured by
+     * {@link ChangeSetWriterKeys#EXPORT_PARTS}. The export does not pause the writer.
+     *
+     * @param exportFolder the folder to write the parts and manifest to
+     * @return a future holding the path of the top-level manifest
+     */
+    @Override
+    public Future<Path> export(Path exportFolder) {
+        int configuredParts = ChangeSetWriterKeys.EXPORT_PARTS.getInt();
+        int partCount = configuredParts > 0 ? configuredParts : Runtime.getRuntime().availableProcessors();
+        return TinkExecutor.ioThreadPool().submit(new ChangeSetExporter(entityService, exportFolder, writerOptions,
+                partCount));
+    }
+
+    /**
+     * Starts a {@link ChangeSetGenerator} on the I/O thread pool, aggregating the number of slices configured by
+     * {@link ChangeSetWriterKeys#GENERATE_SLICES}. The end of each generation is recorded under the data store
+     * root, in {@code changeset-state/generation-watermark}.
+     *
+     * @param from        the start of the range, or {@code null} to start where the last generation ended
+     * @param to          the end of the range
+     * @param moduleUuids the modules to include, or an empty collection for every module
+     * @param pathUuids   the paths to include, or an empty collection for every path
+     * @return a future holding the generated change set, or empty if nothing changed in the range
+     */
+    @Override
+    public Future<Optional<Path>> generate(Instant from, Instant to, Collection<UUID> moduleUuids,
+                                           Collection<UUID> pathUuids) {
+        int configuredSlices = ChangeSetWriterKeys.GENERATE_SLICES.getInt();
+        int sliceCount = configuredSlices > 0 ? configuredSlices : Runtime.getRuntime().availableProcessors();
+        ChangeSetFilter filter = ChangeSetFilter.including(entityService, moduleUuids, pathUuids).orElse(null);
+        return TinkExecutor.ioThreadPool().submit(new ChangeSetGenerator(entityService, changeSetFolder,
+                dataStoreRoot.resolve("changeset-state").resolve("generation-watermark"), from, to, filter,
+                writerOptions, sliceCount, dirtyNids, dirtyNidsFile));
     }
 
     /**
@@ -110,9 +420,17 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
      */
     @Override
     public void resume() throws IOException {
-        enabled.set(true);
         // open a new writer
-        this.changeSetWriter = new ChangeSetWriter(entityService, getChangeSetFile());
+        synchronized (writerLock) {
+            if (this.changeSetWriter == null) {
+                this.changeSetWriter = newChangeSetWriter();
+            }
+            if (pausedTime.pausedAtNanos() != 0) {
+                pausedTime = new PausedTime(
+                        pausedTime.totalNanos() + System.nanoTime() - pausedTime.pausedAtNanos(), 0);
+            }
+        }
+        enabled.set(true);
     }
 
     /**
@@ -142,6 +460,608 @@ public class ChangeSetWriterManager implements Subscriber<Integer>, ChangeSetWri
      */
     @Override
     public void write(int nid) {
-        this.changeSetWriter.onNext(nid);
+        enqueue(nid);
+    }
+
+    /**
+     * Opens a transaction whose nids are buffered until it commits.
+     *
+     * @param transactionId the id of the transaction
+     */
+    @Override
+    public void beginTransaction(UUID transactionId) {
+        synchronized (transactionLock) {
+            openTransactions.putIfAbsent(transactionId, new TransactionGroup());
+            openTransactionCount = openTransactions.size();
+        }
+    }
+
+    /**
+     * Adds a nid to an open transaction, claiming it so that the writer leaves it to the transaction's group.
+     *
+     * @param transactionId the id of the transaction
+     * @param nid           the nid of the entity
+     * @throws IllegalStateException if the transaction is not open
+     */
+    @Override
+    public void write(UUID transactionId, int nid) {
+        synchronized (transactionLock) {
+            TransactionGroup transactionGroup = openTransaction(transactionId);
+            if (transactionGroup.members().add(nid)) {
+                transactionGroup.nids().add(nid);
+                claimedNids.addToValue(nid, 1);
+            }
+        }
+    }
+
+    /**
+     * Writes the nids of a transaction to the current change set as one group, and waits until it is forced to
+     * disk. The group is placed on the write queue behind the nids published before the commit, so it never
+     * overtakes them; it is written while holding the writer lock, so it is contiguous in the change set, and
+     * rollover is only considered once it is complete. Nids of a transaction committed while the writer is paused
+     * are dropped, as other writes are.
+     *
+     * When writes are asynchronous, a failure to write the group is reported to the alert stream by the writer
+     * thread, as it is for other queued writes.
+     *
+     * @param transactionId the id of the transaction
+     * @throws IOException if the group cannot be written or forced to disk, or the wait is interrupted
+     * @throws IllegalStateException if the transaction is not open
+     */
+    @Override
+    public void commitTransaction(UUID transactionId) throws IOException {
+        int[] nids = closeTransaction(transactionId, true);
+        if (nidQueue == null) {
+            synchronized (writerLock) {
+                try {
+                    writeGroup(nids);
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                } catch (ChangeSetWriter.EncodeFailure e) {
+                    keepFailedNids(e);
+                    throw new IOException(e);
+                } finally {
+                    rolloverIfNeeded();
+                }
+            }
+            return;
+        }
+        long mark = nidQueue.putGroup(nids);
+        if (writerThread != null && writerThread.isAlive()) {
+            try {
+                nidQueue.awaitCompleted(mark);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a transaction to be written");
+            }
+        }
+    }
+
+    /**
+     * Discards an open transaction, releasing its claimed nids.
+     *
+     * @param transactionId the id of the transaction
+     */
+    @Override
+    public void abortTransaction(UUID transactionId) {
+        closeTransaction(transactionId, false);
+    }
+
+    private boolean claimedByTransaction(int nid) {
+        if (openTransactionCount == 0) {
+            return false;
+        }
+        synchronized (transactionLock) {
+            return claimedNids.containsKey(nid);
+        }
+    }
+
+    /**
+     * Follows the stamps of a nid taken from the write queue, when {@link ChangeSetWriterKeys#TRANSACTION_GROUPS}
+     * is enabled. An entity with uncommitted versions is claimed by a transaction for each uncommitted stamp,
+     * identified by the stamp's UUID, and a stamp that is no longer uncommitted commits its transaction, so that
+     * its entities are written together once the commit reaches the writer. Must be called on the thread that
+     * drains the queue, in queue order.
+     *
+     * @param nid the nid taken from the queue
+     * @return the id of the transaction the nid commits, or {@code null} if it commits none
+     */
+    private UUID followStamps(int nid) {
+        if (!stampTransactions) {
+            return null;
+        }
+        Optional<Entity<EntityVersion>> optionalEntity = entityService.getEntity(nid);
+        if (optionalEntity.isEmpty()) {
+            return null;
+        }
+        if (optionalEntity.get() instanceof StampEntity<?> stampEntity) {
+            UUID transactionId = stampEntity.publicId().asUuidArray()[0];
+            if (stampEntity.time() == Long.MAX_VALUE) {
+                beginTransaction(transactionId);
+                write(transactionId, nid);
+                return null;
+            }
+            synchronized (transactionLock) {
+                if (!openTransactions.containsKey(transactionId)) {
+                    return null;
+                }
+                write(transactionId, nid);
+                return transactionId;
+            }
+        }
+        for (EntityVersion version : optionalEntity.get().versions()) {
+            if (version.stamp().time() == Long.MAX_VALUE) {
+                UUID transactionId = version.stamp().publicId().asUuidArray()[0];
+                beginTransaction(transactionId);
+                write(transactionId, nid);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes every transaction that is still open as a group, as its entities stand, so that they are not lost
+     * when the writer pauses or shuts down. Must be called while holding the writer lock.
+     */
+    private void writeOpenTransactions() {
+        UUID[] transactionIds;
+        synchronized (transactionLock) {
+            transactionIds = openTransactions.keySet().toArray(new UUID[0]);
+        }
+        for (UUID transactionId : transactionIds) {
+            try {
+                writeGroup(closeTransaction(transactionId, false));
+            } catch (RuntimeException e) {
+                reportWriteFailure(e);
+            }
+        }
+    }
+
+    /**
+     * Writes the nids of a committed transaction to the current change set as one group. Must be called while
+     * holding the writer lock. The nids are dropped if the writer is paused, and those that do not pass the change
+     * set filter are left out.
+     *
+     * @param nids the nids of the transaction
+     * @throws UncheckedIOException if the group cannot be written or forced to disk
+     */
+    private void writeGroup(int[] nids) {
+        if (this.changeSetWriter == null) {
+            return;
+        }
+        int count = changeSetFilter == null ? nids.length : changeSetFilter.retain(nids, nids.length);
+        this.changeSetWriter.writeGroup(nids, count);
+    }
+
+    private TransactionGroup openTransaction(UUID transactionId) {
+        TransactionGroup transactionGroup = openTransactions.get(transactionId);
+        if (transactionGroup == null) {
+            throw new IllegalStateException("Transaction is not open: " + transactionId);
+        }
+        return transactionGroup;
+    }
+
+    /**
+     * Removes an open transaction and releases its claimed nids.
+     *
+     * @param transactionId the id of the transaction
+     * @param required      whether the transaction must be open
+     * @return the nids of the transaction, in the order they were added
+     */
+    private int[] closeTransaction(UUID transactionId, boolean required) {
+        synchronized (transactionLock) {
+            TransactionGroup transactionGroup = required ? openTransaction(transactionId) :
+                    openTransactions.get(transactionId);
+            if (transactionGroup == null) {
+                return new int[0];
+            }
+            openTransactions.remove(transactionId);
+            openTransactionCount = openTransactions.size();
+            transactionGroup.nids().forEach(nid -> {
+                if (claimedNids.addToValue(nid, -1) <= 0) {
+                    claimedNids.remove(nid);
+                }
+            });
+            return transactionGroup.nids().toArray();
+        }
+    }
+
+    /**
+     * The time the writer has spent paused.
+     *
+     * @param totalNanos    the length of the pauses that have ended
+     * @param pausedAtNanos the {@link System#nanoTime()} the current pause began, or zero if not paused
+     */
+    record PausedTime(long totalNanos, long pausedAtNanos) {
+    }
+
+    /**
+     * The nids buffered for an open transaction, in the order they were added.
+     *
+     * @param nids    the nids of the transaction, in order
+     * @param members the same nids, for duplicate checks
+     */
+    record TransactionGroup(MutableIntList nids, MutableIntSet members) {
+        TransactionGroup() {
+            this(IntLists.mutable.empty(), IntSets.mutable.empty());
+        }
+    }
+
+    /**
+     * Selects the I/O backend for change set files. The current file keeps its backend; the next file
+     * opened by a resume or rollover uses the new one.
+     *
+     * @param backend the backend to use
+     */
+    @Override
+    public void setBackend(ChangeSetWriterBackend backend) {
+        synchronized (writerLock) {
+            this.writerOptions = this.writerOptions.withBackend(backend);
+        }
+    }
+
+    /**
+     * Returns the I/O backend used when opening change set files.
+     *
+     * @return the current backend
+     */
+    @Override
+    public ChangeSetWriterBackend getBackend() {
+        synchronized (writerLock) {
+            return this.writerOptions.backend();
+        }
+    }
+
+    /**
+     * Returns a snapshot of the writer's throughput, transform latency, queue depth, paused time and
+     * current file size. Totals cover every change set written since the manager started.
+     *
+     * @return the current metrics
+     */
+    @Override
+    public ChangeSetWriterMetrics getMetrics() {
+        // Read without the writer lock, which the writer thread can hold for a long time.
+        PausedTime paused = pausedTime;
+        long pausedNanos = paused.totalNanos();
+        if (paused.pausedAtNanos() != 0) {
+            pausedNanos += System.nanoTime() - paused.pausedAtNanos();
+        }
+        Duration timePaused = Duration.ofNanos(pausedNanos);
+        ChangeSetWriter currentWriter = changeSetWriter;
+        long currentFileSize = currentWriter == null ? 0 : currentWriter.compressedBytes();
+        LatencyHistogram transformLatency = telemetry.transformLatency();
+        return new ChangeSetWriterMetrics(telemetry.entitiesWritten(),
+                telemetry.entitiesPerSecond(),
+                telemetry.rawBytesWritten(),
+                telemetry.compressedBytesWritten(),
+                transformLatency.bucketUpperBoundsMicros(),
+                transformLatency.counts(),
+                nidQueue == null ? 0 : nidQueue.size(),
+                nidQueue == null ? 0 : nidQueue.capacity(),
+                timePaused,
+                currentFileSize);
+    }
+
+    /**
+     * Hands the nid to the writer thread, or writes it on the calling thread when asynchronous
+     * writes are disabled. Blocks while the queue is full.
+     *
+     * @param nid the nid to write
+     */
+    private void enqueue(int nid) {
+        if (nidQueue == null) {
+            synchronized (writerLock) {
+                writeNid(nid);
+                flushIfDue();
+                rolloverIfNeeded();
+            }
+            return;
+        }
+        try {
+            nidQueue.put(nid);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            AlertStreams.dispatchToRoot(e);
+        }
+    }
+
+    /**
+     * Body of the writer thread. Drains the queue in batches until the manager is shut down and
+     * every queued nid has been written.
+     */
+    private void drainQueue() {
+        int[] batch = new int[ChangeSetWriterKeys.WRITE_BATCH_SIZE.getInt()];
+        while (running || nidQueue.size() > 0) {
+            int[] group = nidQueue.pollGroup();
+            if (group != null) {
+                try {
+                    synchronized (writerLock) {
+                        try {
+                            writeGroup(group);
+                        } catch (RuntimeException e) {
+                            reportWriteFailure(e);
+                        }
+                        rolloverIfNeeded();
+                    }
+                } finally {
+                    nidQueue.batchComplete();
+                }
+                continue;
+            }
+            int count;
+            try {
+                count = nidQueue.drainTo(batch, DRAIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (count > 0) {
+                try {
+                    synchronized (writerLock) {
+                        writeBatch(batch, count);
+                        flushIfDue();
+                        rolloverIfNeeded();
+                    }
+                } finally {
+                    nidQueue.batchComplete();
+                }
+            } else {
+                synchronized (writerLock) {
+                    flushIfDue();
+                    rolloverIfNeeded();
+                }
+                saveDirtyNidsIfDue();
+            }
+        }
+    }
+
+    /**
+     * Writes a single nid to the current change set. Must be called while holding the writer lock.
+     * Nids are dropped if the writer is paused or the nid does not pass the change set filter, and left to their
+     * transaction if one has claimed them. A nid that cannot be written is kept in the set of changed nids.
+     *
+     * @param nid the nid to write
+     */
+    private void writeNid(int nid) {
+        if (this.changeSetWriter == null) {
+            return;
+        }
+        try {
+            UUID committedTransaction = followStamps(nid);
+            if (committedTransaction != null) {
+                writeGroup(closeTransaction(committedTransaction, false));
+                return;
+            }
+            if (claimedByTransaction(nid)) {
+                return;
+            }
+            if (changeSetFilter != null && !changeSetFilter.test(nid)) {
+                return;
+            }
+            this.changeSetWriter.onNext(nid);
+        } catch (RuntimeException e) {
+            if (dirtyNids != null) {
+                dirtyNids.add(nid);
+            }
+            reportWriteFailure(e);
+        }
+    }
+
+    /**
+     * Writes a batch of nids to the current change set, letting the writer transform them in parallel.
+     * Must be called while holding the writer lock. Nids are dropped if the writer is paused or they do not
+     * pass the change set filter, and left to their transaction if one has claimed them. A nid that commits a
+     * transaction splits the batch: the nids before it are written, then the transaction's group. A failure to
+     * write part of the batch is reported and does not stop the rest of it.
+     *
+     * @param batch the array holding the nids
+     * @param count the number of nids in the batch
+     */
+    private void writeBatch(int[] batch, int count) {
+        if (this.changeSetWriter == null) {
+            return;
+        }
+        int runCount = 0;
+        for (int i = 0; i < count; i++) {
+            int nid = batch[i];
+            UUID committedTransaction = null;
+            try {
+                committedTransaction = followStamps(nid);
+            } catch (RuntimeException e) {
+                reportWriteFailure(e);
+            }
+            if (committedTransaction != null) {
+                writeRun(batch, runCount);
+                runCount = 0;
+                try {
+                    writeGroup(closeTransaction(committedTransaction, false));
+                } catch (RuntimeException e) {
+                    reportWriteFailure(e);
+                }
+            } else if (!claimedByTransaction(nid)) {
+                batch[runCount++] = nid;
+            }
+        }
+        writeRun(batch, runCount);
+    }
+
+    private void writeRun(int[] batch, int count) {
+        try {
+            if (changeSetFilter != null) {
+                count = changeSetFilter.retain(batch, count);
+            }
+            this.changeSetWriter.writeAll(batch, count);
+        } catch (RuntimeException e) {
+            reportWriteFailure(e);
+        }
+    }
+
+    /**
+     * Reports a failure to write to the alert stream. When the writer could not encode some entities, their nids
+     * are kept in the set of changed nids, if it is tracked, so that the next change set generation writes them
+     * even if a generation already drained them since they were published.
+     *
+     * @param e the failure
+     */
+    private void reportWriteFailure(RuntimeException e) {
+        if (e instanceof ChangeSetWriter.EncodeFailure encodeFailure) {
+            keepFailedNids(encodeFailure);
+        }
+        AlertStreams.dispatchToRoot(e);
+    }
+
+    private void keepFailedNids(ChangeSetWriter.EncodeFailure encodeFailure) {
+        if (dirtyNids != null) {
+            dirtyNids.addAll(encodeFailure.nids());
+        }
+    }
+
+    /**
+     * Writes nids held in the current writer's coalescing window once the window has closed.
+     * Must be called while holding the writer lock.
+     */
+    private void flushIfDue() {
+        if (this.changeSetWriter == null) {
+            return;
+        }
+        try {
+            this.changeSetWriter.flushIfDue();
+        } catch (RuntimeException e) {
+            reportWriteFailure(e);
+        }
+    }
+
+    /**
+     * Writes every nid held in the current writer's coalescing window, before the writer is closed, so that a nid
+     * that cannot be written is reported without stopping the change set from being sealed. Must be called while
+     * holding the writer lock.
+     */
+    private void flushPending() {
+        flushPending(this.changeSetWriter);
+    }
+
+    private void flushPending(ChangeSetWriter writer) {
+        try {
+            writer.flushPending();
+        } catch (RuntimeException e) {
+            reportWriteFailure(e);
+        }
+    }
+
+    /**
+     * Seals the current change set and opens a new one if the rollover policy says the current one is full
+     * or old enough. Nids waiting in the sealed writer's coalescing window are written to it before it is
+     * closed, and nids still on the queue go to the new writer, so nothing in flight is lost.
+     * Must be called while holding the writer lock.
+     */
+    private void rolloverIfNeeded() {
+        if (this.changeSetWriter == null || !rolloverPolicy.shouldRollover(this.changeSetWriter)) {
+            return;
+        }
+        try {
+            sealAndReplace();
+        } catch (IOException e) {
+            AlertStreams.dispatchToRoot(e);
+        }
+    }
+
+    /**
+     * Opens a new writer in place of the current one, then closes the current one. The new writer is opened
+     * first so that a failure to open it leaves the current writer in place. Must be called while holding the
+     * writer lock, with a writer open.
+     *
+     * @return the writer that was closed
+     * @throws IOException if the new writer cannot be opened or the current one cannot be closed
+     */
+    private ChangeSetWriter sealAndReplace() throws IOException {
+        ChangeSetWriter sealedWriter = this.changeSetWriter;
+        this.changeSetWriter = newChangeSetWriter();
+        flushPending(sealedWriter);
+        sealedWriter.close();
+        saveDeltaWatermarks();
+        return sealedWriter;
+    }
+
+    /**
+     * Saves the persistent delta watermarks, if the writer keeps them, so that change sets written after a
+     * restart hold only versions newer than those already sealed, along with the set of changed nids. Must be
+     * called while holding the writer lock.
+     *
+     * @throws IOException if the watermarks cannot be saved
+     */
+    private void saveDeltaWatermarks() throws IOException {
+        if (deltaWatermarks != null) {
+            deltaWatermarks.save(deltaWatermarksFile);
+        }
+        saveDirtyNids();
+    }
+
+    /**
+     * Saves the set of changed nids, if it is tracked and has changed since it was last saved.
+     *
+     * @throws IOException if the set cannot be saved
+     */
+    private void saveDirtyNids() throws IOException {
+        if (dirtyNids != null && dirtyNids.isModifiedSinceSave()) {
+            dirtyNids.save(dirtyNidsFile);
+            dirtyNidsSavedAtMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Saves the set of changed nids if {@link ChangeSetWriterKeys#DIRTY_NIDS_SAVE_MILLIS} have passed since it was
+     * last saved. Called by the writer thread while idle; a failure is reported and retried on the next interval.
+     */
+    private void saveDirtyNidsIfDue() {
+        if (dirtyNids != null && System.currentTimeMillis() - dirtyNidsSavedAtMillis >= dirtyNidsSaveMillis) {
+            try {
+                saveDirtyNids();
+            } catch (IOException e) {
+                dirtyNidsSavedAtMillis = System.currentTimeMillis();
+                AlertStreams.dispatchToRoot(e);
+            }
+        }
+    }
+
+    /**
+     * Waits until the writer thread has written every nid queued so far.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    private void awaitDrained() throws InterruptedIOException {
+        if (nidQueue == null || writerThread == null || !writerThread.isAlive()) {
+            return;
+        }
+        try {
+            nidQueue.awaitDrained();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while draining the change set write queue");
+        }
+    }
+
+    /**
+     * Stops the writer thread once all queued nids are written, then closes the current writer, and finally drains
+     * and closes the sinks.
+     *
+     * @throws IOException if an error occurs while closing the writer
+     * @throws InterruptedException if interrupted while waiting for the writer thread
+     */
+    private void shutdown() throws IOException, InterruptedException {
+        enabled.set(false);
+        running = false;
+        if (writerThread != null) {
+            writerThread.join();
+        }
+        synchronized (writerLock) {
+            writeOpenTransactions();
+            if (changeSetWriter != null) {
+                flushPending();
+                changeSetWriter.close();
+                changeSetWriter = null;
+            }
+            saveDeltaWatermarks();
+        }
+        fanOut.close();
     }
 }
@@ -0,0 +1,150 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetPartitionLayout;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterBackend;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.Locale;
+
+/**
+ * Settings that control how a {@link ChangeSetWriter} writes a change set file.
+ *
+ * @param coalesceWindowMillis how long a changed nid may wait before it is written, so that repeated changes
+ *                             are written once; zero writes every nid immediately
+ * @param codec                the compression applied to the change set entries
+ * @param compressionLevel     the deflate level used when the codec is {@link ChangeSetCodec#DEFLATE}
+ * @param transformThreads     the number of threads that transform and serialize entities ahead of the
+ *                             sequential zip write; one transforms on the writing thread
+ * @param journalRoot          the folder holding crash recovery journals, or {@code null} to write without a
+ *                             journal
+ * @param journalSyncMillis    how often journaled records are forced to disk; zero forces after every record
+ * @param journalSegmentBytes  the size at which the journal starts a new segment file
+ * @param backend              the I/O backend that writes the change set file
+ * @param channelBufferBytes   the size of the direct buffer used by the {@link ChangeSetWriterBackend#CHANNEL}
+ *                             backend
+ * @param forcePolicy          when the {@link ChangeSetWriterBackend#CHANNEL} backend forces data to disk
+ * @param layout               how entity records are arranged into zip entries
+ * @param blockBytes           the uncompressed size at which the {@link ChangeSetLayout#BLOCKED} layout starts a
+ *                             new block
+ * @param writeIndex           whether to write an offset index of the records
+ * @param contentAddressed     whether to name sealed change sets by the hash of their records
+ * @param deltaMode            whether records hold whole chronologies or only versions not yet written
+ * @param recordFormat         how records are encoded in the change set entries
+ * @param partitionLayout      where new change set files are placed under the change set folder
+ */
+public record ChangeSetWriterOptions(long coalesceWindowMillis, ChangeSetCodec codec, int compressionLevel,
+                                     int transformThreads, Path journalRoot, long journalSyncMillis,
+                                     long journalSegmentBytes, ChangeSetWriterBackend backend,
+                                     int channelBufferBytes, ChannelForcePolicy forcePolicy,
+                                     ChangeSetLayout layout, long blockBytes, boolean writeIndex,
+                                     boolean contentAddressed, DeltaMode deltaMode,
+                                     RecordFormat recordFormat, ChangeSetPartitionLayout partitionLayout) {
+
+    /**
+     * Creates options from the values configured by {@link ChangeSetWriterKeys}.
+     *
+     * @return the configured options
+     */
+    public static ChangeSetWriterOptions fromKeys() {
+        return new ChangeSetWriterOptions(ChangeSetWriterKeys.COALESCE_WINDOW_MILLIS.getLong(),
+                ChangeSetCodec.valueOf(ChangeSetWriterKeys.COMPRESSION_CODEC.get().toUpperCase(Locale.ROOT)),
+                ChangeSetWriterKeys.COMPRESSION_LEVEL.getInt(),
+                transformThreads(ChangeSetWriterKeys.TRANSFORM_THREADS.getInt()),
+                null,
+                ChangeSetWriterKeys.JOURNAL_SYNC_MILLIS.getLong(),
+                ChangeSetWriterKeys.JOURNAL_SEGMENT_BYTES.getLong(),
+                ChangeSetWriterBackend.valueOf(ChangeSetWriterKeys.WRITER_BACKEND.get().toUpperCase(Locale.ROOT)),
+                ChangeSetWriterKeys.CHANNEL_BUFFER_BYTES.getInt(),
+                ChannelForcePolicy.valueOf(ChangeSetWriterKeys.CHANNEL_FORCE_POLICY.get().toUpperCase(Locale.ROOT)),
+                ChangeSetLayout.valueOf(ChangeSetWriterKeys.ENTRY_LAYOUT.get().toUpperCase(Locale.ROOT)),
+                ChangeSetWriterKeys.BLOCK_BYTES.getLong(),
+                ChangeSetWriterKeys.INDEX_ENABLED.getBoolean(),
+                ChangeSetWriterKeys.CONTENT_ADDRESSED_NAMES.getBoolean(),
+                DeltaMode.valueOf(ChangeSetWriterKeys.DELTA_MODE.get().toUpperCase(Locale.ROOT)),
+                RecordFormat.valueOf(ChangeSetWriterKeys.RECORD_FORMAT.get().toUpperCase(Locale.ROOT)),
+                ChangeSetPartitionLayout.valueOf(ChangeSetWriterKeys.PARTITION_LAYOUT.get().toUpperCase(Locale.ROOT)));
+    }
+
+    /**
+     * Returns a copy of these options that journals records under the given folder.
+     *
+     * @param journalRoot the folder holding crash recovery journals, or {@code null} for no journal
+     * @return the updated options
+     */
+    public ChangeSetWriterOptions withJournalRoot(Path journalRoot) {
+        return new ChangeSetWriterOptions(coalesceWindowMillis, codec, compressionLevel, transformThreads,
+                journalRoot, journalSyncMillis, journalSegmentBytes, backend, channelBufferBytes, forcePolicy,
+                layout, blockBytes, writeIndex, contentAddressed, deltaMode, recordFormat, partitionLayout);
+    }
+
+    /**
+     * Returns a copy of these options that writes change set files with the given backend.
+     *
+     * @param backend the I/O backend to use
+     * @return the updated options
+     */
+    public ChangeSetWriterOptions withBackend(ChangeSetWriterBackend backend) {
+        return new ChangeSetWriterOptions(coalesceWindowMillis, codec, compressionLevel, transformThreads,
+                journalRoot, journalSyncMillis, journalSegmentBytes, backend, channelBufferBytes, forcePolicy,
+                layout, blockBytes, writeIndex, contentAddressed, deltaMode, recordFormat, partitionLayout);
+    }
+
+    /**
+     * Returns a copy of these options that compresses change set entries with the given codec and level.
+     *
+     * @param codec            the compression applied to the change set entries
+     * @param compressionLevel the deflate level used when the codec is {@link ChangeSetCodec#DEFLATE}
+     * @return the updated options
+     */
+    public ChangeSetWriterOptions withCompression(ChangeSetCodec codec, int compressionLevel) {
+        return new ChangeSetWriterOptions(coalesceWindowMillis, codec, compressionLevel, transformThreads,
+                journalRoot, journalSyncMillis, journalSegmentBytes, backend, channelBufferBytes, forcePolicy,
+                layout, blockBytes, writeIndex, contentAddressed, deltaMode, recordFormat, partitionLayout);
+    }
+
+    /**
+     * Returns a copy of these options with the given coalescing window.
+     *
+     * @param coalesceWindowMillis how long a changed nid may wait before it is written; zero writes every nid
+     *                             immediately
+     * @return the updated options
+     */
+    public ChangeSetWriterOptions withCoalesceWindowMillis(long coalesceWindowMillis) {
+        return new ChangeSetWriterOptions(coalesceWindowMillis, codec, compressionLevel, transformThreads,
+                journalRoot, journalSyncMillis, journalSegmentBytes, backend, channelBufferBytes, forcePolicy,
+                layout, blockBytes, writeIndex, contentAddressed, deltaMode, recordFormat, partitionLayout);
+    }
+
+    /**
+     * Returns a copy of these options that writes records with the given delta mode.
+     *
+     * @param deltaMode whether records hold whole chronologies or only versions not yet written
+     * @return the updated options
+     */
+    public ChangeSetWriterOptions withDeltaMode(DeltaMode deltaMode) {
+        return new ChangeSetWriterOptions(coalesceWindowMillis, codec, compressionLevel, transformThreads,
+                journalRoot, journalSyncMillis, journalSegmentBytes, backend, channelBufferBytes, forcePolicy,
+                layout, blockBytes, writeIndex, contentAddressed, deltaMode, recordFormat, partitionLayout);
+    }
+
+    /**
+     * Returns the folder a change set started at the given time is written to, creating it if needed.
+     *
+     * @param changeSetFolder the change set folder
+     * @param time            the local time the change set is started
+     * @return the change set folder, or the partition of it for the time's date
+     * @throws IOException if the folder cannot be created
+     */
+    public Path partitionFolder(Path changeSetFolder, LocalDateTime time) throws IOException {
+        Path partitionFolder = partitionLayout.partitionFolder(changeSetFolder, time.toLocalDate());
+        Files.createDirectories(partitionFolder);
+        return partitionFolder;
+    }
+
+    private static int transformThreads(int configuredThreads) {
+        return configuredThreads > 0 ? configuredThreads : Runtime.getRuntime().availableProcessors();
+    }
+}
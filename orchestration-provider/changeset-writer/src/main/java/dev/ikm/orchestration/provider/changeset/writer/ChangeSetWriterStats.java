@@ -0,0 +1,75 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterMetrics;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
+
+/**
+ * Publishes the metrics of a {@link ChangeSetWriterService} through JMX.
+ */
+public class ChangeSetWriterStats implements ChangeSetWriterMXBean {
+    public static final String OBJECT_NAME = "dev.ikm.orchestration:type=ChangeSetWriter";
+    private final ChangeSetWriterService changeSetWriterService;
+
+    public ChangeSetWriterStats(ChangeSetWriterService changeSetWriterService) {
+        this.changeSetWriterService = changeSetWriterService;
+    }
+
+    private ChangeSetWriterMetrics metrics() {
+        return changeSetWriterService.getMetrics();
+    }
+
+    @Override
+    public long getEntitiesWritten() {
+        return metrics().entitiesWritten();
+    }
+
+    @Override
+    public double getEntitiesPerSecond() {
+        return metrics().entitiesPerSecond();
+    }
+
+    @Override
+    public long getRawBytesWritten() {
+        return metrics().rawBytesWritten();
+    }
+
+    @Override
+    public long getCompressedBytesWritten() {
+        return metrics().compressedBytesWritten();
+    }
+
+    @Override
+    public long getTransformLatencyP50Micros() {
+        return metrics().transformLatencyPercentileMicros(50);
+    }
+
+    @Override
+    public long getTransformLatencyP99Micros() {
+        return metrics().transformLatencyPercentileMicros(99);
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return metrics().queueDepth();
+    }
+
+    @Override
+    public int getQueueCapacity() {
+        return metrics().queueCapacity();
+    }
+
+    @Override
+    public long getTimePausedMillis() {
+        return metrics().timePaused().toMillis();
+    }
+
+    @Override
+    public long getCurrentFileSize() {
+        return metrics().currentFileSize();
+    }
+
+    @Override
+    public boolean isWriting() {
+        return changeSetWriterService.getWriteStatus();
+    }
+}
@@ -0,0 +1,102 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing the work done by change set writers, shared by every writer a
+ * {@link ChangeSetWriterManager} opens so that the totals survive rollover.
+ *
+ * Counters are updated by the transform and writer threads and may be read from any thread.
+ */
+public class ChangeSetWriterTelemetry {
+    private static final long RATE_SAMPLE_NANOS = 1_000_000_000L;
+
+    private final LongAdder entitiesWritten = new LongAdder();
+    private final LongAdder rawBytesWritten = new LongAdder();
+    private final LongAdder compressedBytesWritten = new LongAdder();
+    private final LatencyHistogram transformLatency = new LatencyHistogram();
+    private long rateSampleNanos = System.nanoTime();
+    private long rateSampleCount;
+    private double entitiesPerSecond;
+
+    /**
+     * Records the time taken to fetch, transform and serialize one entity.
+     *
+     * @param nanos the elapsed time in nanoseconds
+     */
+    public void recordTransform(long nanos) {
+        transformLatency.record(nanos);
+    }
+
+    /**
+     * Records one entity record written to a change set.
+     *
+     * @param rawBytes the size of the record before compression
+     */
+    public void recordEntity(int rawBytes) {
+        entitiesWritten.increment();
+        rawBytesWritten.add(rawBytes);
+    }
+
+    /**
+     * Records bytes written to a change set file after compression.
+     *
+     * @param bytes the number of bytes written
+     */
+    public void recordCompressed(int bytes) {
+        compressedBytesWritten.add(bytes);
+    }
+
+    /**
+     * Returns the number of entity records written.
+     *
+     * @return the entity count
+     */
+    public long entitiesWritten() {
+        return entitiesWritten.sum();
+    }
+
+    /**
+     * Returns the bytes of entity records written, before compression.
+     *
+     * @return the raw byte count
+     */
+    public long rawBytesWritten() {
+        return rawBytesWritten.sum();
+    }
+
+    /**
+     * Returns the bytes written to change set files, after compression.
+     *
+     * @return the compressed byte count
+     */
+    public long compressedBytesWritten() {
+        return compressedBytesWritten.sum();
+    }
+
+    /**
+     * Returns the histogram of entity transform latencies.
+     *
+     * @return the transform latency histogram
+     */
+    public LatencyHistogram transformLatency() {
+        return transformLatency;
+    }
+
+    /**
+     * Returns the write rate measured over the most recent sample period of at least one second.
+     *
+     * @return entities written per second
+     */
+    public synchronized double entitiesPerSecond() {
+        long now = System.nanoTime();
+        long elapsed = now - rateSampleNanos;
+        if (elapsed >= RATE_SAMPLE_NANOS) {
+            long count = entitiesWritten.sum();
+            entitiesPerSecond = (count - rateSampleCount) * 1_000_000_000.0 / elapsed;
+            rateSampleNanos = now;
+            rateSampleCount = count;
+        }
+        return entitiesPerSecond;
+    }
+}
@@ -0,0 +1,19 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+/**
+ * When a {@link ChannelOutputStream} forces written data to the storage device.
+ */
+public enum ChannelForcePolicy {
+    /**
+     * Never force; leave write-back to the operating system.
+     */
+    NONE,
+    /**
+     * Force data and metadata once, when the change set is closed.
+     */
+    ON_CLOSE,
+    /**
+     * Force data every time the stream is flushed, and data and metadata when it is closed.
+     */
+    ON_FLUSH
+}
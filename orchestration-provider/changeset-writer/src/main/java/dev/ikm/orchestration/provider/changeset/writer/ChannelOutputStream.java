@@ -0,0 +1,91 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An OutputStream that writes to a FileChannel through a large direct buffer.
+ *
+ * Small writes, such as the chunks produced by the zip deflater, collect in the direct buffer, which is
+ * written with a single system call when full. A write that does not fit in the remaining buffer space is
+ * combined with the buffered bytes in one gathering write, so large records are not copied into the buffer.
+ * Data is forced to the device according to a {@link ChannelForcePolicy}.
+ */
+public class ChannelOutputStream extends OutputStream {
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final ChannelForcePolicy forcePolicy;
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private boolean closed;
+
+    /**
+     * Creates a stream over an open channel.
+     *
+     * @param channel     the channel to write to, which is closed when this stream is closed
+     * @param bufferBytes the size of the direct buffer
+     * @param forcePolicy when written data is forced to the device
+     */
+    public ChannelOutputStream(FileChannel channel, int bufferBytes, ChannelForcePolicy forcePolicy) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(bufferBytes);
+        this.forcePolicy = forcePolicy;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drainBuffer();
+        }
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        if (length <= buffer.remaining()) {
+            buffer.put(bytes, offset, length);
+            return;
+        }
+        buffer.flip();
+        gather[0] = buffer;
+        gather[1] = ByteBuffer.wrap(bytes, offset, length);
+        while (gather[0].hasRemaining() || gather[1].hasRemaining()) {
+            channel.write(gather);
+        }
+        gather[1] = null;
+        buffer.clear();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drainBuffer();
+        if (forcePolicy == ChannelForcePolicy.ON_FLUSH) {
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            drainBuffer();
+            if (forcePolicy != ChannelForcePolicy.NONE) {
+                channel.force(true);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void drainBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
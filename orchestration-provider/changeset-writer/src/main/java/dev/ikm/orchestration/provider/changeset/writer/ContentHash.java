@@ -0,0 +1,77 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Computes the content hash of a change set from its records.
+ *
+ * The hash covers the change set's records as a multiset: each record is hashed with SHA-256, the record hashes
+ * are sorted, and the record count and the sorted hashes are hashed again. Change sets holding the same records
+ * therefore get the same hash whatever order, layout, compression or manifest they were written with, and finding
+ * a different set of records with the same hash is as hard as finding a SHA-256 collision. The hash is recorded in
+ * the manifest under {@link #MANIFEST_CONTENT_HASH}, and content-addressed change sets are named with it.
+ */
+final class ContentHash {
+    /**
+     * The manifest attribute that records the content hash, as {@code sha-256:<hex>}.
+     */
+    static final String MANIFEST_CONTENT_HASH = "Content-Hash";
+    private static final String ALGORITHM = "SHA-256";
+    private static final int HASH_BYTES = 32;
+
+    private final MessageDigest recordDigest = newDigest();
+    private final List<byte[]> recordHashes = new ArrayList<>();
+
+    /**
+     * Adds a record to the hash.
+     *
+     * @param buffer the array holding the delimited record
+     * @param length the number of bytes of the record in the array
+     */
+    void add(byte[] buffer, int length) {
+        recordDigest.update(buffer, 0, length);
+        recordHashes.add(recordDigest.digest());
+    }
+
+    /**
+     * Returns the content hash of the records added so far, as lower case hex.
+     *
+     * @return the content hash
+     */
+    String hex() {
+        recordHashes.sort(Arrays::compareUnsigned);
+        MessageDigest contentDigest = newDigest();
+        contentDigest.update(ByteBuffer.allocate(Long.BYTES).putLong(0, recordHashes.size()).array());
+        recordHashes.forEach(contentDigest::update);
+        return HexFormat.of().formatHex(contentDigest.digest());
+    }
+
+    /**
+     * Returns whether a change set file name ends in a content hash, rather than a random UUID.
+     *
+     * @param fileName the change set file name
+     * @return {@code true} if the change set is named by its content
+     */
+    static boolean isContentAddressed(String fileName) {
+        int separator = fileName.indexOf('~');
+        int suffix = fileName.indexOf(".proto.zip");
+        if (separator < 0 || suffix - separator - 1 != HASH_BYTES * 2) {
+            return false;
+        }
+        return fileName.substring(separator + 1, suffix).chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
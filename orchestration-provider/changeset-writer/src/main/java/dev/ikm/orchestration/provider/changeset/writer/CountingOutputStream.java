@@ -0,0 +1,48 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that counts the bytes passing through it, for reporting the compressed size of a change set
+ * while it is being written.
+ */
+public class CountingOutputStream extends FilterOutputStream {
+    private final ChangeSetWriterTelemetry telemetry;
+    private volatile long count;
+
+    /**
+     * Creates a counting stream.
+     *
+     * @param out       the stream to write to
+     * @param telemetry the telemetry that also receives the byte counts
+     */
+    public CountingOutputStream(OutputStream out, ChangeSetWriterTelemetry telemetry) {
+        super(out);
+        this.telemetry = telemetry;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count++;
+        telemetry.recordCompressed(1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+        count += length;
+        telemetry.recordCompressed(length);
+    }
+
+    /**
+     * Returns the number of bytes written through this stream.
+     *
+     * @return the byte count
+     */
+    public long count() {
+        return count;
+    }
+}
@@ -0,0 +1,31 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+/**
+ * Whether change set records hold an entity's whole chronology, or only the versions not yet written.
+ *
+ * The mode is recorded in the change set manifest under {@link #MANIFEST_DELTA_MODE}. Loaders need no special
+ * handling for delta records: putting an entity merges its versions with the versions already stored.
+ */
+public enum DeltaMode {
+    /**
+     * Every record holds the entity's whole chronology.
+     */
+    OFF,
+    /**
+     * The first record for an entity in each change set holds its whole chronology, and later records in the
+     * same change set hold only versions with stamps newer than those already written. Each change set can be
+     * loaded on its own.
+     */
+    WRITER,
+    /**
+     * Records hold only versions with stamps newer than those written for the entity by any earlier change set.
+     * The newest written stamp time of each entity is persisted across restarts, so a change set may depend on
+     * earlier change sets to complete its entities.
+     */
+    PERSISTENT;
+
+    /**
+     * The manifest attribute that records the delta mode the change set was written with.
+     */
+    public static final String MANIFEST_DELTA_MODE = "Delta-Mode";
+}
@@ -0,0 +1,91 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.eclipse.collections.api.factory.primitive.IntLongMaps;
+import org.eclipse.collections.api.map.primitive.MutableIntLongMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The newest committed stamp time written to change sets for each nid, used by {@link DeltaMode} to leave out
+ * versions that were already written.
+ *
+ * Safe to use from the transform threads, which read watermarks, and the writing thread, which advances them.
+ */
+final class DeltaWatermarks {
+    /**
+     * The watermark of a nid that has not been written.
+     */
+    static final long NONE = Long.MIN_VALUE;
+
+    private final MutableIntLongMap watermarks = IntLongMaps.mutable.empty();
+
+    /**
+     * Returns the newest committed stamp time written for the nid.
+     *
+     * @param nid the nid of the entity
+     * @return the watermark, or {@link #NONE} if the entity has not been written
+     */
+    synchronized long get(int nid) {
+        return watermarks.getIfAbsent(nid, NONE);
+    }
+
+    /**
+     * Raises the watermark of the nid to the given time, if the time is newer.
+     *
+     * @param nid  the nid of the entity
+     * @param time the newest committed stamp time just written for the entity
+     */
+    synchronized void advance(int nid, long time) {
+        if (time > watermarks.getIfAbsent(nid, NONE)) {
+            watermarks.put(nid, time);
+        }
+    }
+
+    /**
+     * Reads the watermarks saved by {@link #save(Path)}.
+     *
+     * @param file the file to read
+     * @return the saved watermarks, or empty watermarks if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    static DeltaWatermarks load(Path file) throws IOException {
+        DeltaWatermarks deltaWatermarks = new DeltaWatermarks();
+        if (Files.exists(file)) {
+            try (DataInputStream dataInput =
+                         new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                int count = dataInput.readInt();
+                for (int i = 0; i < count; i++) {
+                    deltaWatermarks.watermarks.put(dataInput.readInt(), dataInput.readLong());
+                }
+            }
+        }
+        return deltaWatermarks;
+    }
+
+    /**
+     * Writes the watermarks to a file, replacing it in one atomic step.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    synchronized void save(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream dataOutput =
+                     new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            dataOutput.writeInt(watermarks.size());
+            for (var entry : watermarks.keyValuesView()) {
+                dataOutput.writeInt(entry.getOne());
+                dataOutput.writeLong(entry.getTwo());
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
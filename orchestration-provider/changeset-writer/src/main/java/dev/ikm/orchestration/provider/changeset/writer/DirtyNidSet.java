@@ -0,0 +1,363 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.eclipse.collections.api.factory.primitive.IntObjectMaps;
+import org.eclipse.collections.api.map.primitive.MutableIntObjectMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * The set of nids changed since change sets were last generated from it, kept as a compressed bitmap so that it
+ * stays small for the millions of nids of a large terminology.
+ *
+ * Like a roaring bitmap, nids are grouped by their high 16 bits, and each group is stored in a container of its
+ * own: a sorted array of the low 16 bits while the group holds at most {@value #ARRAY_LIMIT} nids, and a 65,536
+ * bit bitmap once it holds more. A few scattered edits cost two bytes each, and a bulk import costs one bit per
+ * nid.
+ *
+ * Drained nids stay pending until the change set holding them is sealed: a save in the meantime still writes
+ * them, so a crash during generation does not lose them.
+ *
+ * Safe to use from the publishing threads, which add nids, and the generating thread, which drains them.
+ */
+final class DirtyNidSet {
+    private static final int MAGIC = 0x44495254;
+    private static final int VERSION = 1;
+    /**
+     * The largest number of nids held in an array container; at this size the array and the bitmap are both
+     * eight kilobytes.
+     */
+    static final int ARRAY_LIMIT = 4096;
+    private static final int BITMAP_WORDS = 65536 / Long.SIZE;
+
+    private final MutableIntObjectMap<Container> containers = IntObjectMaps.mutable.empty();
+    private int size;
+    private long modificationCount;
+    private long savedModificationCount;
+    private int[] pendingNids;
+    private final long trackingSinceMillis;
+
+    /**
+     * Creates an empty set that starts tracking changes now.
+     */
+    DirtyNidSet() {
+        this(System.currentTimeMillis());
+    }
+
+    private DirtyNidSet(long trackingSinceMillis) {
+        this.trackingSinceMillis = trackingSinceMillis;
+    }
+
+    /**
+     * Returns when the set started tracking changes; changes made before then are not in it.
+     *
+     * @return the time the set was first created, in epoch milliseconds
+     */
+    long trackingSinceMillis() {
+        return trackingSinceMillis;
+    }
+
+    /**
+     * Adds a nid to the set.
+     *
+     * @param nid the nid of a changed entity
+     * @return {@code true} if the nid was not already in the set
+     */
+    synchronized boolean add(int nid) {
+        int key = nid >>> 16;
+        Container container = containers.get(key);
+        if (container == null) {
+            container = new ArrayContainer();
+            containers.put(key, container);
+        }
+        Container updated = container.add((char) nid);
+        if (updated == null) {
+            return false;
+        }
+        if (updated != container) {
+            containers.put(key, updated);
+        }
+        size++;
+        modificationCount++;
+        return true;
+    }
+
+    /**
+     * Adds every nid in the array to the set.
+     *
+     * @param nids the nids to add
+     */
+    synchronized void addAll(int[] nids) {
+        for (int nid : nids) {
+            add(nid);
+        }
+    }
+
+    /**
+     * Returns the number of nids in the set.
+     *
+     * @return the set size
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes every nid from the set in one step and returns them, ordered as unsigned integers. Nids added after
+     * the call are kept for the next drain. The drained nids are pending until {@link #completeDrain()} or
+     * {@link #restoreDrain()} is called.
+     *
+     * @return the nids that were in the set
+     * @throws IllegalStateException if an earlier drain is still pending
+     */
+    synchronized int[] drain() {
+        if (pendingNids != null) {
+            throw new IllegalStateException("A drain of the dirty nids is already pending");
+        }
+        pendingNids = toArray();
+        containers.clear();
+        size = 0;
+        modificationCount++;
+        return pendingNids;
+    }
+
+    /**
+     * Forgets the pending nids, once the change set holding them is sealed.
+     */
+    synchronized void completeDrain() {
+        pendingNids = null;
+        modificationCount++;
+    }
+
+    /**
+     * Puts the pending nids back into the set, after a generation that failed to write them.
+     */
+    synchronized void restoreDrain() {
+        if (pendingNids != null) {
+            int[] restoredNids = pendingNids;
+            pendingNids = null;
+            addAll(restoredNids);
+        }
+    }
+
+    /**
+     * Returns whether the set has changed since it was last saved or loaded.
+     *
+     * @return {@code true} if the set holds changes that are not yet saved
+     */
+    synchronized boolean isModifiedSinceSave() {
+        return modificationCount != savedModificationCount;
+    }
+
+    /**
+     * Reads the set saved by {@link #save(Path)}.
+     *
+     * @param file the file to read
+     * @return the saved set, or an empty set if the file does not exist
+     * @throws IOException if the file cannot be read
+     */
+    static DirtyNidSet load(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return new DirtyNidSet();
+        }
+        try (DataInputStream dataInput =
+                     new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (dataInput.readInt() != MAGIC || dataInput.readInt() != VERSION) {
+                throw new IOException("Not a dirty nid set: " + file);
+            }
+            DirtyNidSet dirtyNids = new DirtyNidSet(dataInput.readLong());
+            int containerCount = dataInput.readInt();
+            for (int i = 0; i < containerCount; i++) {
+                int key = dataInput.readUnsignedShort();
+                int cardinality = dataInput.readInt();
+                Container container = cardinality <= ARRAY_LIMIT ?
+                        ArrayContainer.read(dataInput, cardinality) : BitmapContainer.read(dataInput, cardinality);
+                dirtyNids.containers.put(key, container);
+                dirtyNids.size += cardinality;
+            }
+            return dirtyNids;
+        }
+    }
+
+    /**
+     * Writes the set to a file, replacing it in one atomic step.
+     *
+     * @param file the file to write
+     * @throws IOException if the file cannot be written
+     */
+    synchronized void save(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream dataOutput =
+                     new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            if (pendingNids == null) {
+                writeTo(dataOutput);
+            } else {
+                DirtyNidSet withPending = new DirtyNidSet(trackingSinceMillis);
+                withPending.addAll(toArray());
+                withPending.addAll(pendingNids);
+                withPending.writeTo(dataOutput);
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        savedModificationCount = modificationCount;
+    }
+
+    private synchronized void writeTo(DataOutputStream dataOutput) throws IOException {
+        dataOutput.writeInt(MAGIC);
+        dataOutput.writeInt(VERSION);
+        dataOutput.writeLong(trackingSinceMillis);
+        dataOutput.writeInt(containers.size());
+        for (int key : containers.keySet().toSortedArray()) {
+            Container container = containers.get(key);
+            dataOutput.writeShort(key);
+            dataOutput.writeInt(container.cardinality());
+            container.writeTo(dataOutput);
+        }
+    }
+
+    private int[] toArray() {
+        int[] nids = new int[size];
+        int next = 0;
+        for (int key : containers.keySet().toSortedArray()) {
+            next = containers.get(key).copyTo(key << 16, nids, next);
+        }
+        return nids;
+    }
+
+    /**
+     * The low 16 bits of the nids that share their high 16 bits.
+     */
+    private sealed interface Container permits ArrayContainer, BitmapContainer {
+        /**
+         * Adds a value, returning this container, the container that replaces it, or {@code null} if the value
+         * was already present.
+         */
+        Container add(char value);
+
+        int cardinality();
+
+        /**
+         * Copies the nids, in ascending order, to the array, returning the index after the last one copied.
+         */
+        int copyTo(int high, int[] nids, int next);
+
+        void writeTo(DataOutputStream dataOutput) throws IOException;
+    }
+
+    private static final class ArrayContainer implements Container {
+        private char[] values = new char[4];
+        private int cardinality;
+
+        @Override
+        public Container add(char value) {
+            int index = Arrays.binarySearch(values, 0, cardinality, value);
+            if (index >= 0) {
+                return null;
+            }
+            if (cardinality == ARRAY_LIMIT) {
+                BitmapContainer bitmap = new BitmapContainer();
+                for (int i = 0; i < cardinality; i++) {
+                    bitmap.add(values[i]);
+                }
+                bitmap.add(value);
+                return bitmap;
+            }
+            int insertAt = -index - 1;
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT, cardinality * 2));
+            }
+            System.arraycopy(values, insertAt, values, insertAt + 1, cardinality - insertAt);
+            values[insertAt] = value;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public int copyTo(int high, int[] nids, int next) {
+            for (int i = 0; i < cardinality; i++) {
+                nids[next++] = high | values[i];
+            }
+            return next;
+        }
+
+        @Override
+        public void writeTo(DataOutputStream dataOutput) throws IOException {
+            for (int i = 0; i < cardinality; i++) {
+                dataOutput.writeChar(values[i]);
+            }
+        }
+
+        static ArrayContainer read(DataInputStream dataInput, int cardinality) throws IOException {
+            ArrayContainer container = new ArrayContainer();
+            container.values = new char[Math.max(4, cardinality)];
+            for (int i = 0; i < cardinality; i++) {
+                container.values[i] = dataInput.readChar();
+            }
+            container.cardinality = cardinality;
+            return container;
+        }
+    }
+
+    private static final class BitmapContainer implements Container {
+        private final long[] words = new long[BITMAP_WORDS];
+        private int cardinality;
+
+        @Override
+        public Container add(char value) {
+            long bit = 1L << value;
+            int word = value >>> 6;
+            if ((words[word] & bit) != 0) {
+                return null;
+            }
+            words[word] |= bit;
+            cardinality++;
+            return this;
+        }
+
+        @Override
+        public int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        public int copyTo(int high, int[] nids, int next) {
+            for (int word = 0; word < BITMAP_WORDS; word++) {
+                long bits = words[word];
+                while (bits != 0) {
+                    nids[next++] = high | (word << 6) | Long.numberOfTrailingZeros(bits);
+                    bits &= bits - 1;
+                }
+            }
+            return next;
+        }
+
+        @Override
+        public void writeTo(DataOutputStream dataOutput) throws IOException {
+            for (long word : words) {
+                dataOutput.writeLong(word);
+            }
+        }
+
+        static BitmapContainer read(DataInputStream dataInput, int cardinality) throws IOException {
+            BitmapContainer container = new BitmapContainer();
+            for (int word = 0; word < BITMAP_WORDS; word++) {
+                container.words[word] = dataInput.readLong();
+            }
+            container.cardinality = cardinality;
+            return container;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Checksums the uncompressed bytes of a change set's record entries as they are written to the zip stream.
+ *
+ * Each record entry, whether the single entry, a block or a per-type entry, gets a CRC32C that is recorded in its
+ * own manifest section, so a verifier can name the entry that is damaged. A SHA-256 digest of every record entry,
+ * in the order the entries appear in the zip, is recorded in the main manifest section under
+ * {@link #MANIFEST_RECORD_DIGEST}. The offset index and the manifest are not covered.
+ *
+ * Writes are forwarded to the zip stream; closing this stream does not close it.
+ */
+class EntryChecksums extends OutputStream {
+    /**
+     * The main manifest attribute holding the SHA-256 digest of the record entries.
+     */
+    static final String MANIFEST_RECORD_DIGEST = "Record-Digest";
+    /**
+     * The per-entry manifest attribute holding the CRC32C of the entry's uncompressed bytes.
+     */
+    static final String MANIFEST_ENTRY_CRC32C = "CRC32C";
+    private final OutputStream zipOutput;
+    private final CRC32C entryCrc = new CRC32C();
+    private final MessageDigest recordDigest;
+    private final Map<String, Long> entryCrcs = new LinkedHashMap<>();
+    private String entryName;
+
+    EntryChecksums(OutputStream zipOutput) {
+        this.zipOutput = zipOutput;
+        try {
+            this.recordDigest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Starts checksumming a new record entry. The caller has already put the entry on the zip stream.
+     *
+     * @param entryName the name of the entry
+     */
+    void startEntry(String entryName) {
+        this.entryName = entryName;
+        entryCrc.reset();
+    }
+
+    /**
+     * Records the checksum of the current record entry. The caller closes the entry on the zip stream.
+     */
+    void endEntry() {
+        if (entryName != null) {
+            entryCrcs.put(entryName, entryCrc.getValue());
+            entryName = null;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        zipOutput.write(b);
+        entryCrc.update(b);
+        recordDigest.update((byte) b);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        zipOutput.write(buffer, offset, length);
+        entryCrc.update(buffer, offset, length);
+        recordDigest.update(buffer, offset, length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        zipOutput.flush();
+    }
+
+    @Override
+    public void close() {
+        // The zip stream is owned by the writer.
+    }
+
+    /**
+     * Appends the record digest to the main section of a manifest.
+     *
+     * @param manifestContent the main section being built
+     * @return the manifest content
+     */
+    StringBuilder appendDigestTo(StringBuilder manifestContent) {
+        return manifestContent.append(MANIFEST_RECORD_DIGEST).append(": sha-256:")
+                .append(HexFormat.of().formatHex(recordDigest.digest())).append("\n");
+    }
+
+    /**
+     * Appends one manifest section per record entry, holding its CRC32C. Must be called after the main section,
+     * including the blank line that ends it, has been appended.
+     *
+     * @param manifestContent the manifest being built
+     * @return the manifest content
+     */
+    StringBuilder appendEntrySectionsTo(StringBuilder manifestContent) {
+        entryCrcs.forEach((name, crc) -> manifestContent.append("Name: ").append(name).append("\n")
+                .append(MANIFEST_ENTRY_CRC32C).append(": ").append(String.format("%08x", crc)).append("\n\n"));
+        return manifestContent;
+    }
+}
@@ -0,0 +1,114 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.id.PublicId;
+import org.eclipse.collections.api.factory.primitive.ByteLists;
+import org.eclipse.collections.api.factory.primitive.IntLists;
+import org.eclipse.collections.api.factory.primitive.LongLists;
+import org.eclipse.collections.api.list.primitive.MutableByteList;
+import org.eclipse.collections.api.list.primitive.MutableIntList;
+import org.eclipse.collections.api.list.primitive.MutableLongList;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Builds up the offset index of a change set as records are written, in the format read by
+ * {@link ChangeSetIndex}.
+ *
+ * Records are held in primitive lists, so that indexing a large change set costs a few dozen bytes per record.
+ */
+class IndexAccumulator {
+    private final List<String> entryNames = new ArrayList<>();
+    private final Map<String, Integer> entryOrdinals = new HashMap<>();
+    private final MutableIntList entryRecordCounts = IntLists.mutable.empty();
+    private final MutableLongList entryBytes = LongLists.mutable.empty();
+    private final MutableIntList recordEntries = IntLists.mutable.empty();
+    private final MutableLongList recordOffsets = LongLists.mutable.empty();
+    private final MutableByteList recordTypes = ByteLists.mutable.empty();
+    private final MutableIntList recordNids = IntLists.mutable.empty();
+    private final MutableIntList recordUuidCounts = IntLists.mutable.empty();
+    private final MutableLongList recordUuidBits = LongLists.mutable.empty();
+
+    /**
+     * Records the position of a record written to the change set.
+     *
+     * @param entryName the zip entry that holds the record
+     * @param offset    the uncompressed offset of the record within the entry
+     * @param length    the number of bytes of the record
+     * @param type      the type of entity in the record
+     * @param nid       the nid of the entity
+     * @param publicId  the public id of the entity, or {@code null} if it is not known
+     */
+    void addRecord(String entryName, long offset, int length, ChangeSetRecordType type, int nid,
+                   PublicId publicId) {
+        int entryOrdinal = entryOrdinals.computeIfAbsent(entryName, name -> {
+            entryNames.add(name);
+            entryRecordCounts.add(0);
+            entryBytes.add(0);
+            return entryNames.size() - 1;
+        });
+        entryRecordCounts.set(entryOrdinal, entryRecordCounts.get(entryOrdinal) + 1);
+        entryBytes.set(entryOrdinal, Math.max(entryBytes.get(entryOrdinal), offset + length));
+        recordEntries.add(entryOrdinal);
+        recordOffsets.add(offset);
+        recordTypes.add(type.code());
+        recordNids.add(nid);
+        if (publicId == null) {
+            recordUuidCounts.add(0);
+        } else {
+            UUID[] uuids = publicId.asUuidArray();
+            recordUuidCounts.add(uuids.length);
+            for (UUID uuid : uuids) {
+                recordUuidBits.add(uuid.getMostSignificantBits());
+                recordUuidBits.add(uuid.getLeastSignificantBits());
+            }
+        }
+    }
+
+    /**
+     * Returns the number of records indexed so far.
+     *
+     * @return the record count
+     */
+    int recordCount() {
+        return recordEntries.size();
+    }
+
+    /**
+     * Writes the index. The stream is flushed but not closed.
+     *
+     * @param out the stream to write the index to
+     * @throws IOException if the index cannot be written
+     */
+    void writeTo(OutputStream out) throws IOException {
+        DataOutputStream dataOutput = new DataOutputStream(out);
+        dataOutput.writeInt(ChangeSetIndex.MAGIC);
+        dataOutput.writeInt(ChangeSetIndex.VERSION);
+        dataOutput.writeInt(entryNames.size());
+        for (int i = 0; i < entryNames.size(); i++) {
+            dataOutput.writeUTF(entryNames.get(i));
+            dataOutput.writeInt(entryRecordCounts.get(i));
+            dataOutput.writeLong(entryBytes.get(i));
+        }
+        dataOutput.writeInt(recordEntries.size());
+        int uuidBitsIndex = 0;
+        for (int i = 0; i < recordEntries.size(); i++) {
+            dataOutput.writeInt(recordEntries.get(i));
+            dataOutput.writeLong(recordOffsets.get(i));
+            dataOutput.writeByte(recordTypes.get(i));
+            dataOutput.writeInt(recordNids.get(i));
+            int uuidCount = recordUuidCounts.get(i);
+            dataOutput.writeInt(uuidCount);
+            for (int j = 0; j < uuidCount * 2; j++) {
+                dataOutput.writeLong(recordUuidBits.get(uuidBitsIndex++));
+            }
+        }
+        dataOutput.flush();
+    }
+}
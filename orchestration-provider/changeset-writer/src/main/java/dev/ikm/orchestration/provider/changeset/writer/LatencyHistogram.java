@@ -0,0 +1,60 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import org.eclipse.collections.api.factory.primitive.LongLists;
+import org.eclipse.collections.api.list.primitive.ImmutableLongList;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power-of-two microsecond buckets.
+ *
+ * Bucket {@code i} counts latencies up to {@code 2^i} microseconds; the last bucket also counts everything
+ * longer.
+ */
+public class LatencyHistogram {
+    private static final int BUCKET_COUNT = 24;
+    private static final ImmutableLongList BUCKET_UPPER_BOUNDS_MICROS;
+
+    static {
+        long[] upperBounds = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            upperBounds[i] = 1L << i;
+        }
+        BUCKET_UPPER_BOUNDS_MICROS = LongLists.immutable.of(upperBounds);
+    }
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        counts.incrementAndGet(Math.min(bucket, BUCKET_COUNT - 1));
+    }
+
+    /**
+     * Returns the upper bound, in microseconds, of each bucket.
+     *
+     * @return the bucket upper bounds
+     */
+    public ImmutableLongList bucketUpperBoundsMicros() {
+        return BUCKET_UPPER_BOUNDS_MICROS;
+    }
+
+    /**
+     * Returns the current count of each bucket.
+     *
+     * @return the bucket counts
+     */
+    public ImmutableLongList counts() {
+        long[] snapshot = new long[BUCKET_COUNT];
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return LongLists.immutable.of(snapshot);
+    }
+}
@@ -0,0 +1,167 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import dev.ikm.tinkar.common.alert.AlertStreams;
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.transform.TinkarSchemaToEntityTransformer;
+import dev.ikm.tinkar.schema.TinkarMsg;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Seals the change sets a previous run left unsealed without a crash recovery journal, so that their
+ * {@link ChangeSetWriter#IN_PROGRESS_SUFFIX} files do not pile up in the change set folder.
+ *
+ * An unsealed change set has no central directory or manifest, but its entries can still be read in order from
+ * their local headers, up to the last record that reached the disk. Transaction groups are sync flushed and forced
+ * to disk, so every group committed before the previous run stopped is there. Those records are copied to a new
+ * change set, sealed under the name the previous run would have given it, and the unsealed file is removed. A
+ * change set in the {@link RecordFormat#PUBLIC_ID_DICTIONARY} format cannot be read before its dictionary is
+ * written at sealing, so it is removed instead, and the loss is reported.
+ */
+final class LeftoverChangeSets {
+    /**
+     * The suffix an unsealed change set is renamed to while its records are copied, so that the new writer can
+     * open its own in-progress file under the same name. A file with this suffix is left by a run that stopped
+     * while sealing it, and is sealed again.
+     */
+    private static final String SALVAGE_SUFFIX = ".salvage";
+
+    private LeftoverChangeSets() {
+    }
+
+    /**
+     * Seals or removes every unsealed change set under the change set folder. Must be called after the journals
+     * have been recovered, and before any writer is opened.
+     *
+     * @param entityService   the EntityService used to decode the copied records
+     * @param changeSetFolder the change set folder
+     * @param options         the options used to write the sealed change sets
+     * @return the number of change sets sealed
+     * @throws IOException if the change set folder cannot be read
+     */
+    static int sealAll(EntityService entityService, Path changeSetFolder, ChangeSetWriterOptions options)
+            throws IOException {
+        List<Path> leftoverFiles;
+        try (Stream<Path> files = Files.walk(changeSetFolder, 4)) {
+            leftoverFiles = files.filter(Files::isRegularFile)
+                    .filter(file -> file.getFileName().toString().endsWith(ChangeSetWriter.IN_PROGRESS_SUFFIX)
+                            || file.getFileName().toString().endsWith(SALVAGE_SUFFIX))
+                    .filter(file -> !file.startsWith(changeSetFolder.resolve(".git")))
+                    .toList();
+        }
+        int sealedCount = 0;
+        for (Path leftoverFile : leftoverFiles) {
+            try {
+                if (seal(entityService, leftoverFile, options)) {
+                    sealedCount++;
+                }
+            } catch (IOException | RuntimeException e) {
+                AlertStreams.dispatchToRoot(new IOException("Could not seal leftover change set " + leftoverFile, e));
+            }
+        }
+        return sealedCount;
+    }
+
+    private static boolean seal(EntityService entityService, Path leftoverFile, ChangeSetWriterOptions options)
+            throws IOException {
+        String fileName = leftoverFile.getFileName().toString();
+        String suffix = fileName.endsWith(SALVAGE_SUFFIX) ? SALVAGE_SUFFIX : ChangeSetWriter.IN_PROGRESS_SUFFIX;
+        Path changeSetFile = leftoverFile.resolveSibling(fileName.substring(0, fileName.length() - suffix.length()));
+        if (options.recordFormat() == RecordFormat.PUBLIC_ID_DICTIONARY) {
+            Files.delete(leftoverFile);
+            AlertStreams.dispatchToRoot(new IOException("Removed unsealed change set " + leftoverFile
+                    + ": its records cannot be decoded without the dictionary written at sealing"));
+            return false;
+        }
+        Path salvageFile = leftoverFile;
+        if (suffix.equals(ChangeSetWriter.IN_PROGRESS_SUFFIX)) {
+            salvageFile = leftoverFile.resolveSibling(changeSetFile.getFileName() + SALVAGE_SUFFIX);
+            Files.move(leftoverFile, salvageFile);
+        }
+        ChangeSetWriter changeSetWriter = new ChangeSetWriter(entityService, changeSetFile.toFile(),
+                options.withJournalRoot(null));
+        long copiedCount;
+        try {
+            copiedCount = copyRecords(salvageFile, changeSetWriter);
+        } catch (IOException | RuntimeException e) {
+            changeSetWriter.discard();
+            throw e;
+        }
+        changeSetWriter.close();
+        Files.delete(salvageFile);
+        return copiedCount > 0;
+    }
+
+    /**
+     * Copies every intact record of an unsealed change set, stopping at the first entry or record cut short. The
+     * rest of the file never reached the disk.
+     */
+    private static long copyRecords(Path salvageFile, ChangeSetWriter changeSetWriter) throws IOException {
+        TinkarSchemaToEntityTransformer entityTransformer = TinkarSchemaToEntityTransformer.getInstance();
+        long copiedCount = 0;
+        try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(Files.newInputStream(salvageFile)))) {
+            ZipEntry zipEntry;
+            while ((zipEntry = nextEntry(zis)) != null) {
+                if (zipEntry.isDirectory()) {
+                    continue;
+                }
+                byte[] record;
+                TinkarMsg pbTinkarMsg;
+                while ((record = nextRecord(zis)) != null && (pbTinkarMsg = parse(record)) != null) {
+                    List<Entity<?>> entities = new ArrayList<>(1);
+                    entityTransformer.transform(pbTinkarMsg, entities::add, entities::add);
+                    for (Entity<?> entity : entities) {
+                        changeSetWriter.appendCopied(entity, record, record.length);
+                    }
+                    copiedCount++;
+                }
+            }
+        }
+        return copiedCount;
+    }
+
+    private static ZipEntry nextEntry(ZipInputStream zis) {
+        try {
+            return zis.getNextEntry();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] nextRecord(InputStream entryInput) {
+        try {
+            int firstByte = entryInput.read();
+            if (firstByte == -1) {
+                return null;
+            }
+            int size = CodedInputStream.readRawVarint32(firstByte, entryInput);
+            int prefixLength = CodedOutputStream.computeUInt32SizeNoTag(size);
+            byte[] record = new byte[prefixLength + size];
+            CodedOutputStream.newInstance(record, 0, prefixLength).writeUInt32NoTag(size);
+            return entryInput.readNBytes(record, prefixLength, size) == size ? record : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static TinkarMsg parse(byte[] record) {
+        try {
+            int size = CodedInputStream.newInstance(record).readUInt32();
+            return TinkarMsg.parseFrom(CodedInputStream.newInstance(record, record.length - size, size));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
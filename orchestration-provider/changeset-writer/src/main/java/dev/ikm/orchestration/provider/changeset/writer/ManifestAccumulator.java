@@ -0,0 +1,111 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.entity.Entity;
+import dev.ikm.tinkar.entity.EntityService;
+import dev.ikm.tinkar.entity.EntityVersion;
+import dev.ikm.tinkar.entity.StampEntity;
+import org.eclipse.collections.api.factory.primitive.IntSets;
+import org.eclipse.collections.api.set.primitive.MutableIntSet;
+
+import java.time.Instant;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Builds up the module, author and time range sections of a change set manifest as stamps are written,
+ * so that sealing a change set does not have to look up any entities.
+ *
+ * The manifest entry for a module or author is rendered once, the first time its nid is seen by any writer,
+ * and cached for the life of the process.
+ */
+public class ManifestAccumulator {
+    private static final ConcurrentHashMap<Integer, String> MANIFEST_ENTRY_CACHE = new ConcurrentHashMap<>();
+
+    private final MutableIntSet moduleNids = IntSets.mutable.empty();
+    private final MutableIntSet authorNids = IntSets.mutable.empty();
+    private long earliestStampTime = Long.MAX_VALUE;
+    private long latestStampTime = Long.MIN_VALUE;
+
+    /**
+     * Renders and caches the manifest entries for the module and author of the stamp. Safe to call from any
+     * thread, which lets transform threads take the lookups off the writing thread.
+     *
+     * @param stampEntity the stamp whose module and author will appear in a manifest
+     */
+    public static void prefetch(StampEntity<?> stampEntity) {
+        manifestEntry(stampEntity.moduleNid());
+        manifestEntry(stampEntity.authorNid());
+    }
+
+    /**
+     * Records the module, author and time of a stamp written to the change set.
+     *
+     * @param stampEntity the stamp that was written
+     */
+    public void addStamp(StampEntity<?> stampEntity) {
+        moduleNids.add(stampEntity.moduleNid());
+        authorNids.add(stampEntity.authorNid());
+        long time = stampEntity.time();
+        // Uncommitted (Long.MAX_VALUE) and canceled (Long.MIN_VALUE) stamps do not have a meaningful time.
+        if (time != Long.MAX_VALUE && time != Long.MIN_VALUE) {
+            earliestStampTime = Math.min(earliestStampTime, time);
+            latestStampTime = Math.max(latestStampTime, time);
+        }
+    }
+
+    /**
+     * Returns the earliest time of the committed stamps recorded so far.
+     *
+     * @return the earliest stamp time in epoch milliseconds, or empty if no committed stamp has been recorded
+     */
+    public OptionalLong earliestStampTime() {
+        return earliestStampTime <= latestStampTime ? OptionalLong.of(earliestStampTime) : OptionalLong.empty();
+    }
+
+    /**
+     * Appends the stamp time range and the module and author entries to the manifest content.
+     *
+     * @param manifestContent the manifest being built
+     * @return the manifest content, for chaining
+     */
+    public StringBuilder appendTo(StringBuilder manifestContent) {
+        if (earliestStampTime <= latestStampTime) {
+            manifestContent.append("Earliest-Stamp-Time: ").append(Instant.ofEpochMilli(earliestStampTime)).append("\n")
+                    .append("Latest-Stamp-Time: ").append(Instant.ofEpochMilli(latestStampTime)).append("\n");
+        }
+        moduleNids.each(nid -> manifestContent.append(manifestEntry(nid)));
+        authorNids.each(nid -> manifestContent.append(manifestEntry(nid)));
+        return manifestContent;
+    }
+
+    /**
+     * Returns the cached manifest entry for a nid, rendering it on first use.
+     *
+     * @param nid the nid of a module or author concept
+     * @return the manifest entry
+     */
+    private static String manifestEntry(int nid) {
+        return MANIFEST_ENTRY_CACHE.computeIfAbsent(nid, ManifestAccumulator::renderManifestEntry);
+    }
+
+    /**
+     * Renders the manifest entry for a nid, naming it by its UUIDs and describing it by its description.
+     *
+     * @param nid the nid of a module or author concept
+     * @return the manifest entry
+     */
+    private static String renderManifestEntry(int nid) {
+        Optional<Entity<EntityVersion>> entity = EntityService.get().getEntity(nid);
+        String idString = entity.map(e -> e.publicId().asUuidList().stream()
+                        .map(UUID::toString)
+                        .collect(Collectors.joining(",")))
+                .orElse("nid:" + nid);
+        String manifestDescription = entity.map(Entity::description).orElse("Description Undefined");
+        return "\n" +
+                "Name: " + idString + "\n" +
+                "Description: " + manifestDescription + "\n";
+    }
+}
@@ -0,0 +1,58 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A set of nids backed by pages of bits, so that membership is a single bit test.
+ *
+ * Nids are mostly negative, counting up from {@link Integer#MIN_VALUE}, so each nid is offset by
+ * {@link Integer#MIN_VALUE} to an unsigned bit index, and the pages holding those indexes are created as they are
+ * first written to. Thread safe without locking: pages are published and bits are set atomically, so any number of
+ * threads can test nids while others add them.
+ */
+final class NidBitSet {
+    private static final int PAGE_SHIFT = 16;
+    private static final int PAGE_BITS = 1 << PAGE_SHIFT;
+    private static final int PAGE_COUNT = 1 << (Integer.SIZE - PAGE_SHIFT);
+
+    private final AtomicReferenceArray<AtomicLongArray> pages = new AtomicReferenceArray<>(PAGE_COUNT);
+
+    /**
+     * Returns whether the set holds the nid.
+     *
+     * @param nid the nid to test
+     * @return {@code true} if the nid is in the set
+     */
+    boolean contains(int nid) {
+        int index = nid ^ Integer.MIN_VALUE;
+        AtomicLongArray page = pages.get(index >>> PAGE_SHIFT);
+        return page != null && (page.get((index & (PAGE_BITS - 1)) >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Adds a nid to the set.
+     *
+     * @param nid the nid to add
+     */
+    void add(int nid) {
+        int index = nid ^ Integer.MIN_VALUE;
+        int pageIndex = index >>> PAGE_SHIFT;
+        AtomicLongArray page = pages.get(pageIndex);
+        if (page == null) {
+            pages.compareAndSet(pageIndex, null, new AtomicLongArray(PAGE_BITS / Long.SIZE));
+            page = pages.get(pageIndex);
+        }
+        long bit = 1L << index;
+        page.getAndAccumulate((index & (PAGE_BITS - 1)) >>> 6, bit, (word, mask) -> word | mask);
+    }
+
+    /**
+     * Removes every nid from the set. Nids added while the set is being cleared may or may not be kept.
+     */
+    void clear() {
+        for (int i = 0; i < PAGE_COUNT; i++) {
+            pages.set(i, null);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded FIFO queue of native identifiers backed by a primitive int ring buffer, so that enqueueing
+ * a nid does not allocate.
+ *
+ * The queue has a single consumer that drains nids in batches and reports when each batch has been
+ * processed. This lets other threads wait until every nid queued so far has been written, either until the
+ * queue is empty or, while other threads keep adding nids, until the nids queued before a {@link #mark()}.
+ *
+ * The nids of a committed transaction are queued as one group with {@link #putGroup(int[])}. A group takes its
+ * place in the queue's order like a single nid, but is held outside the ring buffer, so it is not limited by the
+ * capacity. {@link #drainTo(int[], long, TimeUnit)} stops at a group, which the consumer then takes whole with
+ * {@link #pollGroup()}, so a group is written after every nid queued before it and before every nid queued after.
+ */
+public class NidQueue {
+    private final int[] elements;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final ArrayDeque<QueuedGroup> groups = new ArrayDeque<>();
+    private int head;
+    private int count;
+    private boolean batchInProgress;
+    private int batchCount;
+    private long putCount;
+    private long takeCount;
+    private long completedCount;
+
+    /**
+     * Creates a queue that holds at most {@code capacity} nids.
+     *
+     * @param capacity the maximum number of queued nids
+     * @throws IllegalArgumentException if capacity is less than one
+     */
+    public NidQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+        this.elements = new int[capacity];
+    }
+
+    /**
+     * Adds a nid to the tail of the queue, waiting for space if the queue is full.
+     *
+     * @param nid the nid to add
+     * @throws InterruptedException if interrupted while waiting for space
+     */
+    public void put(int nid) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == elements.length) {
+                notFull.await();
+            }
+            elements[index(count)] = nid;
+            count++;
+            putCount++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the nids of a committed transaction to the tail of the queue as one group. Counts as a single item
+     * for {@link #mark()} and never waits for space.
+     *
+     * @param nids the nids of the group, in the order they are to be written
+     * @return a mark covering the group, for use with {@link #awaitCompleted(long)}
+     */
+    public long putGroup(int[] nids) {
+        lock.lock();
+        try {
+            groups.add(new QueuedGroup(putCount, nids));
+            putCount++;
+            notEmpty.signal();
+            return putCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the group at the head of the queue, if the head is a group. When a group is returned, the caller
+     * must call {@link #batchComplete()} once it has been written.
+     *
+     * @return the nids of the group, or {@code null} if the head of the queue is not a group
+     */
+    public int[] pollGroup() {
+        lock.lock();
+        try {
+            if (!groupAtHead()) {
+                return null;
+            }
+            takeCount++;
+            batchInProgress = true;
+            batchCount = 1;
+            return groups.poll().nids();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes up to {@code batch.length} nids from the head of the queue into the batch array, waiting up to
+     * the given timeout for a nid to become available. Stops at the next group, and returns 0 without waiting
+     * when a group is at the head; see {@link #pollGroup()}. When at least one nid is returned, the caller must
+     * call {@link #batchComplete()} once the batch has been processed.
+     *
+     * @param batch   the array to fill
+     * @param timeout how long to wait for a nid
+     * @param unit    the unit of the timeout
+     * @return the number of nids placed in the batch, or 0 if the timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int drainTo(int[] batch, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0 && groups.isEmpty()) {
+                if (nanos <= 0L) {
+                    return 0;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            int drainCount = Math.min(batch.length, count);
+            if (!groups.isEmpty()) {
+                drainCount = (int) Math.min(drainCount, groups.peek().position() - takeCount);
+            }
+            if (drainCount == 0) {
+                return 0;
+            }
+            for (int i = 0; i < drainCount; i++) {
+                batch[i] = elements[head];
+                if (++head == elements.length) {
+                    head = 0;
+                }
+            }
+            count -= drainCount;
+            takeCount += drainCount;
+            batchInProgress = true;
+            batchCount = drainCount;
+            notFull.signalAll();
+            return drainCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Signals that the batch returned by the last call to {@link #drainTo(int[], long, TimeUnit)} has been
+     * processed.
+     */
+    public void batchComplete() {
+        lock.lock();
+        try {
+            batchInProgress = false;
+            completedCount += batchCount;
+            batchCount = 0;
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the queue is empty and the consumer has finished processing its current batch.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitDrained() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count > 0 || !groups.isEmpty() || batchInProgress) {
+                drained.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a mark covering every nid added to the queue so far, for use with {@link #awaitCompleted(long)}.
+     *
+     * @return the number of nids added to the queue so far
+     */
+    public long mark() {
+        lock.lock();
+        try {
+            return putCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the consumer has finished processing every nid added before the mark was taken. Unlike
+     * {@link #awaitDrained()}, this returns even while other threads keep adding nids.
+     *
+     * @param mark a value returned by {@link #mark()}
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitCompleted(long mark) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (completedCount < mark) {
+                drained.await();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of nids and groups currently waiting in the queue.
+     *
+     * @return the queue depth
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return count + groups.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the maximum number of nids this queue can hold.
+     *
+     * @return the queue capacity
+     */
+    public int capacity() {
+        return elements.length;
+    }
+
+    private int index(int offset) {
+        int index = head + offset;
+        return index < elements.length ? index : index - elements.length;
+    }
+
+    private boolean groupAtHead() {
+        return !groups.isEmpty() && groups.peek().position() == takeCount;
+    }
+
+    /**
+     * A group waiting in the queue.
+     *
+     * @param position the number of items queued before the group
+     * @param nids     the nids of the group
+     */
+    private record QueuedGroup(long position, int[] nids) {
+    }
+}
@@ -0,0 +1,261 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+import dev.ikm.tinkar.schema.TinkarMsg;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * The per-file dictionary of the {@link RecordFormat#PUBLIC_ID_DICTIONARY} record format, and the codec that
+ * moves records between that format and plain TinkarMsgs.
+ *
+ * Most of a record is the PublicIds of the stamps, modules, paths, authors and patterns it refers to, the same few
+ * thousand repeated across the file, and further apart than deflate's window. An encoded record keeps the wire
+ * format of its TinkarMsg, except that each PublicId field is written as a varint field, with the same field
+ * number, holding the index of the PublicId's serialized bytes in this dictionary. Fields are identified by the
+ * TinkarMsg descriptors, and messages that cannot hold a PublicId are copied without being walked, so a record
+ * decodes to exactly the bytes it was encoded from.
+ *
+ * The dictionary is written when the change set is sealed, to the {@value #DICTIONARY_ENTRY} entry, as a varint
+ * count followed by each PublicId's varint length and bytes, in index order.
+ *
+ * A dictionary is filled by one writing thread; once read, it may be used to decode on any number of threads.
+ */
+public class PublicIdDictionary {
+    /**
+     * The name of the entry that holds the dictionary.
+     */
+    public static final String DICTIONARY_ENTRY = "publicids.dict";
+    private static final String PUBLIC_ID_MESSAGE = "PublicId";
+    private static final Map<Descriptor, Boolean> HOLDS_PUBLIC_ID = new ConcurrentHashMap<>();
+    private final Map<ByteString, Integer> indexes = new HashMap<>();
+    private final List<ByteString> publicIds = new ArrayList<>();
+
+    /**
+     * Returns the number of PublicIds in the dictionary.
+     *
+     * @return the dictionary size
+     */
+    public int size() {
+        return publicIds.size();
+    }
+
+    /**
+     * Encodes a plain record, adding the PublicIds it refers to to the dictionary.
+     *
+     * @param record the varint length prefix followed by a serialized TinkarMsg
+     * @param length the number of bytes of the array in use
+     * @return the encoded record, with its own length prefix
+     * @throws IOException if the record is not a valid TinkarMsg
+     */
+    public byte[] encodeRecord(byte[] record, int length) throws IOException {
+        return transcodeRecord(record, length, true);
+    }
+
+    /**
+     * Decodes an encoded record back to a plain record.
+     *
+     * @param record the varint length prefix followed by an encoded TinkarMsg
+     * @param length the number of bytes of the array in use
+     * @return the plain record, with its own length prefix
+     * @throws IOException if the record is not valid or refers to an index not in the dictionary
+     */
+    public byte[] decodeRecord(byte[] record, int length) throws IOException {
+        return transcodeRecord(record, length, false);
+    }
+
+    /**
+     * Reads the next encoded record from a stream and parses it.
+     *
+     * @param input the stream positioned at a record's length prefix
+     * @return the message, or {@code null} at the end of the stream
+     * @throws IOException if the record cannot be read or decoded
+     */
+    public TinkarMsg parseDelimitedFrom(InputStream input) throws IOException {
+        int firstByte = input.read();
+        if (firstByte == -1) {
+            return null;
+        }
+        int size = CodedInputStream.readRawVarint32(firstByte, input);
+        byte[] encoded = input.readNBytes(size);
+        if (encoded.length != size) {
+            throw new EOFException("Truncated change set record");
+        }
+        ByteString.Output decoded = ByteString.newOutput(size * 2);
+        CodedOutputStream output = CodedOutputStream.newInstance(decoded);
+        transcode(CodedInputStream.newInstance(encoded), TinkarMsg.getDescriptor(), output, false);
+        output.flush();
+        return TinkarMsg.parseFrom(decoded.toByteString());
+    }
+
+    /**
+     * Writes the dictionary.
+     *
+     * @param output the stream to write to, typically the dictionary's zip entry
+     * @throws IOException if the stream cannot be written
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        CodedOutputStream codedOutput = CodedOutputStream.newInstance(output);
+        codedOutput.writeUInt32NoTag(publicIds.size());
+        for (ByteString publicId : publicIds) {
+            codedOutput.writeBytesNoTag(publicId);
+        }
+        codedOutput.flush();
+    }
+
+    /**
+     * Reads a dictionary written by {@link #writeTo(OutputStream)}.
+     *
+     * @param input the stream to read from
+     * @return the dictionary
+     * @throws IOException if the dictionary cannot be read
+     */
+    public static PublicIdDictionary readFrom(InputStream input) throws IOException {
+        CodedInputStream codedInput = CodedInputStream.newInstance(input);
+        codedInput.setSizeLimit(Integer.MAX_VALUE);
+        PublicIdDictionary dictionary = new PublicIdDictionary();
+        int count = codedInput.readUInt32();
+        for (int i = 0; i < count; i++) {
+            dictionary.indexOf(codedInput.readBytes());
+        }
+        return dictionary;
+    }
+
+    /**
+     * Reads the dictionary of a change set.
+     *
+     * @param zipFile the open change set
+     * @return the dictionary
+     * @throws IOException if the change set has no dictionary, or it cannot be read
+     */
+    public static PublicIdDictionary read(ZipFile zipFile) throws IOException {
+        ZipEntry entry = zipFile.getEntry(DICTIONARY_ENTRY);
+        if (entry == null) {
+            throw new ZipException("Missing change set entry: " + DICTIONARY_ENTRY);
+        }
+        try (InputStream dictionaryInput = new BufferedInputStream(zipFile.getInputStream(entry))) {
+            return readFrom(dictionaryInput);
+        }
+    }
+
+    private int indexOf(ByteString publicId) {
+        Integer index = indexes.get(publicId);
+        if (index == null) {
+            index = publicIds.size();
+            indexes.put(publicId, index);
+            publicIds.add(publicId);
+        }
+        return index;
+    }
+
+    private ByteString publicId(int index) throws InvalidProtocolBufferException {
+        if (index < 0 || index >= publicIds.size()) {
+            throw new InvalidProtocolBufferException("PublicId index " + index + " is not in the dictionary of "
+                    + publicIds.size());
+        }
+        return publicIds.get(index);
+    }
+
+    private byte[] transcodeRecord(byte[] record, int length, boolean encoding) throws IOException {
+        CodedInputStream input = CodedInputStream.newInstance(record, 0, length);
+        int size = input.readRawVarint32();
+        input.pushLimit(size);
+        ByteString.Output transcoded = ByteString.newOutput(size);
+        CodedOutputStream output = CodedOutputStream.newInstance(transcoded);
+        transcode(input, TinkarMsg.getDescriptor(), output, encoding);
+        output.flush();
+        int transcodedSize = transcoded.size();
+        byte[] transcodedRecord = new byte[CodedOutputStream.computeUInt32SizeNoTag(transcodedSize) + transcodedSize];
+        CodedOutputStream recordOutput = CodedOutputStream.newInstance(transcodedRecord);
+        recordOutput.writeUInt32NoTag(transcodedSize);
+        recordOutput.writeRawBytes(transcoded.toByteString());
+        recordOutput.flush();
+        return transcodedRecord;
+    }
+
+    /**
+     * Copies the fields of a message from input to output, replacing PublicId fields with dictionary indexes when
+     * encoding, and dictionary indexes with PublicId fields when decoding.
+     */
+    private void transcode(CodedInputStream input, Descriptor descriptor, CodedOutputStream output,
+                           boolean encoding) throws IOException {
+        int tag;
+        while ((tag = input.readTag()) != 0) {
+            int fieldNumber = WireFormat.getTagFieldNumber(tag);
+            int wireType = WireFormat.getTagWireType(tag);
+            FieldDescriptor field = descriptor.findFieldByNumber(fieldNumber);
+            if (field != null && field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+                Descriptor fieldType = field.getMessageType();
+                if (isPublicId(fieldType)) {
+                    if (encoding && wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                        output.writeUInt32(fieldNumber, indexOf(input.readBytes()));
+                        continue;
+                    }
+                    if (!encoding && wireType == WireFormat.WIRETYPE_VARINT) {
+                        output.writeBytes(fieldNumber, publicId(input.readUInt32()));
+                        continue;
+                    }
+                } else if (wireType == WireFormat.WIRETYPE_LENGTH_DELIMITED && holdsPublicId(fieldType)) {
+                    int oldLimit = input.pushLimit(input.readRawVarint32());
+                    ByteString.Output nested = ByteString.newOutput();
+                    CodedOutputStream nestedOutput = CodedOutputStream.newInstance(nested);
+                    transcode(input, fieldType, nestedOutput, encoding);
+                    nestedOutput.flush();
+                    input.popLimit(oldLimit);
+                    output.writeBytes(fieldNumber, nested.toByteString());
+                    continue;
+                }
+            }
+            input.skipField(tag, output);
+        }
+    }
+
+    private static boolean isPublicId(Descriptor descriptor) {
+        return descriptor.getName().equals(PUBLIC_ID_MESSAGE);
+    }
+
+    private static boolean holdsPublicId(Descriptor descriptor) {
+        Boolean holds = HOLDS_PUBLIC_ID.get(descriptor);
+        if (holds == null) {
+            holds = reachesPublicId(descriptor, new HashSet<>());
+            HOLDS_PUBLIC_ID.put(descriptor, holds);
+        }
+        return holds;
+    }
+
+    private static boolean reachesPublicId(Descriptor descriptor, Set<Descriptor> visited) {
+        if (isPublicId(descriptor)) {
+            return true;
+        }
+        if (!visited.add(descriptor)) {
+            return false;
+        }
+        for (FieldDescriptor field : descriptor.getFields()) {
+            if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE
+                    && reachesPublicId(field.getMessageType(), visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,55 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of byte arrays used to serialize entity records, so that the steady state of a change set
+ * writer does not allocate a new buffer for every record.
+ *
+ * A buffer is acquired by the thread that serializes a record and released by the thread that writes it, so
+ * the pool is safe for concurrent use. Buffers larger than the maximum pooled size are left to the garbage
+ * collector, which keeps a single huge record from pinning memory.
+ */
+public class RecordBufferPool {
+    private static final int MINIMUM_BUFFER_SIZE = 4096;
+    private final ArrayBlockingQueue<byte[]> buffers;
+    private final int maxPooledBufferSize;
+
+    /**
+     * Creates a pool.
+     *
+     * @param capacity            the maximum number of idle buffers held by the pool
+     * @param maxPooledBufferSize the largest buffer, in bytes, that is returned to the pool
+     */
+    public RecordBufferPool(int capacity, int maxPooledBufferSize) {
+        this.buffers = new ArrayBlockingQueue<>(capacity);
+        this.maxPooledBufferSize = maxPooledBufferSize;
+    }
+
+    /**
+     * Returns a buffer of at least the requested size, reusing an idle buffer when one is large enough.
+     *
+     * @param minimumSize the number of bytes the caller needs
+     * @return a buffer with a length of at least minimumSize
+     */
+    public byte[] acquire(int minimumSize) {
+        byte[] buffer = buffers.poll();
+        if (buffer != null && buffer.length >= minimumSize) {
+            return buffer;
+        }
+        // An idle buffer that is too small is dropped and replaced by a larger one, so the pool grows
+        // towards the record sizes it actually sees.
+        return new byte[Math.max(minimumSize, MINIMUM_BUFFER_SIZE)];
+    }
+
+    /**
+     * Returns a buffer to the pool once its contents have been written.
+     *
+     * @param buffer the buffer to return
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length <= maxPooledBufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.util.Locale;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+
+/**
+ * How the records of a change set file are encoded.
+ *
+ * The format is recorded in the change set manifest under {@link #MANIFEST_RECORD_FORMAT}. Change sets written
+ * before the attribute existed have no such attribute and are read as {@link #PLAIN}.
+ */
+public enum RecordFormat {
+    /**
+     * Each record is a varint length prefix followed by a serialized TinkarMsg.
+     */
+    PLAIN,
+    /**
+     * Each record is a varint length prefix followed by a TinkarMsg whose PublicIds are replaced by varint indexes
+     * into the change set's {@link PublicIdDictionary}, stored in the {@value PublicIdDictionary#DICTIONARY_ENTRY}
+     * entry. Records must be decoded with the dictionary before they are parsed.
+     */
+    PUBLIC_ID_DICTIONARY;
+
+    /**
+     * The manifest attribute that records the format of the change set records.
+     */
+    public static final String MANIFEST_RECORD_FORMAT = "Record-Format";
+
+    /**
+     * Returns the record format recorded in a change set manifest.
+     *
+     * @param manifest the manifest, or {@code null} if the change set has none
+     * @return the record format
+     */
+    public static RecordFormat fromManifest(Manifest manifest) {
+        if (manifest == null) {
+            return PLAIN;
+        }
+        String format = manifest.getMainAttributes().getValue(new Attributes.Name(MANIFEST_RECORD_FORMAT));
+        return format == null ? PLAIN : valueOf(format.trim().toUpperCase(Locale.ROOT));
+    }
+}
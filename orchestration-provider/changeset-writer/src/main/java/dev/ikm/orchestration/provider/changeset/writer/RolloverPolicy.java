@@ -0,0 +1,48 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.time.Duration;
+
+/**
+ * Decides when the {@link ChangeSetWriterManager} should seal the current change set file and start a new one.
+ *
+ * A limit of zero disables the corresponding check. A writer that has not written any entity is never rolled
+ * over, since sealing it would only delete the empty file.
+ *
+ * @param maxUncompressedBytes the maximum bytes of entity records, before compression, in one change set
+ * @param maxEntities          the maximum number of entities in one change set
+ * @param maxAge               the maximum time a change set stays open
+ */
+public record RolloverPolicy(long maxUncompressedBytes, long maxEntities, Duration maxAge) {
+
+    /**
+     * Creates a policy from the limits configured by {@link ChangeSetWriterKeys}.
+     *
+     * @return the configured policy
+     */
+    public static RolloverPolicy fromKeys() {
+        return new RolloverPolicy(ChangeSetWriterKeys.ROLLOVER_MAX_UNCOMPRESSED_BYTES.getLong(),
+                ChangeSetWriterKeys.ROLLOVER_MAX_ENTITIES.getLong(),
+                Duration.ofMinutes(ChangeSetWriterKeys.ROLLOVER_MAX_AGE_MINUTES.getLong()));
+    }
+
+    /**
+     * Determines if the writer has reached any of the limits of this policy.
+     *
+     * @param changeSetWriter the writer to check
+     * @return {@code true} if the writer should be sealed and replaced
+     */
+    public boolean shouldRollover(ChangeSetWriter changeSetWriter) {
+        long entityCount = changeSetWriter.entityCount();
+        if (entityCount == 0) {
+            return false;
+        }
+        if (maxEntities > 0 && entityCount >= maxEntities) {
+            return true;
+        }
+        if (maxUncompressedBytes > 0 && changeSetWriter.uncompressedBytes() >= maxUncompressedBytes) {
+            return true;
+        }
+        return !maxAge.isZero() &&
+                System.currentTimeMillis() - changeSetWriter.openedAtMillis() >= maxAge.toMillis();
+    }
+}
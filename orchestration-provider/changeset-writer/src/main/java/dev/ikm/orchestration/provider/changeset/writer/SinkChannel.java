@@ -0,0 +1,117 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.alert.AlertStreams;
+import dev.ikm.tinkar.entity.Entity;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Feeds one {@link ChangeSetSink} from its own bounded buffer on its own thread.
+ *
+ * When the buffer is full, a sink registered to block holds up the writer until it has room, and any other sink
+ * drops the record and counts it, reporting once each time it starts to fall behind.
+ */
+class SinkChannel {
+    private static final long POLL_MILLIS = 100;
+    private final String name;
+    private final ChangeSetSink sink;
+    private final boolean blockWhenFull;
+    private final BlockingQueue<SinkRecord> buffer;
+    private final LongAdder droppedCount = new LongAdder();
+    private final Thread drainThread;
+    private volatile boolean running = true;
+    private boolean overflowing;
+
+    /**
+     * Creates a channel and starts its thread.
+     *
+     * @param name          the name of the sink, used for its thread and reports
+     * @param sink          the sink to feed
+     * @param bufferRecords the number of records buffered for the sink
+     * @param blockWhenFull whether to wait for room rather than drop records when the buffer is full
+     */
+    SinkChannel(String name, ChangeSetSink sink, int bufferRecords, boolean blockWhenFull) {
+        this.name = name;
+        this.sink = sink;
+        this.blockWhenFull = blockWhenFull;
+        this.buffer = new ArrayBlockingQueue<>(bufferRecords);
+        this.drainThread = Thread.ofPlatform().name("change-set-sink-" + name).daemon(true).start(this::drain);
+    }
+
+    /**
+     * Buffers a record for the sink. Called only by the thread that holds the manager's writer lock.
+     *
+     * @param entity the entity the record was serialized from
+     * @param record the record, shared with the other sinks
+     */
+    void offer(Entity<?> entity, byte[] record) {
+        SinkRecord sinkRecord = new SinkRecord(entity, record);
+        if (blockWhenFull) {
+            try {
+                buffer.put(sinkRecord);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                AlertStreams.dispatchToRoot(e);
+            }
+        } else if (buffer.offer(sinkRecord)) {
+            overflowing = false;
+        } else {
+            droppedCount.increment();
+            if (!overflowing) {
+                overflowing = true;
+                AlertStreams.dispatchToRoot(new IOException("Change set sink " + name
+                        + " is falling behind; dropping records"));
+            }
+        }
+    }
+
+    /**
+     * Returns the number of records dropped because the sink's buffer was full.
+     *
+     * @return the dropped record count
+     */
+    long droppedCount() {
+        return droppedCount.sum();
+    }
+
+    String name() {
+        return name;
+    }
+
+    /**
+     * Stops the channel once its buffer is drained, then closes the sink.
+     *
+     * @throws IOException if the sink cannot be closed
+     * @throws InterruptedException if interrupted while waiting for the buffer to drain
+     */
+    void close() throws IOException, InterruptedException {
+        running = false;
+        drainThread.join();
+        sink.close();
+    }
+
+    private void drain() {
+        while (running || !buffer.isEmpty()) {
+            try {
+                SinkRecord sinkRecord = buffer.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (sinkRecord == null) {
+                    sink.idle();
+                } else {
+                    sink.write(sinkRecord.entity(), sinkRecord.record());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | RuntimeException e) {
+                AlertStreams.dispatchToRoot(e);
+            }
+        }
+    }
+
+    private record SinkRecord(Entity<?> entity, byte[] record) {
+    }
+}
@@ -0,0 +1,127 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import dev.ikm.tinkar.common.alert.AlertStreams;
+import dev.ikm.tinkar.entity.Entity;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A {@link ChangeSetSink} that streams records to a replication peer over TCP.
+ *
+ * The stream carries the records exactly as they appear in a change set entry: each a varint length prefix
+ * followed by a serialized TinkarMsg, so the peer can read it as it would read an entry. Records are flushed
+ * whenever the sink is idle.
+ *
+ * Replication is best effort. When the connection fails, the failure is reported once and records are dropped
+ * until a reconnection, attempted at most once per retry interval, succeeds.
+ */
+public class SocketChangeSetSink implements ChangeSetSink {
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+    private static final long RETRY_MILLIS = 10_000;
+    private final InetSocketAddress address;
+    private Socket socket;
+    private OutputStream socketOutput;
+    private long lastFailureMillis;
+
+    /**
+     * Creates a sink that connects to a replication peer on first use.
+     *
+     * @param host the host of the peer
+     * @param port the port of the peer
+     */
+    public SocketChangeSetSink(String host, int port) {
+        this.address = new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Creates a sink for a peer given as {@code host:port}.
+     *
+     * @param hostAndPort the address of the peer
+     * @return the sink
+     * @throws IllegalArgumentException if the address has no port
+     */
+    public static SocketChangeSetSink parse(String hostAndPort) {
+        int separator = hostAndPort.lastIndexOf(':');
+        if (separator < 1) {
+            throw new IllegalArgumentException("Replication address must be host:port: " + hostAndPort);
+        }
+        return new SocketChangeSetSink(hostAndPort.substring(0, separator),
+                Integer.parseInt(hostAndPort.substring(separator + 1)));
+    }
+
+    @Override
+    public void write(Entity<?> entity, byte[] record) {
+        if (!connected()) {
+            return;
+        }
+        try {
+            socketOutput.write(record);
+        } catch (IOException e) {
+            disconnect(e);
+        }
+    }
+
+    @Override
+    public void idle() {
+        if (socketOutput != null) {
+            try {
+                socketOutput.flush();
+            } catch (IOException e) {
+                disconnect(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            try {
+                socketOutput.flush();
+            } finally {
+                socket.close();
+                socket = null;
+                socketOutput = null;
+            }
+        }
+    }
+
+    private boolean connected() {
+        if (socketOutput != null) {
+            return true;
+        }
+        if (lastFailureMillis != 0 && System.currentTimeMillis() - lastFailureMillis < RETRY_MILLIS) {
+            return false;
+        }
+        try {
+            Socket newSocket = new Socket();
+            newSocket.connect(address, CONNECT_TIMEOUT_MILLIS);
+            newSocket.setTcpNoDelay(true);
+            socket = newSocket;
+            socketOutput = new BufferedOutputStream(newSocket.getOutputStream(), 1 << 16);
+            lastFailureMillis = 0;
+            return true;
+        } catch (IOException e) {
+            if (lastFailureMillis == 0) {
+                AlertStreams.dispatchToRoot(new IOException("Cannot replicate change sets to " + address, e));
+            }
+            lastFailureMillis = System.currentTimeMillis();
+            return false;
+        }
+    }
+
+    private void disconnect(IOException cause) {
+        AlertStreams.dispatchToRoot(new IOException("Lost change set replication to " + address, cause));
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already failed; the cause has been reported.
+        }
+        socket = null;
+        socketOutput = null;
+        lastFailureMillis = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,86 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A temporary file that collects the records of one zip entry until the entry can be written.
+ *
+ * A zip stream writes one entry at a time, so records that arrive interleaved but belong to different entries are
+ * spooled here and copied into their entry when the change set is sealed. The file is deleted when the spool is
+ * closed, or by the operating system if the process exits first.
+ */
+final class SpoolFile implements AutoCloseable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final OutputStream output;
+    private long size;
+
+    /**
+     * Creates an empty spool in the default temporary-file directory.
+     *
+     * @param prefix the prefix of the temporary file name
+     * @throws IOException if the file cannot be created
+     */
+    SpoolFile(String prefix) throws IOException {
+        Path path = Files.createTempFile(prefix, ".spool");
+        this.channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        this.output = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+    }
+
+    /**
+     * Appends bytes to the spool.
+     *
+     * @param buffer the array holding the bytes
+     * @param offset the offset of the first byte
+     * @param length the number of bytes to append
+     * @throws IOException if the bytes cannot be written
+     */
+    void write(byte[] buffer, int offset, int length) throws IOException {
+        output.write(buffer, offset, length);
+        size += length;
+    }
+
+    /**
+     * Returns the number of bytes appended to the spool.
+     *
+     * @return the spool size
+     */
+    long size() {
+        return size;
+    }
+
+    /**
+     * Copies everything appended so far to the given stream.
+     *
+     * @param out the stream to copy to
+     * @throws IOException if the spool cannot be read or the stream cannot be written
+     */
+    void transferTo(OutputStream out) throws IOException {
+        output.flush();
+        WritableByteChannel target = Channels.newChannel(out);
+        long position = 0;
+        while (position < size) {
+            position += channel.transferTo(position, size - position, target);
+        }
+    }
+
+    /**
+     * Closes and deletes the spool.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,60 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * A ZipOutputStream that can push everything written to the current entry through the deflater to the underlying
+ * stream without closing the entry.
+ *
+ * A plain {@link ZipOutputStream#flush()} leaves the deflater's pending input in memory, so a record is only on
+ * disk once the deflater happens to emit it. {@link #syncFlush()} ends the current deflate block with a sync
+ * flush instead, which adds a few bytes to the entry but leaves it readable by any zip reader.
+ */
+class SyncFlushZipOutputStream extends ZipOutputStream {
+    // true while a deflated entry is open; stored entries never pass through the deflater
+    private boolean entryOpen;
+
+    /**
+     * Creates a zip stream.
+     *
+     * @param out the stream to write the zip to
+     */
+    SyncFlushZipOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    @Override
+    public void putNextEntry(ZipEntry entry) throws IOException {
+        super.putNextEntry(entry);
+        entryOpen = entry.getMethod() != ZipEntry.STORED;
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+        entryOpen = false;
+        super.closeEntry();
+    }
+
+    /**
+     * Writes out the compressed form of every byte written to the current entry so far, then flushes the
+     * underlying stream.
+     *
+     * @throws IOException if the compressed bytes cannot be written
+     */
+    void syncFlush() throws IOException {
+        if (entryOpen && !def.finished()) {
+            int length;
+            while ((length = def.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH)) > 0) {
+                out.write(buf, 0, length);
+                if (length < buf.length) {
+                    break;
+                }
+            }
+        }
+        out.flush();
+    }
+}
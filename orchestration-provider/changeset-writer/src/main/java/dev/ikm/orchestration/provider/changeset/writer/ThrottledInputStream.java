@@ -0,0 +1,63 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An input stream that sleeps as needed to keep its average read rate under a byte budget, so that background
+ * work does not compete with interactive I/O.
+ */
+class ThrottledInputStream extends FilterInputStream {
+    private final long bytesPerSecond;
+    private final long startNanos = System.nanoTime();
+    private long bytesRead;
+
+    /**
+     * Creates a stream that reads from {@code in} at no more than {@code bytesPerSecond} on average.
+     *
+     * @param in             the stream to read from
+     * @param bytesPerSecond the read budget; zero or less reads without limit
+     */
+    ThrottledInputStream(InputStream in, long bytesPerSecond) {
+        super(in);
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+            throttle(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int count = super.read(b, off, len);
+        if (count > 0) {
+            throttle(count);
+        }
+        return count;
+    }
+
+    private void throttle(int count) throws InterruptedIOException {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        bytesRead += count;
+        long dueNanos = (long) (bytesRead * (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+        long aheadNanos = dueNanos - (System.nanoTime() - startNanos);
+        if (aheadNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(aheadNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling reads");
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.Descriptors.Descriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Descriptors.OneofDescriptor;
+import com.google.protobuf.Message;
+import dev.ikm.tinkar.schema.TinkarMsg;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Removes versions from a transformed entity, so that a delta record holds only the versions not yet written, and
+ * merges the versions of records of the same entity, so that compaction writes each entity once.
+ *
+ * The TinkarMsg schema holds each kind of chronology in a member of the message's oneof, with its public id in its
+ * {@code public_id} field and its versions in a repeated message field, in the same order as the entity's
+ * versions. The chronology and its fields are found through the message descriptors, so every kind of chronology
+ * is handled the same way.
+ */
+final class VersionDelta {
+    private static final OneofDescriptor CHRONOLOGY_ONEOF = TinkarMsg.getDescriptor().getOneofs().getFirst();
+    private static final ConcurrentHashMap<Descriptor, FieldDescriptor> VERSION_FIELDS = new ConcurrentHashMap<>();
+    private static final String PUBLIC_ID_FIELD = "public_id";
+
+    private VersionDelta() {
+    }
+
+    /**
+     * Returns a copy of the message holding only the versions marked to keep.
+     *
+     * @param pbTinkarMsg the transformed entity
+     * @param keep        for each of the entity's versions, in order, whether to keep it
+     * @return the message with only the kept versions, or the message itself if its versions do not line up
+     *         with the flags
+     */
+    static TinkarMsg retainVersions(TinkarMsg pbTinkarMsg, boolean[] keep) {
+        FieldDescriptor chronologyField = pbTinkarMsg.getOneofFieldDescriptor(CHRONOLOGY_ONEOF);
+        if (chronologyField == null) {
+            return pbTinkarMsg;
+        }
+        Message chronology = (Message) pbTinkarMsg.getField(chronologyField);
+        FieldDescriptor versionField = VERSION_FIELDS.computeIfAbsent(chronology.getDescriptorForType(),
+                VersionDelta::versionField);
+        if (versionField == null || chronology.getRepeatedFieldCount(versionField) != keep.length) {
+            return pbTinkarMsg;
+        }
+        Message.Builder chronologyBuilder = chronology.toBuilder().clearField(versionField);
+        for (int i = 0; i < keep.length; i++) {
+            if (keep[i]) {
+                chronologyBuilder.addRepeatedField(versionField, chronology.getRepeatedField(versionField, i));
+            }
+        }
+        return pbTinkarMsg.toBuilder().setField(chronologyField, chronologyBuilder.build()).build();
+    }
+
+    /**
+     * Returns the public id of the chronology in a message, as a message that compares by value.
+     *
+     * @param pbTinkarMsg the record
+     * @return the public id, or {@code null} if the message holds no chronology with a public id
+     */
+    static Message publicId(TinkarMsg pbTinkarMsg) {
+        FieldDescriptor chronologyField = pbTinkarMsg.getOneofFieldDescriptor(CHRONOLOGY_ONEOF);
+        if (chronologyField == null) {
+            return null;
+        }
+        Message chronology = (Message) pbTinkarMsg.getField(chronologyField);
+        FieldDescriptor publicIdField = chronology.getDescriptorForType().findFieldByName(PUBLIC_ID_FIELD);
+        if (publicIdField == null || !chronology.hasField(publicIdField)) {
+            return null;
+        }
+        return (Message) chronology.getField(publicIdField);
+    }
+
+    /**
+     * Returns a copy of the first message that also holds the versions of the second that it does not already
+     * hold, in the order they appear. Both messages are expected to hold the same entity.
+     *
+     * @param pbTinkarMsg the record to merge into
+     * @param other       the record whose versions are added
+     * @return the merged message, or the first message itself if it already holds every version, or if the two
+     *         hold different kinds of chronology
+     */
+    static TinkarMsg unionVersions(TinkarMsg pbTinkarMsg, TinkarMsg other) {
+        FieldDescriptor chronologyField = pbTinkarMsg.getOneofFieldDescriptor(CHRONOLOGY_ONEOF);
+        if (chronologyField == null || !chronologyField.equals(other.getOneofFieldDescriptor(CHRONOLOGY_ONEOF))) {
+            return pbTinkarMsg;
+        }
+        Message chronology = (Message) pbTinkarMsg.getField(chronologyField);
+        FieldDescriptor versionField = VERSION_FIELDS.computeIfAbsent(chronology.getDescriptorForType(),
+                VersionDelta::versionField);
+        if (versionField == null) {
+            return pbTinkarMsg;
+        }
+        Message otherChronology = (Message) other.getField(chronologyField);
+        Set<Object> versions = new LinkedHashSet<>(chronology.getRepeatedFieldCount(versionField)
+                + otherChronology.getRepeatedFieldCount(versionField));
+        for (int i = 0; i < chronology.getRepeatedFieldCount(versionField); i++) {
+            versions.add(chronology.getRepeatedField(versionField, i));
+        }
+        for (int i = 0; i < otherChronology.getRepeatedFieldCount(versionField); i++) {
+            versions.add(otherChronology.getRepeatedField(versionField, i));
+        }
+        if (versions.size() == chronology.getRepeatedFieldCount(versionField)) {
+            return pbTinkarMsg;
+        }
+        Message.Builder chronologyBuilder = chronology.toBuilder().clearField(versionField);
+        versions.forEach(version -> chronologyBuilder.addRepeatedField(versionField, version));
+        return pbTinkarMsg.toBuilder().setField(chronologyField, chronologyBuilder.build()).build();
+    }
+
+    private static FieldDescriptor versionField(Descriptor chronologyDescriptor) {
+        for (FieldDescriptor field : chronologyDescriptor.getFields()) {
+            if (field.isRepeated() && field.getJavaType() == FieldDescriptor.JavaType.MESSAGE) {
+                return field;
+            }
+        }
+        return null;
+    }
+}
@@ -1,11 +1,14 @@
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetLoadService;
 import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
+import dev.ikm.orchestration.provider.changeset.writer.ChangeSetLoadProvider;
 import dev.ikm.orchestration.provider.changeset.writer.ChangeSetWriterProvider;
 
 /**
  * The dev.ikm.orchestration.provider.changeset.writer module is responsible for providing the ChangeSetWriterService implementation.
  * It requires several other modules: dev.ikm.orchestration.interfaces, dev.ikm.tinkar.common, dev.ikm.tinkar.entity, dev.ikm.tinkar.schema, dev.ikm.tinkar.terms, org.eclipse.collections
  * .api.
- * The module provides the implementation class ChangeSetWriterProvider for the ChangeSetWriterService interface.
+ * The module provides the implementation class ChangeSetWriterProvider for the ChangeSetWriterService interface,
+ * and ChangeSetLoadProvider for the ChangeSetLoadService interface.
  */
 module dev.ikm.orchestration.provider.changeset.writer {
     requires dev.ikm.orchestration.interfaces;
@@ -14,6 +17,10 @@ module dev.ikm.orchestration.provider.changeset.writer {
     requires dev.ikm.tinkar.schema;
     requires dev.ikm.tinkar.terms;
     requires dev.ikm.jpms.eclipse.collections.api;
+    requires java.management;
+
+    exports dev.ikm.orchestration.provider.changeset.writer to java.management;
 
     provides ChangeSetWriterService with ChangeSetWriterProvider;
+    provides ChangeSetLoadService with ChangeSetLoadProvider;
 }
\ No newline at end of file
@@ -0,0 +1,180 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import dev.ikm.tinkar.schema.TinkarMsg;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Compares the {@link RecordFormat#PLAIN} and {@link RecordFormat#PUBLIC_ID_DICTIONARY} record formats on the
+ * records of existing change sets, such as the parts of a full export, without a datastore.
+ *
+ * The records of every change set named on the command line are read, in whichever format they were written, and
+ * written out again in both formats. For each format it reports the uncompressed and deflated size, the dictionary
+ * included, and the time taken to parse every record back to a TinkarMsg, the best of several rounds.
+ *
+ * Usage: {@code RecordFormatBenchmark [--level=N] [--rounds=N] change-set.proto.zip...}
+ */
+public class RecordFormatBenchmark {
+    private final int compressionLevel;
+    private final int rounds;
+    private final List<byte[]> plainRecords = new ArrayList<>();
+
+    private RecordFormatBenchmark(int compressionLevel, int rounds) {
+        this.compressionLevel = compressionLevel;
+        this.rounds = rounds;
+    }
+
+    /**
+     * Runs the benchmark and prints its results.
+     *
+     * @param args the options followed by the change set files to read
+     * @throws IOException if a change set cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        int rounds = 5;
+        List<Path> changeSetFiles = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--level=")) {
+                compressionLevel = Integer.parseInt(arg.substring("--level=".length()));
+            } else if (arg.startsWith("--rounds=")) {
+                rounds = Integer.parseInt(arg.substring("--rounds=".length()));
+            } else {
+                changeSetFiles.add(Path.of(arg));
+            }
+        }
+        if (changeSetFiles.isEmpty()) {
+            System.err.println("Usage: RecordFormatBenchmark [--level=N] [--rounds=N] change-set.proto.zip...");
+            System.exit(2);
+        }
+        RecordFormatBenchmark benchmark = new RecordFormatBenchmark(compressionLevel, rounds);
+        for (Path changeSetFile : changeSetFiles) {
+            benchmark.readChangeSet(changeSetFile);
+        }
+        benchmark.run(System.out);
+    }
+
+    private void readChangeSet(Path changeSetFile) throws IOException {
+        try (ZipFile zipFile = new ZipFile(changeSetFile.toFile())) {
+            PublicIdDictionary dictionary = null;
+            if (RecordFormat.fromManifest(ChangeSetReader.readManifest(zipFile))
+                    == RecordFormat.PUBLIC_ID_DICTIONARY) {
+                dictionary = PublicIdDictionary.read(zipFile);
+            }
+            List<? extends ZipEntry> entries = zipFile.stream().toList();
+            for (ZipEntry entry : entries) {
+                String name = entry.getName();
+                if (entry.isDirectory() || name.equals(JarFile.MANIFEST_NAME)
+                        || name.equals(ChangeSetIndex.INDEX_ENTRY)
+                        || name.equals(PublicIdDictionary.DICTIONARY_ENTRY)) {
+                    continue;
+                }
+                try (InputStream entryInput = new BufferedInputStream(zipFile.getInputStream(entry))) {
+                    byte[] record;
+                    while ((record = readRecord(entryInput)) != null) {
+                        plainRecords.add(dictionary == null ? record
+                                : dictionary.decodeRecord(record, record.length));
+                    }
+                }
+            }
+        }
+    }
+
+    private void run(PrintStream out) throws IOException {
+        ByteArrayOutputStream plainEntry = new ByteArrayOutputStream();
+        ByteArrayOutputStream encodedEntry = new ByteArrayOutputStream();
+        PublicIdDictionary dictionary = new PublicIdDictionary();
+        for (byte[] record : plainRecords) {
+            plainEntry.write(record);
+            encodedEntry.write(dictionary.encodeRecord(record, record.length));
+        }
+        ByteArrayOutputStream dictionaryEntry = new ByteArrayOutputStream();
+        dictionary.writeTo(dictionaryEntry);
+        byte[] plainBytes = plainEntry.toByteArray();
+        byte[] encodedBytes = encodedEntry.toByteArray();
+        byte[] dictionaryBytes = dictionaryEntry.toByteArray();
+
+        long plainDeflated = deflatedSize(plainBytes);
+        long encodedDeflated = deflatedSize(encodedBytes) + deflatedSize(dictionaryBytes);
+        long plainNanos = Long.MAX_VALUE;
+        long encodedNanos = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            plainNanos = Math.min(plainNanos, parseNanos(plainBytes, null));
+            encodedNanos = Math.min(encodedNanos, parseNanos(encodedBytes, PublicIdDictionary.readFrom(
+                    new ByteArrayInputStream(dictionaryBytes))));
+        }
+
+        NumberFormat numberFormat = NumberFormat.getInstance();
+        out.println("Records:               " + numberFormat.format(plainRecords.size()));
+        out.println("Dictionary PublicIds:  " + numberFormat.format(dictionary.size()));
+        out.printf("%-22s %16s %16s %12s%n", "Format", "Uncompressed", "Deflated", "Parse ms");
+        out.printf("%-22s %16s %16s %12d%n", RecordFormat.PLAIN, numberFormat.format(plainBytes.length),
+                numberFormat.format(plainDeflated), plainNanos / 1_000_000);
+        out.printf("%-22s %16s %16s %12d%n", RecordFormat.PUBLIC_ID_DICTIONARY,
+                numberFormat.format(encodedBytes.length + dictionaryBytes.length),
+                numberFormat.format(encodedDeflated), encodedNanos / 1_000_000);
+        out.printf("Deflated size ratio:   %.3f%n", (double) encodedDeflated / plainDeflated);
+        out.printf("Parse time ratio:      %.3f%n", (double) encodedNanos / plainNanos);
+    }
+
+    private long deflatedSize(byte[] bytes) throws IOException {
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(compressionLevel, true);
+        try (DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(deflated, deflater, 65536)) {
+            deflaterOutput.write(bytes);
+        } finally {
+            deflater.end();
+        }
+        return deflated.size();
+    }
+
+    /**
+     * Parses every record of an entry, the way a loader reads it, and returns the time taken.
+     */
+    private long parseNanos(byte[] entryBytes, PublicIdDictionary dictionary) throws IOException {
+        InputStream entryInput = new ByteArrayInputStream(entryBytes);
+        long startNanos = System.nanoTime();
+        long parsedCount = 0;
+        while ((dictionary == null ? TinkarMsg.parseDelimitedFrom(entryInput)
+                : dictionary.parseDelimitedFrom(entryInput)) != null) {
+            parsedCount++;
+        }
+        long elapsedNanos = System.nanoTime() - startNanos;
+        if (parsedCount != plainRecords.size()) {
+            throw new IllegalStateException("Parsed " + parsedCount + " of " + plainRecords.size() + " records");
+        }
+        return elapsedNanos;
+    }
+
+    private static byte[] readRecord(InputStream entryInput) throws IOException {
+        int firstByte = entryInput.read();
+        if (firstByte == -1) {
+            return null;
+        }
+        int size = CodedInputStream.readRawVarint32(firstByte, entryInput);
+        int prefixLength = CodedOutputStream.computeUInt32SizeNoTag(size);
+        byte[] record = new byte[prefixLength + size];
+        CodedOutputStream.newInstance(record, 0, prefixLength).writeUInt32NoTag(size);
+        if (entryInput.readNBytes(record, prefixLength, size) != size) {
+            throw new EOFException("Truncated change set record");
+        }
+        return record;
+    }
+}
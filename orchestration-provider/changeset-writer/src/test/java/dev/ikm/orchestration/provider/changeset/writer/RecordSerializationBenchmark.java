@@ -0,0 +1,181 @@
+package dev.ikm.orchestration.provider.changeset.writer;
+
+import com.google.protobuf.CodedOutputStream;
+import dev.ikm.tinkar.schema.TinkarMsg;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Compares the allocation rate of serializing change set records with {@link TinkarMsg#writeDelimitedTo} against
+ * the pooled buffer path of {@link ChangeSetWriter}, on the records of existing change sets, without a datastore.
+ *
+ * The records of every change set named on the command line are read and parsed to TinkarMsgs once. Each round
+ * then serializes every message both ways to a stream that discards its input, so that only the cost of
+ * serialization is measured. For each path it reports the bytes allocated by the serializing thread per record and
+ * the time taken, the best of several rounds.
+ *
+ * Usage: {@code RecordSerializationBenchmark [--rounds=N] change-set.proto.zip...}
+ */
+public class RecordSerializationBenchmark {
+    private final int rounds;
+    private final List<TinkarMsg> messages = new ArrayList<>();
+    private final RecordBufferPool bufferPool = new RecordBufferPool(1024, 1 << 20);
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    private final ObjectName threading;
+
+    private RecordSerializationBenchmark(int rounds) throws JMException {
+        this.rounds = rounds;
+        this.threading = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
+    }
+
+    /**
+     * Runs the benchmark and prints its results.
+     *
+     * @param args the options followed by the change set files to read
+     * @throws IOException if a change set cannot be read
+     * @throws JMException if the allocation counter of the thread cannot be read
+     */
+    public static void main(String[] args) throws IOException, JMException {
+        int rounds = 5;
+        List<Path> changeSetFiles = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--rounds=")) {
+                rounds = Integer.parseInt(arg.substring("--rounds=".length()));
+            } else {
+                changeSetFiles.add(Path.of(arg));
+            }
+        }
+        if (changeSetFiles.isEmpty()) {
+            System.err.println("Usage: RecordSerializationBenchmark [--rounds=N] change-set.proto.zip...");
+            System.exit(2);
+        }
+        RecordSerializationBenchmark benchmark = new RecordSerializationBenchmark(rounds);
+        for (Path changeSetFile : changeSetFiles) {
+            benchmark.readChangeSet(changeSetFile);
+        }
+        benchmark.run(System.out);
+    }
+
+    private void readChangeSet(Path changeSetFile) throws IOException {
+        try (ZipFile zipFile = new ZipFile(changeSetFile.toFile())) {
+            PublicIdDictionary dictionary = null;
+            if (RecordFormat.fromManifest(ChangeSetReader.readManifest(zipFile))
+                    == RecordFormat.PUBLIC_ID_DICTIONARY) {
+                dictionary = PublicIdDictionary.read(zipFile);
+            }
+            List<? extends ZipEntry> entries = zipFile.stream().toList();
+            for (ZipEntry entry : entries) {
+                String name = entry.getName();
+                if (entry.isDirectory() || name.equals(JarFile.MANIFEST_NAME)
+                        || name.equals(ChangeSetIndex.INDEX_ENTRY)
+                        || name.equals(PublicIdDictionary.DICTIONARY_ENTRY)) {
+                    continue;
+                }
+                try (InputStream entryInput = new BufferedInputStream(zipFile.getInputStream(entry))) {
+                    TinkarMsg message;
+                    while ((message = dictionary == null ? TinkarMsg.parseDelimitedFrom(entryInput)
+                            : dictionary.parseDelimitedFrom(entryInput)) != null) {
+                        messages.add(message);
+                    }
+                }
+            }
+        }
+    }
+
+    private void run(PrintStream out) throws IOException, JMException {
+        OutputStream sink = OutputStream.nullOutputStream();
+        Measurement delimited = new Measurement(Long.MAX_VALUE, Long.MAX_VALUE);
+        Measurement pooled = new Measurement(Long.MAX_VALUE, Long.MAX_VALUE);
+        // The first round of each path warms up the JIT and the buffer pool, and is not counted.
+        for (int round = 0; round <= rounds; round++) {
+            Measurement delimitedRound = measure(() -> {
+                for (TinkarMsg message : messages) {
+                    message.writeDelimitedTo(sink);
+                }
+            });
+            Measurement pooledRound = measure(() -> {
+                for (TinkarMsg message : messages) {
+                    writePooled(message, sink);
+                }
+            });
+            if (round > 0) {
+                delimited = delimited.best(delimitedRound);
+                pooled = pooled.best(pooledRound);
+            }
+        }
+
+        NumberFormat numberFormat = NumberFormat.getInstance();
+        out.println("Records:               " + numberFormat.format(messages.size()));
+        out.printf("%-22s %16s %12s%n", "Path", "Bytes/record", "Write ms");
+        out.printf("%-22s %16s %12d%n", "writeDelimitedTo", numberFormat.format(perRecord(delimited)),
+                delimited.nanos() / 1_000_000);
+        out.printf("%-22s %16s %12d%n", "Pooled buffer", numberFormat.format(perRecord(pooled)),
+                pooled.nanos() / 1_000_000);
+        out.printf("Allocation ratio:      %.3f%n", (double) pooled.allocatedBytes() / delimited.allocatedBytes());
+        out.printf("Write time ratio:      %.3f%n", (double) pooled.nanos() / delimited.nanos());
+    }
+
+    /**
+     * Serializes a message the way {@link ChangeSetWriter} encodes and appends a record: the varint length prefix
+     * and the message are written into a pooled buffer, which is written to the stream and released.
+     */
+    private void writePooled(TinkarMsg message, OutputStream out) throws IOException {
+        int serializedSize = message.getSerializedSize();
+        int length = CodedOutputStream.computeUInt32SizeNoTag(serializedSize) + serializedSize;
+        byte[] buffer = bufferPool.acquire(length);
+        try {
+            CodedOutputStream codedOutput = CodedOutputStream.newInstance(buffer, 0, length);
+            codedOutput.writeUInt32NoTag(serializedSize);
+            message.writeTo(codedOutput);
+            codedOutput.checkNoSpaceLeft();
+            out.write(buffer, 0, length);
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private Measurement measure(SerializationRound serializationRound) throws IOException, JMException {
+        long startBytes = allocatedBytes();
+        long startNanos = System.nanoTime();
+        serializationRound.run();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        return new Measurement(allocatedBytes() - startBytes, elapsedNanos);
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread so far, read through the platform MBean server so that
+     * no JDK-specific management module is needed.
+     */
+    private long allocatedBytes() throws JMException {
+        return (Long) mBeanServer.getAttribute(threading, "CurrentThreadAllocatedBytes");
+    }
+
+    private long perRecord(Measurement measurement) {
+        return messages.isEmpty() ? 0 : measurement.allocatedBytes() / messages.size();
+    }
+
+    private interface SerializationRound {
+        void run() throws IOException;
+    }
+
+    private record Measurement(long allocatedBytes, long nanos) {
+        Measurement best(Measurement other) {
+            return new Measurement(Math.min(allocatedBytes, other.allocatedBytes), Math.min(nanos, other.nanos));
+        }
+    }
+}
@@ -1,24 +1,26 @@
 package dev.ikm.orchestration.provider.general.menu;
 
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetLoadService;
 import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
 import dev.ikm.orchestration.interfaces.menu.MenuService;
 import dev.ikm.tinkar.common.alert.AlertStreams;
 import dev.ikm.tinkar.common.service.PluggableService;
 import dev.ikm.tinkar.common.service.TinkExecutor;
-import dev.ikm.tinkar.entity.aggregator.TemporalEntityAggregator;
-import dev.ikm.tinkar.entity.load.LoadEntitiesFromProtobufFile;
 import javafx.scene.control.MenuItem;
 import javafx.stage.Window;
 import org.eclipse.collections.api.multimap.ImmutableMultimap;
 import org.eclipse.collections.api.multimap.MutableMultimap;
 import org.eclipse.collections.impl.factory.Multimaps;
 
-import java.io.File;
 import java.io.IOException;
-import java.nio.file.Path;
+import java.nio.file.Files;
 import java.time.Instant;
-import java.time.temporal.ChronoUnit;
-import java.util.Arrays;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * The ChangeSetMenuProvider class implements the MenuService interface to provide menu items related to generate change sets.
@@ -36,48 +38,85 @@ public class ChangeSetMenuProvider implements MenuService {
 
         MenuItem generateChangeSetsMenuItem = new MenuItem("Generate Change Sets");
         generateChangeSetsMenuItem.setOnAction(event -> {
-            long now = Instant.now().toEpochMilli();
-            long yesterday = Instant.now().minus(1, ChronoUnit.DAYS).toEpochMilli();
-            TemporalEntityAggregator temporalEntityAggregator = new TemporalEntityAggregator(yesterday, now);
-            TinkExecutor.threadPool().submit(() -> {
+            // Generate everything changed since the last generation, on every module and path.
+            alertOnFailure(PluggableService.first(ChangeSetWriterService.class)
+                    .generate(null, Instant.now(), List.of(), List.of()));
+        });
+        menuItems.put("Edit", generateChangeSetsMenuItem);
+
+        MenuItem loadChangeSetsMenuItem = new MenuItem("Load Change Sets");
+        loadChangeSetsMenuItem.setOnAction(event -> {
+            TinkExecutor.ioThreadPool().submit(() -> {
+                ChangeSetWriterService changeSetWriterService = PluggableService.first(ChangeSetWriterService.class);
+                boolean writing = changeSetWriterService.getWriteStatus();
                 try {
-                    ChangeSetWriterService changeSetWriterService = PluggableService.first(ChangeSetWriterService.class);
-                    if (changeSetWriterService.getWriteStatus() == false) {
-                        changeSetWriterService.resume();
+                    // Loaded entities must not be written back out as new change sets.
+                    if (writing) {
+                        changeSetWriterService.pause();
+                    }
+                    PluggableService.first(ChangeSetLoadService.class).readChangesetFiles();
+                } catch (IOException ex) {
+                    AlertStreams.dispatchToRoot(ex);
+                } finally {
+                    if (writing) {
+                        try {
+                            changeSetWriterService.resume();
+                        } catch (IOException e) {
+                            AlertStreams.dispatchToRoot(e);
+                        }
                     }
-                    temporalEntityAggregator.aggregate(changeSetWriterService::write);
-                    changeSetWriterService.pause();
-                } catch (IOException e) {
-                    AlertStreams.dispatchToRoot(e);
                 }
             });
         });
-        menuItems.put("Edit", generateChangeSetsMenuItem);
+        menuItems.put("Edit", loadChangeSetsMenuItem);
 
-        MenuItem loadChangeSetsMenuItem = new MenuItem("Load Change Sets");
-        loadChangeSetsMenuItem.setOnAction(event -> {
+        MenuItem compactChangeSetsMenuItem = new MenuItem("Compact Change Sets");
+        compactChangeSetsMenuItem.setOnAction(event -> {
+            // Only change sets started since the last sync are merged; earlier ones may already be shared.
             ChangeSetWriterService changeSetWriterService = PluggableService.first(ChangeSetWriterService.class);
             try {
-                if (changeSetWriterService.getWriteStatus() == false) {
-                    changeSetWriterService.pause();
+                Optional<Instant> lastSyncStart = ChangeSetWriterService.lastSyncStart();
+                if (lastSyncStart.isEmpty()
+                        && Files.exists(changeSetWriterService.getChangeSetFolder().resolve(".git"))) {
+                    AlertStreams.dispatchToRoot(new IllegalStateException(
+                            "Change sets were not compacted: the change set folder has no sync watermark, "
+                                    + "and its change sets may already be shared"));
+                    return;
                 }
-                Path changeSetFolder = ChangeSetWriterService.changeSetFolder();
-                File[] matchingFiles = changeSetFolder.toFile().listFiles((dir, name) -> name.endsWith(".proto.zip"));
-                Arrays.stream(matchingFiles).forEach((protoFile) -> {
-                    TinkExecutor.ioThreadPool().submit(new LoadEntitiesFromProtobufFile(protoFile));
-                });
+                alertOnFailure(changeSetWriterService.compact(lastSyncStart.orElse(Instant.EPOCH), Instant.now()));
             } catch (IOException ex) {
                 AlertStreams.dispatchToRoot(ex);
-            } finally {
-                try {
-                    changeSetWriterService.resume();
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
-                }
             }
         });
-        menuItems.put("Edit", loadChangeSetsMenuItem);
+        menuItems.put("Edit", compactChangeSetsMenuItem);
+
+        MenuItem exportChangeSetsMenuItem = new MenuItem("Export All Change Sets");
+        exportChangeSetsMenuItem.setOnAction(event -> {
+            ChangeSetWriterService changeSetWriterService = PluggableService.first(ChangeSetWriterService.class);
+            String exportName = "export " + LocalDateTime.now().format(DateTimeFormatter.ofPattern("yy-MM-dd HH.mm.ss"));
+            alertOnFailure(changeSetWriterService.export(changeSetWriterService.getChangeSetFolder()
+                    .resolveSibling("changeset-exports").resolve(exportName)));
+        });
+        menuItems.put("Edit", exportChangeSetsMenuItem);
 
         return menuItems.toImmutable();
     }
+
+    /**
+     * Waits on the I/O thread pool for a background change set task, and dispatches its failure, if any, to the
+     * root alert stream.
+     *
+     * @param future the future of the task
+     */
+    private static void alertOnFailure(Future<?> future) {
+        TinkExecutor.ioThreadPool().submit(() -> {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                AlertStreams.dispatchToRoot(ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
 }
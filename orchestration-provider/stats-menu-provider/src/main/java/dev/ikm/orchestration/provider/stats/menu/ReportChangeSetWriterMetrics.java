@@ -0,0 +1,50 @@
+package dev.ikm.orchestration.provider.stats.menu;
+
+import dev.ikm.orchestration.interfaces.StatusReportService;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterMetrics;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
+import dev.ikm.tinkar.common.service.PluggableService;
+import dev.ikm.tinkar.common.service.TrackingCallable;
+
+import java.text.NumberFormat;
+
+/**
+ * The ReportChangeSetWriterMetrics class is a subclass of TrackingCallable that reports the current metrics of the
+ * change set writer.
+ */
+public class ReportChangeSetWriterMetrics extends TrackingCallable<Void> {
+    public ReportChangeSetWriterMetrics() {
+        super(false, true);
+        updateTitle("Reporting change set writer metrics");
+        updateMessage("Executing " + this.getClass().getSimpleName());
+        updateProgress(-1, -1);
+    }
+
+    /**
+     * Reads the change set writer metrics and reports them as a status message.
+     *
+     * @return Void.
+     * @throws Exception If an error occurs during computation.
+     */
+    @Override
+    protected Void compute() throws Exception {
+        try {
+            ChangeSetWriterMetrics metrics = PluggableService.first(ChangeSetWriterService.class).getMetrics();
+            NumberFormat numberFormat = NumberFormat.getInstance();
+            PluggableService.first(StatusReportService.class).reportStatus("Change set writer: "
+                    + numberFormat.format(metrics.entitiesWritten()) + " entities, "
+                    + numberFormat.format(metrics.entitiesPerSecond()) + " entities/s, "
+                    + numberFormat.format(metrics.rawBytesWritten()) + " raw bytes, "
+                    + numberFormat.format(metrics.compressedBytesWritten()) + " compressed bytes, transform p50 "
+                    + numberFormat.format(metrics.transformLatencyPercentileMicros(50)) + " µs, p99 "
+                    + numberFormat.format(metrics.transformLatencyPercentileMicros(99)) + " µs, queue "
+                    + numberFormat.format(metrics.queueDepth()) + "/" + numberFormat.format(metrics.queueCapacity())
+                    + ", paused " + metrics.timePaused().toSeconds() + " s, current file "
+                    + numberFormat.format(metrics.currentFileSize()) + " bytes");
+            return null;
+        } finally {
+            updateTitle("Reported change set writer metrics");
+            updateMessage("In " + durationString());
+        }
+    }
+}
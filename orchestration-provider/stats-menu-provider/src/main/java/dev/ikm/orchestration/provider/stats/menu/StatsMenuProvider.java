@@ -41,6 +41,12 @@ public class StatsMenuProvider implements MenuService {
         });
         menuItems.put("Stats", countSemanticsMenuItem);
 
+        MenuItem changeSetWriterMetricsMenuItem = new MenuItem("Change Set Writer Metrics");
+        changeSetWriterMetricsMenuItem.setOnAction(event -> {
+            TinkExecutor.threadPool().submit(new ReportChangeSetWriterMetrics());
+        });
+        menuItems.put("Stats", changeSetWriterMetricsMenuItem);
+
 
 
 
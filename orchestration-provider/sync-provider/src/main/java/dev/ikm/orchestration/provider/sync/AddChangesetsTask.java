@@ -1,5 +1,7 @@
 package dev.ikm.orchestration.provider.sync;
 
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetLoadService;
+import dev.ikm.orchestration.interfaces.changeset.ChangeSetPartitionLayout;
 import dev.ikm.orchestration.interfaces.changeset.ChangeSetWriterService;
 import dev.ikm.tinkar.common.alert.AlertStreams;
 import dev.ikm.tinkar.common.service.PluggableService;
@@ -10,6 +12,8 @@ import org.eclipse.collections.api.list.MutableList;
 import org.eclipse.jgit.api.AddCommand;
 import org.eclipse.jgit.api.CommitCommand;
 import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.Status;
+import org.eclipse.jgit.api.StatusCommand;
 import org.eclipse.jgit.api.errors.GitAPIException;
 import org.eclipse.jgit.dircache.DirCache;
 import org.eclipse.jgit.revwalk.RevCommit;
@@ -18,9 +22,13 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.List;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 /**
  * {@link AddChangesetsTask} is a class that adds changesets for synchronization.
@@ -30,6 +38,7 @@ public class AddChangesetsTask extends TrackingCallable<Void> {
     private static final Logger LOG = LoggerFactory.getLogger(AddChangesetsTask.class);
 
     final Path changeSetFolder = ChangeSetWriterService.changeSetFolder();
+    final Path syncWatermarkFile = ChangeSetWriterService.syncWatermarkFile();
     /**
      * The AddChangesetsTask class represents a task that adds changesets for synchronization.
      * It extends the TrackingCallable class.
@@ -44,88 +53,125 @@ public class AddChangesetsTask extends TrackingCallable<Void> {
 
     /**
      * Computes and performs the task of adding changesets for synchronization.
-     * Extends the TrackingCallable class. This task pauses the ChangeSetWriterService
-     * which ensures that only completed zip files will be synchronized.
+     * Extends the TrackingCallable class. This task checkpoints the ChangeSetWriterService, which seals
+     * the current change set so that it is included while writing continues to a new file. Change sets
+     * still being written do not end in .proto.zip, which ensures that only completed zip files will be
+     * synchronized, and change sets that fail verification are left out of the commit. Only the verified change
+     * sets are committed; other changes to the folder, such as deleted files, are left for the user to commit.
+     * The service's sync lock is held from listing the change sets to writing the sync watermark, so that a
+     * compaction cannot replace them in between.
      *
      */
     @Override
     protected Void compute() {
-        this.updateMessage("Pausing change set writer service");
+        this.updateMessage("Sealing current change set");
         ChangeSetWriterService changeSetWriterService = PluggableService.first(ChangeSetWriterService.class);
-        silentPauseChangesetWriter(changeSetWriterService);
+        try {
+            changeSetWriterService.checkpoint().ifPresent(sealedChangeSet ->
+                    this.updateMessage("Sealed changeset " + changeSetFolder.relativize(sealedChangeSet)));
+        } catch (IOException ex) {
+            LOG.error(ex.getLocalizedMessage(), ex);
+        }
 
+        // Compaction replaces change sets, so it must not run while they are listed, verified and committed.
+        Lock syncLock = changeSetWriterService.syncLock();
+        this.updateMessage("Waiting for change set compaction to finish");
+        syncLock.lock();
         try {
             Git git = Git.open(changeSetFolder.toFile());
 
-            ImmutableList<String> filesToAdd = filesToAdd(changeSetFolder, ".proto.zip");
-            AddCommand addCommand = git.add();
-            addCommand.setUpdate(false);
-            filesToAdd.forEach(s -> {
-                addCommand.addFilepattern(s);
-                this.updateMessage("Adding changeset " + s);
-            });
+            Instant scanStart = Instant.now();
+            ImmutableList<String> filesToAdd =
+                    rejectDamaged(filesToAdd(ChangeSetWriterService.lastSyncStart().orElse(null)));
+            if (filesToAdd.notEmpty()) {
+                AddCommand addCommand = git.add();
+                addCommand.setUpdate(false);
+                filesToAdd.forEach(s -> {
+                    addCommand.addFilepattern(s);
+                    this.updateMessage("Adding changeset " + s);
+                });
 
-            DirCache dirCache = addCommand.call();
-            CommitCommand commitCommand = git.commit();
-            commitCommand.setMessage("Manual changeset add");
-            commitCommand.setAll(true);
-            RevCommit revCommit = commitCommand.call();
-            LOG.info(String.format("Successfully Committed %i files: %s", filesToAdd.size(), filesToAdd));
+                DirCache dirCache = addCommand.call();
+                ImmutableList<String> filesToCommit = staged(git, filesToAdd);
+                if (filesToCommit.notEmpty()) {
+                    CommitCommand commitCommand = git.commit();
+                    commitCommand.setMessage("Manual changeset add");
+                    // Commit only the verified change sets, never other changes in the working tree or index.
+                    filesToCommit.forEach(commitCommand::setOnly);
+                    RevCommit revCommit = commitCommand.call();
+                    LOG.info(String.format("Successfully Committed %d files: %s",
+                            filesToCommit.size(), filesToCommit));
+                } else {
+                    LOG.info("No new changesets to commit");
+                }
+            }
+            writeSyncWatermark(scanStart);
         } catch (IOException | GitAPIException ex) {
             LOG.error(ex.getLocalizedMessage(), ex);
             AlertStreams.dispatchToRoot(ex);
         } finally {
-            silentResumeChangesetWriter(changeSetWriterService);
-            this.updateMessage("Resumed change set writer service");
+            syncLock.unlock();
         }
         return null;
     }
 
-    // TODO: Implement better handling of IOException caused by closing changeset writer when it is not running
-    private void silentPauseChangesetWriter(ChangeSetWriterService changeSetWriterService) {
-        try {
-            changeSetWriterService.pause();
-        } catch (IOException ex) {
-            LOG.error(ex.getLocalizedMessage(), ex);
-        }
-    }
-
-    // TODO: Implement better handling of IOException caused by resuming changeset writer when it is already running
-    private void silentResumeChangesetWriter(ChangeSetWriterService changeSetWriterService) {
-        try {
-            changeSetWriterService.resume();
-        } catch (IOException ex) {
-            LOG.error(ex.getLocalizedMessage(), ex);
-        }
+    /**
+     * Verifies the change sets about to be added, and leaves out any that are damaged, so that a corrupt file is
+     * never shared. Each rejected file is reported.
+     *
+     * @param candidateFiles the change set files to add, relative to the change set folder
+     * @return the files that passed verification
+     */
+    ImmutableList<String> rejectDamaged(ImmutableList<String> candidateFiles) {
+        this.updateMessage("Verifying " + candidateFiles.size() + " changesets");
+        Map<Path, String> damagedFiles = PluggableService.first(ChangeSetLoadService.class)
+                .verify(candidateFiles.collect(changeSetFolder::resolve).castToList());
+        damagedFiles.forEach((damagedFile, problem) -> {
+            IOException rejection = new IOException("Rejected damaged changeset "
+                    + changeSetFolder.relativize(damagedFile) + ": " + problem);
+            LOG.error(rejection.getLocalizedMessage());
+            AlertStreams.dispatchToRoot(rejection);
+        });
+        return candidateFiles.reject(file -> damagedFiles.containsKey(changeSetFolder.resolve(file)));
     }
 
     /**
-     * Computes the list of files to add for synchronization. Searches the provided directory and all subdirectories.
+     * Computes the list of files to add for synchronization. Searches the top of the change set folder and its
+     * {@code yyyy/MM/dd} partitions, listing only the change sets modified since the last successful sync; older
+     * files were added then.
      *
-     * @param directory The directory to search for files.
-     * @param pattern   The file pattern to use for searching.
-     * @return An immutable list of file paths to add for synchronization.
+     * @param modifiedSince the time the last successful sync started, or {@code null} to search every partition
+     * @return An immutable list of file paths, relative to the change set folder, to add for synchronization.
+     * @throws IOException if a folder cannot be read
      */
-    ImmutableList<String> filesToAdd(Path directory, String pattern){
-        return filesToAdd(directory, pattern, Lists.mutable.empty()).toImmutable();
+    ImmutableList<String> filesToAdd(Instant modifiedSince) throws IOException {
+        MutableList<String> filesToAdd = Lists.mutable.empty();
+        ChangeSetPartitionLayout.sealedChangeSets(changeSetFolder, modifiedSince).forEach(changeSet ->
+                filesToAdd.add(changeSetFolder.relativize(changeSet).toString().replace(File.separatorChar, '/')));
+        return filesToAdd.toImmutable();
     }
+
     /**
-     * Computes the list of files to add for synchronization using a recursive call to ensure
-     * all subdirectories are processed. .
+     * Returns the added files that differ from the last commit. A change set that was already committed, such as
+     * one received from a remote, stages nothing, and committing only such files would fail as an empty commit.
      *
-     * @param directory The directory to search for files.
-     * @param pattern   The file pattern to use for searching.
-     * @param filesToAdd The list of files to add for synchronization.
-     * @return An mutable list of file paths to add for synchronization.
+     * @param git        the change set repository
+     * @param filesAdded the files just added to the index
+     * @return the added files that are new or changed in the index
+     * @throws GitAPIException if the status cannot be read
      */
-    MutableList<String> filesToAdd(Path directory, String pattern, MutableList<String> filesToAdd){
-        File[] matchingFiles = directory.toFile().listFiles((dir, name) -> name.endsWith(pattern));
-
-        Arrays.stream(matchingFiles).forEach(f -> filesToAdd.add(
-                changeSetFolder.relativize(f.toPath()).toString()));
+    private ImmutableList<String> staged(Git git, ImmutableList<String> filesAdded) throws GitAPIException {
+        StatusCommand statusCommand = git.status();
+        filesAdded.forEach(statusCommand::addPath);
+        Status status = statusCommand.call();
+        return filesAdded.select(file -> status.getAdded().contains(file) || status.getChanged().contains(file));
+    }
 
-        List<File> directories = Arrays.stream(directory.toFile().listFiles()).filter(file -> file.isDirectory() &! file.isHidden()).toList();
-        directories.forEach(dir -> filesToAdd(dir.toPath(), pattern, filesToAdd));
-        return filesToAdd;
+    private void writeSyncWatermark(Instant scanStart) throws IOException {
+        Files.createDirectories(syncWatermarkFile.getParent());
+        Path tempFile = syncWatermarkFile.resolveSibling(syncWatermarkFile.getFileName() + ".tmp");
+        Files.writeString(tempFile, Long.toString(scanStart.toEpochMilli()), StandardCharsets.UTF_8);
+        Files.move(tempFile, syncWatermarkFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
     }
 }
\ No newline at end of file